@@ -0,0 +1,123 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global interning dictionary that gives every email address seen by the norn system a dense integer ID.
+ * IDs are assigned in order of first appearance starting from 0, and are never reused or reassigned.
+ */
+public class AddressDictionary {
+    // Note: AF, RI, SRE, Thread safety all for the class, since it only has static members.
+    // AF(ids, addresses, size) = the dictionary mapping the lowercase address string s to the id ids.get(s),
+    //     where addresses[id] is the canonical EmailAddress with that id, for every 0 <= id < size.
+    // RI:
+    //     ids.size() == size <= addresses.length
+    //     for all s in ids.keySet(): addresses[ids.get(s)].getAddress().equals(s)
+    //         and addresses[ids.get(s)].getId() == ids.get(s)
+    // SRE:
+    //     all fields are private, and only immutable EmailAddress objects and ints are returned
+    // Thread safety:
+    //     ids is a threadsafe map, and new ids are only assigned while holding the class lock, so two threads can never
+    //     give the same address two ids, or give two addresses the same id.
+    //     An address is stored in addresses before its id is published through ids, and lookup() falls back to the lock
+    //     if it cannot see an entry yet. EmailAddress only has final fields, so seeing a non-null entry without the
+    //     lock also means seeing it fully constructed.
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static EmailAddress[] addresses = new EmailAddress[INITIAL_CAPACITY];
+    private static int size = 0;
+
+    private AddressDictionary() {
+        throw new AssertionError("should never be instantiated");
+    }
+
+    /**
+     * Returns the id of the given address, assigning it a new id if it has never been seen before.
+     * @param address a lowercase email address string
+     * @return the dense integer id of address
+     */
+    public static int idOf(String address) {
+        final Integer id = ids.get(address);
+        if (id != null) {
+            return id;
+        }
+        return intern(address).getId();
+    }
+
+    /**
+     * Returns the id of the given address without assigning one if it has never been seen before.
+     * @param address an email address string (case-insensitive)
+     * @return the id of address, or -1 if no address equal to it has been given an id
+     */
+    public static int find(String address) {
+        final Integer id = ids.get(address.toLowerCase());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Returns the canonical EmailAddress for the given address, assigning it a new id if it has never been seen before.
+     * @param address an email address string (case-insensitive)
+     * @return the EmailAddress with that address
+     */
+    public static EmailAddress intern(String address) {
+        final String lowercase = address.toLowerCase();
+        final Integer id = ids.get(lowercase);
+        if (id != null) {
+            return lookup(id);
+        }
+        synchronized (AddressDictionary.class) {
+            final Integer existing = ids.get(lowercase);
+            if (existing != null) {
+                return addresses[existing];
+            }
+            if (size == addresses.length) {
+                addresses = Arrays.copyOf(addresses, 2 * addresses.length);
+            }
+            final EmailAddress canonical = new EmailAddress(lowercase, size);
+            addresses[size] = canonical;
+            size++;
+            ids.put(lowercase, canonical.getId());
+            checkRep();
+            return canonical;
+        }
+    }
+
+    /**
+     * Returns the email address with the given id.
+     * @param id an id previously returned by this dictionary
+     * @return the canonical EmailAddress with that id
+     * @throws IllegalArgumentException if no address has been given that id
+     */
+    public static EmailAddress lookup(int id) {
+        final EmailAddress[] current = addresses;
+        if (id >= 0 && id < current.length && current[id] != null) {
+            return current[id];
+        }
+        synchronized (AddressDictionary.class) {
+            if (id < 0 || id >= size) {
+                throw new IllegalArgumentException("no email address has id " + id);
+            }
+            return addresses[id];
+        }
+    }
+
+    /**
+     * @return the number of distinct addresses given ids so far; every id is less than this number
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     * Must be called while holding the class lock.
+     */
+    private static void checkRep() {
+        assert ids.size() == size;
+        assert size <= addresses.length;
+    }
+}
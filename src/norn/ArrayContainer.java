@@ -0,0 +1,225 @@
+package norn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * Container holding a sparse chunk of a MemberSet as a sorted array of values.
+ */
+class ArrayContainer extends Container {
+    // AF(values) = the container holding the low values values[0..values.length-1]
+    // RI:
+    //     values is strictly increasing
+    //     values.length <= MAX_ARRAY_SIZE
+    // SRE:
+    //     values is private and final, never returned, and never modified after construction.
+    // Thread safety:
+    //     ArrayContainer is immutable.
+
+    static final ArrayContainer EMPTY = new ArrayContainer(new char[0]);
+
+    private final char[] values;
+
+    /**
+     * Make a new ArrayContainer.
+     * @param values strictly increasing values, at most MAX_ARRAY_SIZE of them, which must not be modified afterwards
+     */
+    ArrayContainer(char[] values) {
+        this.values = values;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert values.length <= MAX_ARRAY_SIZE;
+    }
+
+    /**
+     * @param low a low value
+     * @return the container holding only low
+     */
+    static ArrayContainer of(char low) {
+        return new ArrayContainer(new char[] { low });
+    }
+
+    /**
+     * @param words a bitmap of WORDS words
+     * @param cardinality the number of set bits in words, at most MAX_ARRAY_SIZE
+     * @return the container holding the values whose bits are set in words
+     */
+    static ArrayContainer fromWords(long[] words, int cardinality) {
+        final char[] values = new char[cardinality];
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[count++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values);
+    }
+
+    @Override
+    int cardinality() {
+        return values.length;
+    }
+
+    @Override
+    boolean contains(char low) {
+        return Arrays.binarySearch(values, low) >= 0;
+    }
+
+    @Override
+    Container or(Container that) {
+        if (that == this) {
+            return this;
+        }
+        if (!(that instanceof ArrayContainer)) {
+            return that.or(this);
+        }
+        final char[] other = ((ArrayContainer) that).values;
+        final char[] merged = new char[values.length + other.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < values.length && j < other.length) {
+            if (values[i] < other[j]) {
+                merged[count++] = values[i++];
+            } else if (values[i] > other[j]) {
+                merged[count++] = other[j++];
+            } else {
+                merged[count++] = values[i++];
+                j++;
+            }
+        }
+        while (i < values.length) {
+            merged[count++] = values[i++];
+        }
+        while (j < other.length) {
+            merged[count++] = other[j++];
+        }
+        if (count > MAX_ARRAY_SIZE) {
+            final long[] words = new long[WORDS];
+            for (int k = 0; k < count; k++) {
+                words[merged[k] >>> 6] |= 1L << merged[k];
+            }
+            return Container.fromWords(words);
+        }
+        return new ArrayContainer(Arrays.copyOf(merged, count));
+    }
+
+    @Override
+    Container and(Container that) {
+        if (that == this) {
+            return this;
+        }
+        final char[] kept = new char[values.length];
+        int count = 0;
+        if (that instanceof ArrayContainer) {
+            // walk the smaller array, galloping through the larger, so the cost scales with the smaller one
+            final char[] other = ((ArrayContainer) that).values;
+            final char[] small = values.length <= other.length ? values : other;
+            final char[] large = small == values ? other : values;
+            int j = 0;
+            for (char value: small) {
+                j = gallop(large, j, value);
+                if (j == large.length) {
+                    break;
+                } else if (large[j] == value) {
+                    kept[count++] = value;
+                }
+            }
+        } else {
+            for (char value: values) {
+                if (that.contains(value)) {
+                    kept[count++] = value;
+                }
+            }
+        }
+        return count == values.length ? this : new ArrayContainer(Arrays.copyOf(kept, count));
+    }
+
+    @Override
+    Container andNot(Container that) {
+        if (that == this) {
+            return EMPTY;
+        }
+        final char[] kept = new char[values.length];
+        int count = 0;
+        if (that instanceof ArrayContainer) {
+            final char[] other = ((ArrayContainer) that).values;
+            int j = 0;
+            for (char value: values) {
+                j = gallop(other, j, value);
+                if (j == other.length || other[j] != value) {
+                    kept[count++] = value;
+                }
+            }
+        } else {
+            for (char value: values) {
+                if (!that.contains(value)) {
+                    kept[count++] = value;
+                }
+            }
+        }
+        return count == values.length ? this : new ArrayContainer(Arrays.copyOf(kept, count));
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (char value: values) {
+            words[value >>> 6] |= 1L << value;
+        }
+    }
+
+    @Override
+    void andNotFrom(long[] words) {
+        for (char value: values) {
+            words[value >>> 6] &= ~(1L << value);
+        }
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        for (char value: values) {
+            action.accept(id(high, value));
+        }
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator(int high) {
+        return new PrimitiveIterator.OfInt() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < values.length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return id(high, values[next++]);
+            }
+        };
+    }
+
+    @Override
+    int sizeInBytes() {
+        return 2 * values.length;
+    }
+
+    @Override
+    void writeTo(ByteBuffer out) {
+        out.put(ARRAY).putInt(values.length);
+        putChars(out, values);
+    }
+}
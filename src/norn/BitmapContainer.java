@@ -0,0 +1,158 @@
+package norn;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * Container holding a dense chunk of a MemberSet as a bitmap of all 65536 possible low values.
+ */
+class BitmapContainer extends Container {
+    // AF(words, cardinality) = the container holding every low value v where bit (v % 64) of words[v / 64] is set
+    // RI:
+    //     words.length == WORDS
+    //     cardinality == the number of set bits in words
+    // SRE:
+    //     words is private and final, never returned, and never modified after construction.
+    // Thread safety:
+    //     BitmapContainer is immutable.
+
+    private final long[] words;
+    private final int cardinality;
+
+    /**
+     * Make a new BitmapContainer.
+     * @param words a bitmap of WORDS words, which must not be modified afterwards
+     * @param cardinality the number of set bits in words
+     */
+    BitmapContainer(long[] words, int cardinality) {
+        this.words = words;
+        this.cardinality = cardinality;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert words.length == WORDS;
+        assert cardinality >= 0;
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    boolean contains(char low) {
+        return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    Container or(Container that) {
+        if (that == this) {
+            return this;
+        }
+        final long[] result = words.clone();
+        that.orInto(result);
+        return Container.fromWords(result);
+    }
+
+    @Override
+    Container and(Container that) {
+        if (that == this) {
+            return this;
+        }
+        if (that instanceof ArrayContainer) {
+            // cheaper to check each of that's few values against our bitmap
+            return that.and(this);
+        }
+        final long[] other = that instanceof BitmapContainer ? ((BitmapContainer) that).words : that.toWords();
+        final long[] result = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            result[i] = words[i] & other[i];
+        }
+        return Container.fromWords(result);
+    }
+
+    @Override
+    Container andNot(Container that) {
+        if (that == this) {
+            return ArrayContainer.EMPTY;
+        }
+        final long[] result = words.clone();
+        that.andNotFrom(result);
+        return Container.fromWords(result);
+    }
+
+    @Override
+    void orInto(long[] other) {
+        for (int i = 0; i < WORDS; i++) {
+            other[i] |= words[i];
+        }
+    }
+
+    @Override
+    void andNotFrom(long[] other) {
+        for (int i = 0; i < WORDS; i++) {
+            other[i] &= ~words[i];
+        }
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                action.accept(id(high, i * 64 + Long.numberOfTrailingZeros(word)));
+                word &= word - 1;
+            }
+        }
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator(int high) {
+        return new PrimitiveIterator.OfInt() {
+            private int index = 0;
+            private long word = words[0];
+
+            @Override
+            public boolean hasNext() {
+                while (word == 0 && index < WORDS - 1) {
+                    index++;
+                    word = words[index];
+                }
+                return word != 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int low = index * 64 + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                return id(high, low);
+            }
+        };
+    }
+
+    @Override
+    int sizeInBytes() {
+        return 8 * WORDS;
+    }
+
+    @Override
+    long[] toWords() {
+        return words.clone();
+    }
+
+    @Override
+    void writeTo(ByteBuffer out) {
+        out.put(BITMAP).putInt(cardinality);
+        out.asLongBuffer().put(words);
+        out.position(out.position() + 8 * WORDS);
+    }
+}
@@ -0,0 +1,230 @@
+package norn;
+
+import java.nio.ByteBuffer;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * One chunk of a MemberSet, holding the low 16 bits of the ids in the set that share the same high 16 bits.
+ * Containers are immutable, so MemberSets may share them.
+ *
+ * There are three variants, and fromWords() always picks whichever is smallest for the values it holds:
+ *   ArrayContainer, a sorted array of values, for sparse chunks;
+ *   BitmapContainer, a 65536-bit bitmap, for dense chunks;
+ *   RunContainer, a sorted array of [start, end] runs, for chunks of consecutive ids.
+ */
+abstract class Container {
+    // Datatype Definition
+    // Container = ArrayContainer(char[]: values)
+    //             + BitmapContainer(long[]: words)
+    //             + RunContainer(char[]: runs)
+
+    /** the largest number of values an ArrayContainer may hold; any more and a BitmapContainer is smaller */
+    static final int MAX_ARRAY_SIZE = 4096;
+    /** the number of 64-bit words in a bitmap of all 65536 possible low values */
+    static final int WORDS = 1 << 10;
+
+    /** the kind byte that writeTo() starts each variant with */
+    static final byte ARRAY = 0, BITMAP = 1, RUN = 2;
+
+    /**
+     * @return the number of values in this container
+     */
+    abstract int cardinality();
+
+    /**
+     * @param low the low 16 bits of an id
+     * @return true if and only if low is in this container
+     */
+    abstract boolean contains(char low);
+
+    /**
+     * @param that another container
+     * @return a container with every value in this or that
+     */
+    abstract Container or(Container that);
+
+    /**
+     * @param that another container
+     * @return a container with every value in both this and that, which may be empty
+     */
+    abstract Container and(Container that);
+
+    /**
+     * @param that another container
+     * @return a container with every value in this that is not in that, which may be empty
+     */
+    abstract Container andNot(Container that);
+
+    /**
+     * Sets the bit of every value in this container.
+     * @param words a bitmap of WORDS words to modify
+     */
+    abstract void orInto(long[] words);
+
+    /**
+     * Clears the bit of every value in this container.
+     * @param words a bitmap of WORDS words to modify
+     */
+    abstract void andNotFrom(long[] words);
+
+    /**
+     * Calls action on the id of every value in this container, in increasing order.
+     * @param high the high 16 bits of the ids in this container
+     * @param action the action to perform on each id
+     */
+    abstract void forEach(int high, IntConsumer action);
+
+    /**
+     * @param high the high 16 bits of the ids in this container
+     * @return an iterator over the ids in this container, in increasing order
+     */
+    abstract PrimitiveIterator.OfInt iterator(int high);
+
+    /**
+     * @return the approximate number of bytes of values this container holds
+     */
+    abstract int sizeInBytes();
+
+    /**
+     * Writes this container as its kind, a count, and then its values, in a form readFrom() reads back.
+     * @param out where to write, with at least encodedSize() bytes remaining
+     */
+    abstract void writeTo(ByteBuffer out);
+
+    /**
+     * @return the number of bytes writeTo() writes
+     */
+    int encodedSize() {
+        return 1 + 4 + sizeInBytes();
+    }
+
+    /**
+     * Reads a container written by writeTo().
+     * @param in where to read, positioned at the start of the container; it is left positioned after it
+     * @return the container that was written
+     */
+    static Container readFrom(ByteBuffer in) {
+        final byte kind = in.get();
+        final int count = in.getInt();
+        switch (kind) {
+        case ARRAY:
+            return new ArrayContainer(getChars(in, count));
+        case BITMAP:
+            final long[] words = new long[WORDS];
+            in.asLongBuffer().get(words);
+            in.position(in.position() + 8 * WORDS);
+            return new BitmapContainer(words, count);
+        case RUN:
+            return new RunContainer(getChars(in, count));
+        default:
+            throw new IllegalArgumentException("unknown container kind " + kind);
+        }
+    }
+
+    /**
+     * @param out where to write, with at least 2 * chars.length bytes remaining; it is left positioned after them
+     * @param chars the chars to write
+     */
+    static void putChars(ByteBuffer out, char[] chars) {
+        out.asCharBuffer().put(chars);
+        out.position(out.position() + 2 * chars.length);
+    }
+
+    /**
+     * @param in where to read, with at least 2 * count bytes remaining; it is left positioned after them
+     * @param count the number of chars to read
+     * @return the chars read
+     */
+    static char[] getChars(ByteBuffer in, int count) {
+        final char[] chars = new char[count];
+        in.asCharBuffer().get(chars);
+        in.position(in.position() + 2 * count);
+        return chars;
+    }
+
+    /**
+     * @return a new bitmap of WORDS words with the bit of every value in this container set
+     */
+    long[] toWords() {
+        final long[] words = new long[WORDS];
+        orInto(words);
+        return words;
+    }
+
+    /**
+     * @return true if and only if this container has no values
+     */
+    boolean isEmpty() {
+        return cardinality() == 0;
+    }
+
+    /**
+     * @param high the high 16 bits of the ids in a container
+     * @param low the low 16 bits of an id
+     * @return the full id
+     */
+    static int id(int high, int low) {
+        return (high << 16) | low;
+    }
+
+    /**
+     * Finds where a value is, or would go, in a sorted array, searching forward from an index by galloping:
+     * probing 1, 2, 4, ... places ahead, then binary searching the last step. Finding a value d places ahead costs
+     * O(log d), so walking a short array through a long one costs O(n log(m/n)) rather than O(n + m).
+     * @param sorted strictly increasing values
+     * @param from the index to search from, 0 <= from <= sorted.length
+     * @param target the value to look for
+     * @return the least index i >= from with sorted[i] >= target, or sorted.length if there is none
+     */
+    static int gallop(char[] sorted, int from, char target) {
+        if (from == sorted.length || sorted[from] >= target) {
+            return from;
+        }
+        // sorted[low] < target, and high is sorted.length or sorted[high] >= target
+        int low = from;
+        int step = 1;
+        while (low + step < sorted.length && sorted[low + step] < target) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(low + step, sorted.length);
+        while (low + 1 < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] < target) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Makes the smallest container holding exactly the set bits of a bitmap.
+     * @param words a bitmap of WORDS words, which the returned container may keep, so it must not be modified
+     *        afterwards
+     * @return a container holding the values whose bits are set in words
+     */
+    static Container fromWords(long[] words) {
+        int cardinality = 0;
+        int runs = 0;
+        long previous = 0;
+        for (long word: words) {
+            cardinality += Long.bitCount(word);
+            // a run starts wherever a bit is set and the bit before it is not
+            runs += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+            previous = word;
+        }
+        final int arrayBytes = cardinality <= MAX_ARRAY_SIZE ? 2 * cardinality : Integer.MAX_VALUE;
+        final int bitmapBytes = 8 * WORDS;
+        final int runBytes = 4 * runs;
+        if (runBytes < arrayBytes && runBytes < bitmapBytes) {
+            return RunContainer.fromWords(words, runs);
+        } else if (arrayBytes <= bitmapBytes) {
+            return ArrayContainer.fromWords(words, cardinality);
+        } else {
+            return new BitmapContainer(words, cardinality);
+        }
+    }
+}
@@ -0,0 +1,583 @@
+package norn;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Threadsafe map from list names to their definitions, which also keeps a version for every list name and
+ * an index from every list name to the lists whose definitions reference it.
+ *
+ * A list's version changes whenever its definition, or the definition of any list it transitively depends on,
+ * changes. Member sets in MemberCache are keyed by these versions, so looking up the members of an unchanged list
+ * costs a map lookup, while changing a definition only invalidates that list and its transitive dependents.
+ *
+ * The definitions and indexes are persistent maps, so copying a DefinitionMap takes constant time, and the copy shares
+ * everything that neither map changes afterwards.
+ *
+ * The map also remembers the versions lists had before they were first invalidated. Once the new definitions are
+ * known to have no circular definitions, propagateChanges() works out how the members of each changed list changed,
+ * and pushes those deltas through the cached members of its dependents, instead of recomputing them.
+ */
+public class DefinitionMap extends AbstractMap<String, ListExpression> {
+    // AF(definitions, versions, references, dependents, baseVersions, redefined, replacedValues, deltas) =
+    //     the map from each list name n in definitions.keySet() to definitions.get(n),
+    //     where the current definition of list name n (and of every list it depends on) is version versions.get(n),
+    //     references.get(n) are the list names that definitions.get(n) reads, and dependents.get(n).keySet() are the
+    //     list names whose definitions read n.
+    //     Since the last call to propagateChanges(), every list n in baseVersions.keySet() has been invalidated,
+    //     and had version baseVersions.get(n) before that; every list in redefined has been given a new definition,
+    //     and replacedValues maps each original definition that was replaced to the name it defined.
+    //     propagating is true exactly while propagateChanges() is running, and then deltas maps each changed list
+    //     to how its members changed, for the lists propagated so far.
+    // RI:
+    //     definitions.keySet() is a subset of versions.keySet()
+    //     for all n, m: m in references.get(n) if and only if n in dependents.get(m).keySet()
+    //     for all n: references.get(n) are the names that definitions.get(n) references
+    //     no two versions of different definitions are equal, even across different DefinitionMaps
+    //     every value of replacedValues is in redefined
+    //     deltas is empty unless propagating
+    // SRE:
+    //     all fields are private and never returned.
+    //     definitions, versions, references and dependents are immutable, and may be shared with other DefinitionMaps;
+    //     changes replace them with new maps rather than modifying them.
+    //     entrySet() returns an unmodifiable view of the immutable definitions at the time it was called.
+    // Thread safety:
+    //     every method that reads or writes the rep is synchronized on this, so the monitor pattern protects the rep.
+    //     getMembers() and hasMember() evaluate a definition without holding the lock, since they only need a
+    //     consistent (definition, version) pair, and MemberCache is threadsafe.
+    //     NEXT_VERSION is atomic, so versions are unique across all threads.
+
+    private static final AtomicLong NEXT_VERSION = new AtomicLong();
+
+    private PersistentHashMap<String, ListExpression> definitions = PersistentHashMap.empty();
+    private PersistentHashMap<String, Long> versions = PersistentHashMap.empty();
+    private PersistentHashMap<String, Set<String>> references = PersistentHashMap.empty();
+    private PersistentHashMap<String, PersistentHashMap<String, Boolean>> dependents = PersistentHashMap.empty();
+
+    private final Map<String, Long> baseVersions = new HashMap<>();
+    private final Set<String> redefined = new HashSet<>();
+    private final Map<ListExpression, String> replacedValues = new IdentityHashMap<>();
+    private final Map<String, MemberDelta> deltas = new HashMap<>();
+    private boolean propagating = false;
+
+    /**
+     * Make a new empty DefinitionMap.
+     */
+    public DefinitionMap() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+     * Immutable snapshot of the definitions, versions and reference indexes of a DefinitionMap.
+     * Snapshots can be shared between threads and turned back into a DefinitionMap without any locking.
+     */
+    public static class Snapshot {
+        // AF(definitions, versions, references, dependents) = the DefinitionMap with those definitions, versions and
+        //     reference indexes, and no changes since the last propagation
+        // RI:
+        //     the RI of DefinitionMap, for these fields
+        // SRE:
+        //     all fields are private, final and immutable
+        // Thread safety:
+        //     Snapshot is immutable.
+
+        private final PersistentHashMap<String, ListExpression> definitions;
+        private final PersistentHashMap<String, Long> versions;
+        private final PersistentHashMap<String, Set<String>> references;
+        private final PersistentHashMap<String, PersistentHashMap<String, Boolean>> dependents;
+
+        private Snapshot(DefinitionMap map) {
+            this.definitions = map.definitions;
+            this.versions = map.versions;
+            this.references = map.references;
+            this.dependents = map.dependents;
+        }
+
+        /**
+         * @return an unmodifiable map from each list name to its definition in this snapshot
+         */
+        public Map<String, ListExpression> getDefinitions() {
+            return definitions;
+        }
+    }
+
+    /**
+     * Make a new DefinitionMap with the same definitions and versions as a snapshot, in constant time.
+     * @param snapshot the snapshot to copy
+     */
+    public DefinitionMap(Snapshot snapshot) {
+        copy(snapshot);
+        checkRep();
+    }
+
+    /**
+     * Make a new DefinitionMap with the same definitions as the given map.
+     * If definitions is a DefinitionMap, the new map keeps its versions, so cached member sets can still be used,
+     * and the copy takes constant time.
+     * @param definitions the definitions to copy
+     */
+    public DefinitionMap(Map<String, ListExpression> definitions) {
+        if (definitions instanceof DefinitionMap) {
+            copy(((DefinitionMap) definitions).snapshot());
+        } else {
+            putAll(definitions);
+            // nothing was cached for the lists we were given, so there is nothing to propagate
+            clearChanges();
+        }
+        checkRep();
+    }
+
+    /**
+     * Replaces the definitions, versions and reference indexes of this map with those of a snapshot.
+     * @param snapshot the snapshot to copy
+     */
+    private synchronized void copy(Snapshot snapshot) {
+        this.definitions = snapshot.definitions;
+        this.versions = snapshot.versions;
+        this.references = snapshot.references;
+        this.dependents = snapshot.dependents;
+    }
+
+    /**
+     * @return an immutable snapshot of the current definitions and versions in this map, taken in constant time
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private synchronized void checkRep() {
+        assert versions.keySet().containsAll(definitions.keySet());
+        assert redefined.containsAll(replacedValues.values());
+        assert propagating || deltas.isEmpty();
+    }
+
+    /**
+     * @param value a list definition without any edits
+     * @return the list names that value reads directly, without expanding their own definitions
+     */
+    static Set<String> directReferences(ListExpression value) {
+        if (value instanceof StoredDefinition) {
+            // the snapshot's index knows, so the definition needn't be read from disk
+            return ((StoredDefinition) value).getReferences();
+        }
+        // names value only defines are not read, so they can't make a cycle or change value's members
+        return ExpressionAnalysis.readLists(value);
+    }
+
+    /**
+     * @param listname a list name
+     * @return the version of listname's current definition
+     */
+    public synchronized long getVersion(String listname) {
+        final Long version = versions.get(listname);
+        if (version != null) {
+            return version;
+        }
+        final long newVersion = NEXT_VERSION.incrementAndGet();
+        versions = versions.plus(listname, newVersion);
+        return newVersion;
+    }
+
+    /**
+     * Returns the members of a list name, using MemberCache if this version of the list has been evaluated before.
+     * Requires that there are no circular definitions involving listname.
+     * @param listname a list name
+     * @return the ids of the members of listname, which is empty if listname is not defined
+     */
+    public MemberSet getMembers(String listname) {
+        return getMembers(listname, this::evaluate);
+    }
+
+    /**
+     * @param definition the definition of a list
+     * @return the members of definition against these definitions
+     */
+    private MemberSet evaluate(ListExpression definition) {
+        final boolean walk;
+        synchronized (this) {
+            walk = propagating;
+        }
+        // walking the tree lets a replaced definition reuse its old members through knownMembers()
+        return walk ? definition.getMembers(this) : MemberProgram.of(StoredDefinition.resolve(definition)).run(this);
+    }
+
+    /**
+     * Returns the members of a list name, using MemberCache if this version of the list has been evaluated before,
+     * and otherwise evaluating its definition with evaluator.
+     * Requires that there are no circular definitions involving listname.
+     * @param listname a list name
+     * @param evaluator evaluates a definition against these definitions
+     * @return the ids of the members of listname, which is empty if listname is not defined
+     */
+    public MemberSet getMembers(String listname, Function<ListExpression, MemberSet> evaluator) {
+        final ListExpression definition;
+        final long version;
+        synchronized (this) {
+            definition = definitions.get(listname);
+            version = getVersion(listname);
+        }
+        if (definition == null) {
+            return MemberSet.empty();
+        }
+        final MemberSet cached = MemberCache.get(listname, version);
+        if (cached != null) {
+            return cached;
+        }
+        final MemberSet members = evaluator.apply(definition);
+        MemberCache.put(listname, version, members);
+        return members;
+    }
+
+    /**
+     * Returns the sketch of the members of a list name, evaluating and caching the members first if they are not
+     * cached.
+     * Requires that there are no circular definitions involving listname.
+     * @param listname a list name
+     * @return the sketch of the members of listname, which is empty if listname is not defined
+     */
+    public HyperLogLog getSketch(String listname) {
+        final long version;
+        synchronized (this) {
+            if (!definitions.containsKey(listname)) {
+                return HyperLogLog.empty();
+            }
+            version = getVersion(listname);
+        }
+        final HyperLogLog cached = MemberCache.getSketch(listname, version);
+        if (cached != null) {
+            return cached;
+        }
+        final MemberSet members = getMembers(listname);
+        final HyperLogLog sketch = MemberCache.getSketch(listname, version);
+        // a newer version of the list may have replaced the one just cached
+        return sketch != null ? sketch : HyperLogLog.of(members);
+    }
+
+    /**
+     * @param listname a list name
+     * @return true if getMembers(listname) would not need to evaluate anything
+     */
+    public boolean isCached(String listname) {
+        final long version;
+        synchronized (this) {
+            if (!definitions.containsKey(listname)) {
+                return true;
+            }
+            version = getVersion(listname);
+        }
+        return MemberCache.contains(listname, version);
+    }
+
+    /**
+     * Returns whether an address is a member of a list name, without evaluating the list if it is not cached.
+     * Requires that there are no circular definitions involving listname.
+     * @param listname a list name
+     * @param id the id of an address
+     * @return true if and only if the address with that id is a member of listname
+     */
+    public boolean hasMember(String listname, int id) {
+        final ListExpression definition;
+        final long version;
+        synchronized (this) {
+            definition = definitions.get(listname);
+            version = getVersion(listname);
+        }
+        if (definition == null) {
+            return false;
+        }
+        final MemberSet cached = MemberCache.get(listname, version);
+        if (cached != null) {
+            return cached.contains(id);
+        }
+        return definition.hasMember(id, this);
+    }
+
+    /**
+     * Returns the members of an expression if they can be worked out from cached members without evaluating it,
+     * which is only the case for a replaced definition while propagateChanges() is running.
+     * @param expression a list expression
+     * @param definitions the definitions expression is being evaluated with
+     * @return the members of expression, or null if they must be evaluated as usual
+     */
+    public static MemberSet knownMembers(ListExpression expression, Map<String, ListExpression> definitions) {
+        if (definitions instanceof DefinitionMap) {
+            return ((DefinitionMap) definitions).replacedMembers(expression);
+        }
+        return null;
+    }
+
+    /**
+     * @param expression a list expression
+     * @return if expression is the definition a list had before it was redefined, and its members then are cached,
+     *         its members now, as worked out from how the lists it reads changed; otherwise null
+     */
+    private synchronized MemberSet replacedMembers(ListExpression expression) {
+        if (!propagating || !replacedValues.containsKey(expression)) {
+            return null;
+        }
+        final String listname = replacedValues.get(expression);
+        final Long baseVersion = baseVersions.get(listname);
+        final MemberSet before = baseVersion == null ? null : MemberCache.get(listname, baseVersion);
+        if (before == null || !canDerive(directReferences(expression))) {
+            return null;
+        }
+        return expression.getMemberDelta(deltas, this).apply(before);
+    }
+
+    /**
+     * @param names list names read by some expression
+     * @return true if every name that changed since the last propagation has a known delta
+     */
+    private boolean canDerive(Set<String> names) {
+        for (String name: names) {
+            if (baseVersions.containsKey(name) && !deltas.containsKey(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized ListExpression get(Object key) {
+        return definitions.get(key);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return definitions.containsKey(key);
+    }
+
+    @Override
+    public synchronized int size() {
+        return definitions.size();
+    }
+
+    @Override
+    public synchronized ListExpression put(String listname, ListExpression value) {
+        final ListExpression old = definitions.get(listname);
+        definitions = definitions.plus(listname, value);
+        if (old != null && !redefined.contains(listname)) {
+            replacedValues.put(replacedValue(listname, old), listname);
+        }
+        setReferences(listname, directReferences(value));
+        invalidate(listname);
+        redefined.add(listname);
+        checkRep();
+        return old;
+    }
+
+    /**
+     * Puts every definition in values, invalidating each changed list and its dependents once, however many of
+     * the lists they depend on changed.
+     * @param values definitions without any edits
+     */
+    @Override
+    public synchronized void putAll(Map<? extends String, ? extends ListExpression> values) {
+        for (Map.Entry<? extends String, ? extends ListExpression> entry: values.entrySet()) {
+            final String listname = entry.getKey();
+            final ListExpression old = definitions.get(listname);
+            definitions = definitions.plus(listname, entry.getValue());
+            if (old != null && !redefined.contains(listname)) {
+                replacedValues.put(replacedValue(listname, old), listname);
+            }
+            setReferences(listname, directReferences(entry.getValue()));
+            redefined.add(listname);
+        }
+        invalidate(values.keySet());
+        checkRep();
+    }
+
+    /**
+     * Must be called while holding the lock on this.
+     * @param listname a list name that is being redefined
+     * @param old its definition until now
+     * @return the key to remember old by in replacedValues: the tree an edit would put in the new definition, which
+     *         for a stored definition is the tree it decodes to, but only decoded if listname's members are cached,
+     *         since otherwise they can't be reused anyway
+     */
+    private ListExpression replacedValue(String listname, ListExpression old) {
+        if (old instanceof StoredDefinition && MemberCache.contains(listname, getVersion(listname))) {
+            return StoredDefinition.resolve(old);
+        }
+        return old;
+    }
+
+    /**
+     * @param names list names
+     * @return true if any of names depends, directly or transitively, on a circular definition
+     */
+    public synchronized boolean reachesCircularDefinition(Collection<String> names) {
+        final Map<String, Boolean> acyclic = new HashMap<>();
+        final List<String> order = new ArrayList<>();
+        for (String name: names) {
+            if (!visit(name, acyclic, order)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized ListExpression remove(Object key) {
+        if (!definitions.containsKey(key)) {
+            return null;
+        }
+        final String listname = (String) key;
+        final ListExpression old = definitions.get(listname);
+        definitions = definitions.minus(listname);
+        setReferences(listname, Set.of());
+        invalidate(listname);
+        redefined.add(listname);
+        checkRep();
+        return old;
+    }
+
+    /**
+     * Updates the forward and reverse reference indexes for a list's new definition.
+     * Must be called while holding the lock on this.
+     * @param listname the list name whose definition changed
+     * @param names the list names its new definition reads
+     */
+    private void setReferences(String listname, Set<String> names) {
+        for (String name: references.getOrDefault(listname, Set.of())) {
+            final PersistentHashMap<String, Boolean> readers = dependents.get(name).minus(listname);
+            dependents = readers.isEmpty() ? dependents.minus(name) : dependents.plus(name, readers);
+        }
+        for (String name: names) {
+            final PersistentHashMap<String, Boolean> readers = dependents.getOrDefault(name, PersistentHashMap.empty());
+            dependents = dependents.plus(name, readers.plus(listname, true));
+        }
+        references = names.isEmpty() ? references.minus(listname) : references.plus(listname, names);
+    }
+
+    /**
+     * Gives a new version to listname and to every list that transitively depends on it,
+     * remembering the versions they had before the first change since the last propagation.
+     * Must be called while holding the lock on this.
+     * @param listname the list name whose definition changed
+     */
+    private void invalidate(String listname) {
+        invalidate(List.of(listname));
+    }
+
+    /**
+     * Gives a new version to every list in listnames and to every list that transitively depends on one of them,
+     * remembering the versions they had before the first change since the last propagation.
+     * Must be called while holding the lock on this.
+     * @param listnames the list names whose definitions changed
+     */
+    private void invalidate(Collection<? extends String> listnames) {
+        final Set<String> visited = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>(listnames);
+        while (!toVisit.isEmpty()) {
+            final String name = toVisit.remove();
+            if (visited.add(name)) {
+                // a list that was never read still changed, so readers must not treat it as unchanged
+                baseVersions.putIfAbsent(name, getVersion(name));
+                versions = versions.plus(name, NEXT_VERSION.incrementAndGet());
+                toVisit.addAll(dependents.getOrDefault(name, PersistentHashMap.empty()).keySet());
+            }
+        }
+    }
+
+    /**
+     * Updates the cached members of every list that changed since the last propagation, and that was cached before
+     * the change. Lists that were redefined are evaluated, reusing the cached members of their old definitions where
+     * the new definition contains them; all other changed lists only depend on lists that changed, so their new members
+     * are worked out from the deltas of those lists.
+     *
+     * Must only be called once the definitions are known to have no circular definitions involving the changed lists.
+     * Lists involved in circular definitions anyway are skipped.
+     */
+    public synchronized void propagateChanges() {
+        propagating = true;
+        try {
+            for (String name: changedInDependencyOrder()) {
+                final Long baseVersion = baseVersions.get(name);
+                final MemberSet before = baseVersion == null ? null : MemberCache.get(name, baseVersion);
+                if (before == null) {
+                    continue;
+                }
+                if (redefined.contains(name)) {
+                    deltas.put(name, MemberDelta.between(before, getMembers(name)));
+                } else if (canDerive(references.getOrDefault(name, Set.of()))) {
+                    final MemberDelta delta = definitions.get(name).getMemberDelta(deltas, this);
+                    MemberCache.put(name, getVersion(name), delta.apply(before));
+                    deltas.put(name, delta);
+                }
+            }
+        } finally {
+            propagating = false;
+            clearChanges();
+        }
+    }
+
+    /**
+     * Forgets every change since the last propagation.
+     * Must be called while holding the lock on this.
+     */
+    private void clearChanges() {
+        baseVersions.clear();
+        redefined.clear();
+        replacedValues.clear();
+        deltas.clear();
+    }
+
+    /**
+     * Must be called while holding the lock on this.
+     * @return every list that changed since the last propagation and is not involved in circular definitions,
+     *         ordered so that every list comes after every other changed list it depends on
+     */
+    private List<String> changedInDependencyOrder() {
+        final List<String> order = new ArrayList<>();
+        final Map<String, Boolean> acyclic = new HashMap<>();
+        for (String name: baseVersions.keySet()) {
+            visit(name, acyclic, order);
+        }
+        order.removeIf(name -> !baseVersions.containsKey(name) || !acyclic.get(name));
+        return order;
+    }
+
+    /**
+     * Depth-first search adding name, after everything it depends on, to order.
+     * Must be called while holding the lock on this.
+     * @param name the list name to visit
+     * @param acyclic maps every list visited so far to whether it (transitively) depends on circular definitions,
+     *        or to false while it is being visited
+     * @param order the list of visited names
+     * @return whether name does not depend on any circular definitions
+     */
+    private boolean visit(String name, Map<String, Boolean> acyclic, List<String> order) {
+        if (acyclic.containsKey(name)) {
+            return acyclic.get(name);
+        }
+        acyclic.put(name, false);
+        boolean result = true;
+        for (String reference: references.getOrDefault(name, Set.of())) {
+            result = visit(reference, acyclic, order) && result;
+        }
+        acyclic.put(name, result);
+        order.add(name);
+        return result;
+    }
+
+    @Override
+    public synchronized Set<Entry<String, ListExpression>> entrySet() {
+        return definitions.entrySet();
+    }
+}
@@ -0,0 +1,382 @@
+package norn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Threadsafe store of the current list definitions, which evaluates expressions against them and keeps the
+ * definitions that expressions make.
+ *
+ * Expressions that define no lists are evaluated against the current snapshot without locking anything.
+ * Expressions that define lists lock only the lists they define and read, so writers working on disjoint lists
+ * evaluate in parallel; each writer then publishes its changes on top of whatever the other writers published.
+ *
+ * Once a store journals to a Journal, every expression whose definitions it stores, and every snapshot file it loads,
+ * is appended to the journal before the writer releases its locks, and the writer waits for the record to be
+ * written, as the journal's policy says, after releasing them.
+ */
+public class DefinitionStore {
+    // AF(current, locks, journal) = the definitions current.get(), where a thread changing or reading list name n in
+    //     order to change definitions holds locks on the stripe of n, and whose changes are recorded in journal,
+    //     unless it is null
+    // RI:
+    //     current.get() has no circular definitions
+    // SRE:
+    //     all fields are private and final, and only immutable snapshots are returned
+    // Thread safety:
+    //     current only holds immutable snapshots, and is only replaced with compareAndSet(), so a writer never
+    //     overwrites definitions published by another writer.
+    //     A writer holds the locks for every list it defines, and every list those reach in the current definitions,
+    //     from before it reads the definitions until it publishes. Any other writer whose lists overlap those must
+    //     wait, so the lists one writer reads can only be changed by writers whose changes can be merged without
+    //     conflict.
+    //     Locks are always taken in increasing order of stripe, so writers can't deadlock.
+    //     journal is volatile, and each writer reads it once. A writer appends its record while it still holds its
+    //     locks, so the records of writers whose lists overlap are in the order they published.
+
+    private static final int STRIPES = 64;
+
+    private final AtomicReference<DefinitionMap.Snapshot> current =
+            new AtomicReference<>(new DefinitionMap().snapshot());
+    private final ListLocks locks = new ListLocks(STRIPES);
+    private volatile Journal journal = null;
+
+    /**
+     * @return the current definitions
+     */
+    public DefinitionMap.Snapshot snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Records every change stored from now on in a journal.
+     * @param journal the journal to append to
+     */
+    public void journalTo(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts a new journal segment while no writer is storing definitions, so that the earlier segments lead to
+     * exactly the definitions returned.
+     * Requires that this store journals to a journal.
+     * @return the current definitions
+     * @throws IOException if the journal can't be written
+     */
+    public DefinitionMap.Snapshot rotateJournal() throws IOException {
+        final SortedSet<Integer> stripes = locks.allStripes();
+        locks.lock(stripes);
+        try {
+            journal.rotate();
+            return current.get();
+        } finally {
+            locks.unlock(stripes);
+        }
+    }
+
+    /**
+     * Checks whether an address is a member of a list in the current definitions, without waiting for any lock,
+     * and without evaluating the list if its members are not cached.
+     * @param listname a list name (case-insensitive)
+     * @param address an email address (case-insensitive)
+     * @return true if and only if address is a member of listname
+     */
+    public boolean contains(String listname, String address) {
+        // an address that was never seen can't be on any list, and isn't worth giving an id
+        final int id = AddressDictionary.find(address);
+        return id >= 0 && new DefinitionMap(current.get()).hasMember(listname.toLowerCase(), id);
+    }
+
+    /**
+     * Evaluates an expression against the current definitions, and stores any definitions it makes.
+     * @param expression the expression to evaluate
+     * @return the evaluation of expression
+     * @throws InvalidExpressionException if expression is not valid
+     */
+    public ListEval evaluate(ListExpression expression) throws InvalidExpressionException {
+        if (!ExpressionAnalysis.hasDefinitions(expression)) {
+            // nothing to store, so any published snapshot is as good as the latest
+            return ListExpression.evalAndVisualize(expression, new DefinitionMap(current.get()));
+        }
+        return store(expression, true);
+    }
+
+    /**
+     * Evaluates an expression against the current definitions, and stores the definitions it makes.
+     * @param expression an expression that makes definitions
+     * @param visualize true to build the visualization of expression, false to leave it empty
+     * @return the evaluation of expression
+     * @throws InvalidExpressionException if expression is not valid
+     */
+    private ListEval store(ListExpression expression, boolean visualize) throws InvalidExpressionException {
+        final Journal journal = this.journal;
+        final Set<String> names = new HashSet<>(touchedLists(expression, current.get()));
+        while (true) {
+            final SortedSet<Integer> stripes = locks.stripesOf(names);
+            final ListEval eval;
+            final long ticket;
+            locks.lock(stripes);
+            try {
+                // the lists may have been redefined to reach other lists before we got the locks
+                final DefinitionMap.Snapshot start = current.get();
+                final Set<String> touched = touchedLists(expression, start);
+                if (!stripes.containsAll(locks.stripesOf(touched))) {
+                    names.addAll(touched);
+                    continue;
+                }
+                eval = visualize ? ListExpression.evalAndVisualize(expression, new DefinitionMap(start))
+                        : ListExpression.eval(expression, new DefinitionMap(start));
+                publish(start, (DefinitionMap) eval.getDefinitions(), touched);
+                ticket = record(journal, expression.toString());
+            } finally {
+                locks.unlock(stripes);
+            }
+            awaitRecord(journal, ticket);
+            return eval;
+        }
+    }
+
+    /**
+     * Stores the definitions an expression makes, without evaluating or visualizing it, for loading many definitions
+     * at once. Every list is locked while they are stored, since an expression that makes that many definitions
+     * would lock most stripes anyway, and this saves working out which lists it touches.
+     * @param expression the expression whose definitions to store
+     * @throws InvalidExpressionException if expression is not valid
+     */
+    public void define(ListExpression expression) throws InvalidExpressionException {
+        final Journal journal = this.journal;
+        final SortedSet<Integer> stripes = locks.allStripes();
+        final long ticket;
+        locks.lock(stripes);
+        try {
+            final DefinitionMap.Snapshot start = current.get();
+            final DefinitionMap result = ListExpression.define(expression, new DefinitionMap(start));
+            // only writers publish, and every other writer is waiting for our locks
+            final boolean published = current.compareAndSet(start, result.snapshot());
+            assert published;
+            ticket = record(journal, expression.toString());
+        } finally {
+            locks.unlock(stripes);
+        }
+        awaitRecord(journal, ticket);
+    }
+
+    /**
+     * Stores definitions that were already checked for edits and pipes, such as those read from a snapshot,
+     * replacing any current definitions of the same lists.
+     * @param definitions definitions without any edits
+     * @throws InvalidExpressionException if the definitions would make a circular definition
+     */
+    public void defineAll(Map<String, ListExpression> definitions) throws InvalidExpressionException {
+        defineAll(definitions, this.journal, null);
+    }
+
+    /**
+     * Stores every definition in a snapshot file, replacing any current definitions of the same lists. The definitions
+     * are only decoded once they are used, and a journal records a copy of the file rather than their text.
+     * @param path a snapshot file
+     * @return the number of lists loaded
+     * @throws IOException if the snapshot can't be read or copied into the journal, or is corrupt
+     * @throws InvalidExpressionException if the definitions would make a circular definition
+     */
+    public int loadSnapshot(Path path) throws IOException, InvalidExpressionException {
+        final Journal journal = this.journal;
+        // copied before taking any lock, so that writers aren't held up by the disk
+        final Path copy = journal == null ? path : journal.copySnapshot(path);
+        final Map<String, ListExpression> definitions = SnapshotFile.open(copy).storedDefinitions();
+        defineAll(definitions, journal, journal == null ? null : copy);
+        return definitions.size();
+    }
+
+    /**
+     * Stores definitions that were already checked for edits and pipes, replacing any current definitions of the
+     * same lists.
+     * @param definitions definitions without any edits
+     * @param journal the journal to record the definitions in, or null if changes are not journaled
+     * @param copy a copy of the snapshot the definitions were loaded from, made by journal, to record instead of
+     *        the text of the definitions, or null to record their text
+     * @throws InvalidExpressionException if the definitions would make a circular definition
+     */
+    private void defineAll(Map<String, ListExpression> definitions, Journal journal, Path copy)
+            throws InvalidExpressionException {
+        if (definitions.isEmpty()) {
+            return;
+        }
+        final SortedSet<Integer> stripes = locks.allStripes();
+        final long ticket;
+        locks.lock(stripes);
+        try {
+            final DefinitionMap.Snapshot start = current.get();
+            final DefinitionMap result = new DefinitionMap(start);
+            result.putAll(definitions);
+            if (result.reachesCircularDefinition(definitions.keySet())) {
+                throw new InvalidExpressionException("Circular definition found among the loaded lists");
+            }
+            result.propagateChanges();
+            final boolean published = current.compareAndSet(start, result.snapshot());
+            assert published;
+            ticket = copy != null ? recordLoad(journal, copy) : record(journal, statements(definitions));
+        } finally {
+            locks.unlock(stripes);
+        }
+        awaitRecord(journal, ticket);
+    }
+
+    /**
+     * @param definitions definitions without any edits
+     * @return the text of a sequence of statements that stores definitions, decoding stored definitions without
+     *         adding them to the cache of decoded definitions
+     */
+    private static String statements(Map<String, ListExpression> definitions) {
+        final StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, ListExpression> entry: definitions.entrySet()) {
+            if (text.length() > 0) {
+                text.append(';');
+            }
+            final ListExpression definition = entry.getValue() instanceof StoredDefinition
+                    ? ((StoredDefinition) entry.getValue()).load() : entry.getValue();
+            text.append('(').append(entry.getKey()).append('=').append(definition).append(')');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends a record of stored definitions to a journal.
+     * Must be called while holding the locks of every list the definitions changed.
+     * @param journal the journal, or null if changes are not journaled
+     * @param text an expression whose definitions were stored
+     * @return the ticket of the record, or 0 if there is no journal
+     * @throws UncheckedIOException if the journal has failed, in which case the definitions were stored but may not
+     *         survive a restart
+     */
+    private static long record(Journal journal, String text) {
+        if (journal == null) {
+            return 0;
+        }
+        try {
+            return journal.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException("definitions were stored, but could not be journaled", e);
+        }
+    }
+
+    /**
+     * Appends a record of a loaded snapshot to a journal.
+     * Must be called while holding the locks of every list.
+     * @param journal the journal
+     * @param copy the copy of the snapshot that journal made
+     * @return the ticket of the record
+     * @throws UncheckedIOException if the journal has failed, in which case the definitions were stored but may not
+     *         survive a restart
+     */
+    private static long recordLoad(Journal journal, Path copy) {
+        try {
+            return journal.appendLoad(copy);
+        } catch (IOException e) {
+            throw new UncheckedIOException("definitions were stored, but could not be journaled", e);
+        }
+    }
+
+    /**
+     * Waits for a record to be written, as the journal's policy says.
+     * @param journal the journal the record was appended to, or null
+     * @param ticket the ticket of the record
+     * @throws UncheckedIOException if the journal can't be written, in which case the definitions were stored but
+     *         may not survive a restart
+     */
+    private static void awaitRecord(Journal journal, long ticket) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.await(ticket);
+        } catch (IOException e) {
+            throw new UncheckedIOException("definitions were stored, but could not be journaled", e);
+        }
+    }
+
+    /**
+     * Counts the members of an expression against the current definitions, storing any definitions it makes.
+     * @param expression the expression to count
+     * @return the number of email addresses expression evaluates to
+     * @throws InvalidExpressionException if expression is not valid
+     */
+    public int count(ListExpression expression) throws InvalidExpressionException {
+        if (ExpressionAnalysis.hasDefinitions(expression)) {
+            return store(expression, false).getMembers().size();
+        } else if (ExpressionAnalysis.hasDefinitionsOrPipes(expression)) {
+            return ListExpression.count(expression, new DefinitionMap(current.get()));
+        }
+        // snapshots have no circular definitions, so there is nothing to check
+        final DefinitionMap definitions = new DefinitionMap(current.get());
+        return ParallelEvaluator.getMembers(ExpressionOptimizer.optimize(expression, definitions), definitions).size();
+    }
+
+    /**
+     * Estimates the number of members of an expression against the current definitions, storing any definitions
+     * it makes. Expressions that make definitions are counted exactly, since they must be evaluated to store them.
+     * @param expression the expression to estimate
+     * @return an estimate of the number of email addresses expression evaluates to
+     * @throws InvalidExpressionException if expression is not valid
+     */
+    public long estimate(ListExpression expression) throws InvalidExpressionException {
+        if (ExpressionAnalysis.hasDefinitions(expression)) {
+            return store(expression, false).getMembers().size();
+        } else if (ExpressionAnalysis.hasDefinitionsOrPipes(expression)) {
+            return ListExpression.estimate(expression, new DefinitionMap(current.get()));
+        }
+        final DefinitionMap definitions = new DefinitionMap(current.get());
+        return SketchEvaluator.sketch(ExpressionOptimizer.optimize(expression, definitions), definitions).estimate();
+    }
+
+    /**
+     * @param expression an expression, which may contain edits
+     * @param snapshot the definitions expression will be evaluated against
+     * @return every list expression may define, and every list reached from expression in snapshot
+     * @throws InvalidExpressionException if expression reaches a circular definition
+     */
+    private static Set<String> touchedLists(ListExpression expression, DefinitionMap.Snapshot snapshot)
+            throws InvalidExpressionException {
+        final ExpressionAnalysis analysis = ExpressionAnalysis.analyze(expression, snapshot.getDefinitions());
+        final Set<String> touched = new HashSet<>(analysis.getReferencedLists());
+        touched.addAll(analysis.getDefinedLists());
+        return touched;
+    }
+
+    /**
+     * Publishes the definitions a writer made, merging them into whatever other writers published in the meantime.
+     * Must be called while holding the locks for touched.
+     * @param start the definitions the writer started from
+     * @param result the definitions after the writer's evaluation
+     * @param touched every list the writer may have changed
+     */
+    private void publish(DefinitionMap.Snapshot start, DefinitionMap result, Set<String> touched) {
+        if (current.compareAndSet(start, result.snapshot())) {
+            // no other writer published anything, so the result, and the member sets it propagated, can be kept as is
+            return;
+        }
+        final Map<String, ListExpression> before = start.getDefinitions();
+        while (true) {
+            // other writers only changed lists we neither define nor read, so redoing our changes on top of theirs is
+            // safe
+            final DefinitionMap.Snapshot latest = current.get();
+            final DefinitionMap merged = new DefinitionMap(latest);
+            for (String name: touched) {
+                final ListExpression definition = result.get(name);
+                if (definition != null && definition != before.get(name)) {
+                    merged.put(name, definition);
+                }
+            }
+            merged.propagateChanges();
+            if (current.compareAndSet(latest, merged.snapshot())) {
+                return;
+            }
+        }
+    }
+}
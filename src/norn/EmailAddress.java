@@ -1,7 +1,5 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,16 +9,20 @@ import java.util.Set;
 public class EmailAddress implements ListExpression {
 
     private final String address;
+    private final int id;
     
     /*
-     * AF(address) = the email address with the given (case-insensitive) address <address>.
-     * RI(address):
-     *      true
+     * AF(address, id) = the email address with the given (case-insensitive) address <address>,
+     *     which AddressDictionary has given the id <id>.
+     * RI(address, id):
+     *      address is lowercase
+     *      id >= 0, and AddressDictionary.idOf(address) == id
      * SRE:
-     * - only field is private final, and immutable. 
+     * - all fields are private final, and immutable. 
      * 
      * Thread safety argument:
      *     String is final and immutable, and all methods are self contained in terms of what they do, so other variables are confined.
+     *     AddressDictionary is threadsafe, so two threads making the same address get the same id.
      *     Note that if a user wants to open multiple threads that modify definitions, then they must deal with using a synchronized map to pass in
      */
     
@@ -30,6 +32,19 @@ public class EmailAddress implements ListExpression {
      */
     public EmailAddress(String address) {
         this.address = address.toLowerCase();
+        this.id = AddressDictionary.idOf(this.address);
+        checkRep();
+    }
+    
+    /**
+     * Create an EmailAddress with an id already given by AddressDictionary.
+     * Only AddressDictionary should call this, while assigning a new id.
+     * @param address the lowercase email address.
+     * @param id the id of address
+     */
+    EmailAddress(String address, int id) {
+        this.address = address;
+        this.id = id;
         checkRep();
     }
     
@@ -38,6 +53,8 @@ public class EmailAddress implements ListExpression {
      */
     private void checkRep() {
         assert this.address != null;
+        assert this.address.toLowerCase().equals(this.address);
+        assert this.id >= 0;
     }
     
     @Override
@@ -46,6 +63,12 @@ public class EmailAddress implements ListExpression {
         return this;
     } 
     
+    @Override
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
+        checkRep();
+        return MemberSet.of(id);
+    }
+    
     @Override
     public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
         checkRep();
@@ -59,7 +82,26 @@ public class EmailAddress implements ListExpression {
         checkRep();
         return address;
     }
+    
+    /**
+     * @return the id AddressDictionary has given this address.
+     */
+    public int getId() {
+        return id;
+    }
         
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return id == this.id;
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return MemberDelta.none();
+    }
+    
     @Override
     public String toString() {
         checkRep();
@@ -75,44 +117,27 @@ public class EmailAddress implements ListExpression {
     @Override 
     public int hashCode() {
         checkRep();
-        return address.hashCode();
+        return id;
     }
 
     @Override 
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
+        if (obj instanceof StoredDefinition)
+            return equals(((StoredDefinition) obj).resolve());
         if (obj == null)
             return false;
         if (getClass() != obj.getClass())
             return false;
         EmailAddress other = (EmailAddress) obj;
-        return other.address.equals(this.address);
-    }
-
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        checkRep();
-        return new ArrayList<>(); 
-    }
-
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        checkRep();
-        return new ArrayList<>();
+        // ids are unique per address, so there is no need to compare the strings
+        return other.id == this.id;
     }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        checkRep();
-        return new ArrayList<>();
-    }
-
+    
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return true;
+        return visitor.onEmailAddress(this);
     }
-
 }
@@ -1,10 +1,6 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * List class represents and empty ListExpression
@@ -37,9 +33,21 @@ public class EmptyExpression implements ListExpression {
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
         checkRep();
-        return new HashSet<>();
+        return MemberSet.empty();
+    }
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return false;
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return MemberDelta.none();
     }
     
     @Override
@@ -50,6 +58,9 @@ public class EmptyExpression implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // any two empty expressions are equal
         if (that instanceof EmptyExpression) {
             return true;
@@ -70,27 +81,8 @@ public class EmptyExpression implements ListExpression {
     }
     
     @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        checkRep();
-        return new ArrayList<>();
-    }
-    
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        checkRep();
-        return new ArrayList<>();
-    }
-    
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        checkRep();
-        return new ArrayList<>();
-    }
-
-    @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return true;
+        return visitor.onEmptyExpression(this);
     }
 }
@@ -0,0 +1,123 @@
+package norn;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Shared, bounded pool of threads for evaluating independent parts of list expressions in parallel,
+ * such as the two sides of a pipe.
+ * Work is scheduled with work stealing, so work nested inside other work (like pipes inside pipes) doesn't need
+ * threads of its own.
+ */
+public class EvaluationPool {
+    // Note: AF, RI, SRE, Thread safety all for the class, since it only has static members.
+    // AF(POOL) = the pool that runs all parallel evaluation on the threads of POOL
+    // RI:
+    //     true
+    // SRE:
+    //     POOL is private and never returned
+    // Thread safety:
+    //     ForkJoinPool is threadsafe, and each task's result is only read after joining it,
+    //     which makes everything the task did visible to the reader.
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * A piece of work that may find that an expression is invalid.
+     * @param <T> the type of the result of the work
+     */
+    @FunctionalInterface
+    public interface Work<T> {
+        /**
+         * @return the result of the work
+         * @throws InvalidExpressionException if the work finds an expression is invalid
+         */
+        public T compute() throws InvalidExpressionException;
+    }
+
+    private EvaluationPool() {
+        throw new AssertionError("should never be instantiated");
+    }
+
+    /**
+     * Runs two pieces of work in parallel on the shared pool.
+     * If either fails, the other is cancelled if it has not started yet, and the failure is thrown.
+     * @param <T> the type of the results of the work
+     * @param left the first piece of work
+     * @param right the second piece of work
+     * @return the results of left and right, in that order
+     * @throws InvalidExpressionException if either piece of work throws it
+     */
+    public static <T> List<T> inParallel(Work<T> left, Work<T> right) throws InvalidExpressionException {
+        try {
+            return invokeBoth(new Task<>(left), new Task<>(right));
+        } catch (RuntimeException e) {
+            // the pool may rethrow a copy of the exception, so look for the original along the causes
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof InvalidExpressionException) {
+                    throw (InvalidExpressionException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs two pieces of work that can't fail in parallel on the shared pool.
+     * @param <T> the type of the results of the work
+     * @param left the first piece of work
+     * @param right the second piece of work
+     * @return the results of left and right, in that order
+     */
+    public static <T> List<T> bothOf(Supplier<T> left, Supplier<T> right) {
+        return invokeBoth(new Task<>(left::get), new Task<>(right::get));
+    }
+
+    /**
+     * @param left a task
+     * @param right another task
+     * @return the results of left and right, once both have completed normally
+     */
+    private static <T> List<T> invokeBoth(Task<T> left, Task<T> right) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            // already on a pool thread, so run here and let idle threads steal the other side
+            ForkJoinTask.invokeAll(left, right);
+        } else {
+            POOL.invoke(new RecursiveTask<Void>() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected Void compute() {
+                    invokeAll(left, right);
+                    return null;
+                }
+            });
+        }
+        return List.of(left.getRawResult(), right.getRawResult());
+    }
+
+    /**
+     * Task running a piece of work, which completes abnormally if the work fails so that its sibling is cancelled.
+     */
+    private static class Task<T> extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+        private final transient Work<T> work;
+
+        private Task(Work<T> work) {
+            this.work = work;
+        }
+
+        @Override
+        protected T compute() {
+            try {
+                return work.compute();
+            } catch (InvalidExpressionException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+}
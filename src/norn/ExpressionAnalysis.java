@@ -0,0 +1,591 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable result of analyzing a list expression against a set of definitions: which lists it depends on,
+ * which lists it references and defines, and whether all of its pipes may be evaluated in parallel.
+ *
+ * The analysis is done in a single pass over the expression and the definitions it reaches, and the analysis of each
+ * list name's definition is done at most once per pass, however many times the list is referenced.
+ */
+public class ExpressionAnalysis {
+    // AF(dependentListNames, referencedLists, definedLists, noForbiddenPipes) = the analysis of an expression where
+    //     dependentListNames are the lists that contribute to its members, in order of first inclusion from left to
+    //     right, referencedLists are the lists referenced or defined anywhere in it or in the definitions it reaches,
+    //     definedLists are the lists it may define, and noForbiddenPipes is whether every pipe in it or in the
+    //     definitions it reaches has sides that can be safely evaluated in parallel
+    // RI:
+    //     dependentListNames has no duplicates
+    //     referencedLists contains every name in dependentListNames
+    // SRE:
+    //     all fields are private and final, and the collections are unmodifiable copies
+    // Thread safety:
+    //     ExpressionAnalysis is immutable.
+
+    private static final ExpressionAnalysis NOTHING =
+            new ExpressionAnalysis(Collections.emptyList(), Collections.emptySet(), Collections.emptySet(), true);
+
+    private final List<String> dependentListNames;
+    private final Set<String> referencedLists;
+    private final Set<String> definedLists;
+    private final boolean noForbiddenPipes;
+
+    private ExpressionAnalysis(Collection<String> dependentListNames, Set<String> referencedLists,
+            Set<String> definedLists, boolean noForbiddenPipes) {
+        this.dependentListNames = Collections.unmodifiableList(new ArrayList<>(dependentListNames));
+        this.referencedLists = Collections.unmodifiableSet(referencedLists);
+        this.definedLists = Collections.unmodifiableSet(definedLists);
+        this.noForbiddenPipes = noForbiddenPipes;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert new HashSet<>(dependentListNames).size() == dependentListNames.size();
+        assert referencedLists.containsAll(dependentListNames);
+    }
+
+    /**
+     * Analyzes a list expression.
+     * Requires that definitions is a threadsafe data type.
+     * @param expression the expression to analyze, which must have had its edits removed
+     * @param definitions the definitions to expand list names with
+     * @return the analysis of expression
+     * @throws InvalidExpressionException if expression reaches a circular definition
+     */
+    public static ExpressionAnalysis analyze(ListExpression expression, Map<String, ListExpression> definitions)
+            throws InvalidExpressionException {
+        final Analyzer analyzer = new Analyzer(definitions, false);
+        final ExpressionAnalysis analysis = expression.accept(analyzer);
+        if (analyzer.circular != null) {
+            throw new InvalidExpressionException("Circular definition found involving list name " + analyzer.circular);
+        }
+        return analysis;
+    }
+
+    /**
+     * Checks that every pipe in an expression can have its sides evaluated in parallel, before removing its edits.
+     * Each pipe is checked against the definitions as they will be when removing edits reaches it, before the edits
+     * of either of its sides are removed, so lists the expression defines before a pipe are expanded to their new
+     * definitions there, but lists defined inside the pipe are not.
+     * Circular definitions are not reported, since they are found by analyze() once the edits are removed.
+     * Requires that definitions is a threadsafe data type.
+     * @param expression the expression to check, with its edits
+     * @param definitions the definitions before expression
+     * @return true if and only if expression has no pipes whose sides may not be evaluated in parallel
+     */
+    public static boolean noForbiddenPipes(ListExpression expression, Map<String, ListExpression> definitions) {
+        if (!expression.accept(new DefinitionFinder(false, true))) {
+            return true;
+        }
+        return expression.accept(new Analyzer(definitions, true)).noForbiddenPipes;
+    }
+
+    /**
+     * Finds the list names an expression reads, without expanding any list names. A name that the expression only
+     * defines is not read, since evaluating a definition's members only evaluates its value.
+     * @param expression a list expression
+     * @return the list names that appear in expression other than as the name being defined by a list definition
+     */
+    public static Set<String> readLists(ListExpression expression) {
+        final Set<String> names = new HashSet<>();
+        expression.accept(new ReadFinder(names));
+        return names;
+    }
+
+    /**
+     * Checks whether evaluating an expression could change any definitions, without expanding any list names.
+     * @param expression a list expression
+     * @return true if and only if expression contains a list definition
+     */
+    public static boolean hasDefinitions(ListExpression expression) {
+        return expression.accept(new DefinitionFinder(true, false));
+    }
+
+    /**
+     * Checks whether an expression could need analyzing before evaluating it against definitions that are known to
+     * have no circular definitions, without expanding any list names.
+     * @param expression a list expression
+     * @return true if and only if expression contains a list definition or a pipe
+     */
+    public static boolean hasDefinitionsOrPipes(ListExpression expression) {
+        return expression.accept(new DefinitionFinder(true, true));
+    }
+
+    /**
+     * Returns the list names that contribute to the final set of email addresses of the expression.
+     * List names are in order of first inclusion from left to right, and each is included once.
+     * @return an unmodifiable list of the list names the expression depends on
+     */
+    public List<String> getDependentListNames() {
+        return dependentListNames;
+    }
+
+    /**
+     * @return an unmodifiable set of all list names either referenced or defined somewhere in the expression,
+     *         or in the definitions of the lists it references
+     */
+    public Set<String> getReferencedLists() {
+        return referencedLists;
+    }
+
+    /**
+     * @return an unmodifiable set of all list names that evaluating the expression may define
+     */
+    public Set<String> getDefinedLists() {
+        return definedLists;
+    }
+
+    /**
+     * @return whether the expression does not contain any forbidden pipes, as defined in the project spec
+     */
+    public boolean noForbiddenPipes() {
+        return noForbiddenPipes;
+    }
+
+    /**
+     * @param parts the analyses of the parts of an expression, in order
+     * @param dependent the analyses among parts whose lists contribute to the expression's members, in order
+     * @param noForbiddenPipes whether the expression itself has no forbidden pipes, ignoring its parts
+     * @return the analysis of the whole expression
+     */
+    private static ExpressionAnalysis combine(List<ExpressionAnalysis> parts, List<ExpressionAnalysis> dependent,
+            boolean noForbiddenPipes) {
+        final Set<String> dependentListNames = new LinkedHashSet<>();
+        for (ExpressionAnalysis part: dependent) {
+            dependentListNames.addAll(part.dependentListNames);
+        }
+        final Set<String> referenced = new HashSet<>();
+        final Set<String> defined = new HashSet<>();
+        boolean legal = noForbiddenPipes;
+        for (ExpressionAnalysis part: parts) {
+            referenced.addAll(part.referencedLists);
+            defined.addAll(part.definedLists);
+            legal = legal && part.noForbiddenPipes;
+        }
+        return new ExpressionAnalysis(dependentListNames, referenced, defined, legal);
+    }
+
+    /**
+     * Mutable visitor that analyzes the parts of one expression, remembering the analysis of each definition it
+     * expands.
+     * A sequential analyzer also follows the definitions the expression makes, in the order removing its edits makes
+     * them, so each pipe is checked against the definitions as they are when removing edits reaches it. It checks a
+     * pipe's sides with a frozen analyzer, which sees the same definitions but makes none, since the edits of neither
+     * side have been removed when the pipe is checked.
+     *
+     * Pipes that are sides of other pipes are checked together: every side of a tree of pipes must be independent of
+     * every other, whichever way the tree nests, so the sides are checked against the lists of the sides before them,
+     * without building the lists of each pipe in the tree.
+     */
+    private static class Analyzer implements ListExpression.Visitor<ExpressionAnalysis> {
+        // AF(definitions, sequential, made, analyzed, expanding, circular, frozen) = a pass over definitions,
+        //     overridden by made, where made.get(n) is the definition of n made by the part of the expression passed so
+        //     far if the pass is sequential, analyzed.get(n) is the analysis of the definition of n, expanding are the
+        //     list names whose definitions are being analyzed, outermost first, circular is a list name found to have a
+        //     circular definition, or null if none was, and frozen analyzes parts against the same definitions without
+        //     making any, or is null if the pass is not sequential
+        // RI:
+        //     analyzed and expanding have no keys in common
+        //     made is empty unless sequential or shared with a sequential analyzer
+        //     frozen != null iff sequential, and frozen shares definitions, made and analyzed with this
+        // Thread safety:
+        //     not threadsafe, an Analyzer is confined to the thread that called analyze() or noForbiddenPipes()
+
+        private final Map<String, ListExpression> definitions;
+        private final boolean sequential;
+        private final Map<String, ListExpression> made;
+        private final Map<String, ExpressionAnalysis> analyzed;
+        private final Set<String> expanding = new HashSet<>();
+        private String circular = null;
+        private final Analyzer frozen;
+
+        private Analyzer(Map<String, ListExpression> definitions, boolean sequential) {
+            this(definitions, sequential, new HashMap<>(), new HashMap<>());
+        }
+
+        private Analyzer(Map<String, ListExpression> definitions, boolean sequential, Map<String, ListExpression> made,
+                Map<String, ExpressionAnalysis> analyzed) {
+            this.definitions = definitions;
+            this.sequential = sequential;
+            this.made = made;
+            this.analyzed = analyzed;
+            this.frozen = sequential ? new Analyzer(definitions, false, made, analyzed) : null;
+        }
+
+        /**
+         * @param listname a list name
+         * @return the definition of listname at this point of the pass, or null if it has none
+         */
+        private ListExpression definitionOf(String listname) {
+            final ListExpression definition = made.get(listname);
+            return definition != null ? definition : definitions.get(listname);
+        }
+
+        /**
+         * Makes a definition the way removing edits does, and forgets the analyses that depend on it.
+         * @param listname a list name being defined by the expression itself, not by a definition it reaches
+         * @param value the value it is defined as, with its edits
+         */
+        private void define(String listname, ListExpression value) {
+            final ListExpression previous = definitionOf(listname);
+            made.put(listname, value.accept(new SelfReferences(listname,
+                    StoredDefinition.resolve(previous != null ? previous : ExpressionFactory.empty()))));
+            analyzed.remove(listname);
+            analyzed.values().removeIf(analysis -> analysis.referencedLists.contains(listname));
+        }
+
+        /**
+         * @param listname a defined list name
+         * @param definition the definition of listname
+         * @return the analysis of definition
+         */
+        private ExpressionAnalysis analyzeDefinition(String listname, ListExpression definition) {
+            final ExpressionAnalysis known = analyzed.get(listname);
+            if (known != null) {
+                return known;
+            }
+            if (expanding.contains(listname)) {
+                // the rest of the pass is only used to report this, so what is returned here does not matter
+                if (circular == null) {
+                    circular = listname;
+                }
+                return NOTHING;
+            }
+            expanding.add(listname);
+            final ExpressionAnalysis analysis = definition.accept(this);
+            expanding.remove(listname);
+            if (circular == null) {
+                // once a cycle is found, analyses may be missing the lists around it, so they are not remembered
+                analyzed.put(listname, analysis);
+            }
+            return analysis;
+        }
+
+        @Override
+        public ExpressionAnalysis onEmailAddress(EmailAddress address) {
+            return NOTHING;
+        }
+
+        @Override
+        public ExpressionAnalysis onEmptyExpression(EmptyExpression empty) {
+            return NOTHING;
+        }
+
+        @Override
+        public ExpressionAnalysis onListname(Listname listname) {
+            final String name = listname.getListname();
+            final ListExpression definition = definitionOf(name);
+            final ExpressionAnalysis value = definition == null ? NOTHING : analyzeDefinition(name, definition);
+            final Set<String> dependentListNames = new LinkedHashSet<>();
+            dependentListNames.add(name);
+            dependentListNames.addAll(value.dependentListNames);
+            final Set<String> referenced = new HashSet<>(value.referencedLists);
+            referenced.add(name);
+            // anything the definition touches counts as defined here, so a pipe may not change it on the other side
+            return new ExpressionAnalysis(dependentListNames, referenced, new HashSet<>(value.referencedLists),
+                    value.noForbiddenPipes);
+        }
+
+        @Override
+        public ExpressionAnalysis onListDefinition(ListDefinition definition) {
+            final ExpressionAnalysis value = definition.getValue().accept(this);
+            final Set<String> referenced = new HashSet<>(value.referencedLists);
+            referenced.add(definition.getListname());
+            final Set<String> defined = new HashSet<>(value.definedLists);
+            defined.add(definition.getListname());
+            // definitions reached through list names are not being made here, only the expression's own ones are
+            if (sequential && expanding.isEmpty()) {
+                define(definition.getListname(), definition.getValue());
+            }
+            return new ExpressionAnalysis(value.dependentListNames, referenced, defined, value.noForbiddenPipes);
+        }
+
+        @Override
+        public ExpressionAnalysis onPipe(Pipe pipe) {
+            final List<ListExpression> sides = sides(pipe);
+            // the pipes are checked before any side's edits are removed, and each side is then checked as the
+            // definitions are when removing edits reaches it
+            final List<ExpressionAnalysis> checked = sequential ? frozen.analyzeAll(sides) : null;
+            final List<ExpressionAnalysis> parts = analyzeAll(sides);
+            final List<ExpressionAnalysis> before = sequential ? checked : parts;
+            final Set<String> referenced = new HashSet<>();
+            final Set<String> defined = new HashSet<>();
+            boolean legal = true;
+            for (int i = 0; i < sides.size(); i++) {
+                final ExpressionAnalysis side = before.get(i);
+                legal = legal && parts.get(i).noForbiddenPipes
+                        && Collections.disjoint(referenced, side.definedLists)
+                        && Collections.disjoint(side.referencedLists, defined);
+                referenced.addAll(side.referencedLists);
+                defined.addAll(side.definedLists);
+            }
+            return new ExpressionAnalysis(List.of(), referenced, defined, legal);
+        }
+
+        /**
+         * @param pipe a pipe
+         * @return the expressions that are not pipes and are sides of pipe or of the pipes among its sides,
+         *         from left to right
+         */
+        private static List<ListExpression> sides(Pipe pipe) {
+            final List<ListExpression> sides = new ArrayList<>();
+            // an explicit stack, since a long chain of pipes nests as deep as it is long
+            final Deque<ListExpression> stack = new ArrayDeque<>();
+            stack.push(pipe);
+            while (!stack.isEmpty()) {
+                final ListExpression e = stack.pop();
+                if (e instanceof Pipe) {
+                    stack.push(((Pipe) e).getRight());
+                    stack.push(((Pipe) e).getLeft());
+                } else {
+                    sides.add(e);
+                }
+            }
+            return sides;
+        }
+
+        @Override
+        public ExpressionAnalysis onSequence(Sequence sequence) {
+            final List<ExpressionAnalysis> parts = analyzeAll(sequence.getElements());
+            return combine(parts, List.of(parts.get(parts.size() - 1)), true);
+        }
+
+        @Override
+        public ExpressionAnalysis onSetUnion(SetUnion union) {
+            final List<ExpressionAnalysis> parts = analyzeAll(union.getElements());
+            return combine(parts, parts, true);
+        }
+
+        @Override
+        public ExpressionAnalysis onSetIntersection(SetIntersection intersection) {
+            final List<ExpressionAnalysis> parts =
+                    List.of(intersection.getLeft().accept(this), intersection.getRight().accept(this));
+            return combine(parts, parts, true);
+        }
+
+        @Override
+        public ExpressionAnalysis onSetDifference(SetDifference difference) {
+            final List<ExpressionAnalysis> parts =
+                    List.of(difference.getLeft().accept(this), difference.getRight().accept(this));
+            return combine(parts, parts, true);
+        }
+
+        /**
+         * @param expressions the expressions to analyze
+         * @return the analysis of each expression, in the same order
+         */
+        private List<ExpressionAnalysis> analyzeAll(List<ListExpression> expressions) {
+            final List<ExpressionAnalysis> parts = new ArrayList<>();
+            for (ListExpression e: expressions) {
+                parts.add(e.accept(this));
+            }
+            return parts;
+        }
+    }
+
+    /**
+     * Immutable visitor that replaces the list names that removing edits would replace with a list's previous
+     * definition: those that name the list being defined, outside of any definition of another list.
+     */
+    private static class SelfReferences implements ListExpression.Visitor<ListExpression> {
+        private final String listname;
+        private final ListExpression previous;
+
+        private SelfReferences(String listname, ListExpression previous) {
+            this.listname = listname;
+            this.previous = previous;
+        }
+
+        @Override
+        public ListExpression onEmailAddress(EmailAddress address) {
+            return address;
+        }
+
+        @Override
+        public ListExpression onEmptyExpression(EmptyExpression empty) {
+            return empty;
+        }
+
+        @Override
+        public ListExpression onListname(Listname name) {
+            return name.getListname().equals(listname) ? previous : name;
+        }
+
+        @Override
+        public ListExpression onListDefinition(ListDefinition definition) {
+            return definition;
+        }
+
+        @Override
+        public ListExpression onPipe(Pipe pipe) {
+            return ExpressionFactory.pipe(pipe.getLeft().accept(this), pipe.getRight().accept(this));
+        }
+
+        @Override
+        public ListExpression onSequence(Sequence sequence) {
+            return ExpressionFactory.sequence(replaceAll(sequence.getElements()));
+        }
+
+        @Override
+        public ListExpression onSetUnion(SetUnion union) {
+            return ExpressionFactory.union(replaceAll(union.getElements()));
+        }
+
+        @Override
+        public ListExpression onSetIntersection(SetIntersection intersection) {
+            return ExpressionFactory.intersection(intersection.getLeft().accept(this),
+                    intersection.getRight().accept(this));
+        }
+
+        @Override
+        public ListExpression onSetDifference(SetDifference difference) {
+            return ExpressionFactory.difference(difference.getLeft().accept(this), difference.getRight().accept(this));
+        }
+
+        /**
+         * @param expressions the expressions to replace list names in
+         * @return the replaced expressions, in the same order
+         */
+        private List<ListExpression> replaceAll(List<ListExpression> expressions) {
+            final List<ListExpression> replaced = new ArrayList<>();
+            for (ListExpression e: expressions) {
+                replaced.add(e.accept(this));
+            }
+            return replaced;
+        }
+    }
+
+    /**
+     * Visitor that adds the list names an expression reads to a set.
+     */
+    private static class ReadFinder implements ListExpression.Visitor<Void> {
+        private final Set<String> names;
+
+        private ReadFinder(Set<String> names) {
+            this.names = names;
+        }
+
+        @Override
+        public Void onEmailAddress(EmailAddress address) {
+            return null;
+        }
+
+        @Override
+        public Void onEmptyExpression(EmptyExpression empty) {
+            return null;
+        }
+
+        @Override
+        public Void onListname(Listname listname) {
+            names.add(listname.getListname());
+            return null;
+        }
+
+        @Override
+        public Void onListDefinition(ListDefinition definition) {
+            return definition.getValue().accept(this);
+        }
+
+        @Override
+        public Void onPipe(Pipe pipe) {
+            pipe.getLeft().accept(this);
+            return pipe.getRight().accept(this);
+        }
+
+        @Override
+        public Void onSequence(Sequence sequence) {
+            sequence.getElements().forEach(e -> e.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void onSetUnion(SetUnion union) {
+            union.getElements().forEach(e -> e.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void onSetIntersection(SetIntersection intersection) {
+            intersection.getLeft().accept(this);
+            return intersection.getRight().accept(this);
+        }
+
+        @Override
+        public Void onSetDifference(SetDifference difference) {
+            difference.getLeft().accept(this);
+            return difference.getRight().accept(this);
+        }
+    }
+
+    /**
+     * Immutable visitor that finds whether an expression contains a list definition, a pipe, or either.
+     */
+    private static class DefinitionFinder implements ListExpression.Visitor<Boolean> {
+        private final boolean findDefinitions;
+        private final boolean findPipes;
+
+        private DefinitionFinder(boolean findDefinitions, boolean findPipes) {
+            this.findDefinitions = findDefinitions;
+            this.findPipes = findPipes;
+        }
+
+        @Override
+        public Boolean onEmailAddress(EmailAddress address) {
+            return false;
+        }
+
+        @Override
+        public Boolean onEmptyExpression(EmptyExpression empty) {
+            return false;
+        }
+
+        @Override
+        public Boolean onListname(Listname listname) {
+            return false;
+        }
+
+        @Override
+        public Boolean onListDefinition(ListDefinition definition) {
+            return findDefinitions || definition.getValue().accept(this);
+        }
+
+        @Override
+        public Boolean onPipe(Pipe pipe) {
+            return findPipes || pipe.getLeft().accept(this) || pipe.getRight().accept(this);
+        }
+
+        @Override
+        public Boolean onSequence(Sequence sequence) {
+            return sequence.getElements().stream().anyMatch(e -> e.accept(this));
+        }
+
+        @Override
+        public Boolean onSetUnion(SetUnion union) {
+            return union.getElements().stream().anyMatch(e -> e.accept(this));
+        }
+
+        @Override
+        public Boolean onSetIntersection(SetIntersection intersection) {
+            return intersection.getLeft().accept(this) || intersection.getRight().accept(this);
+        }
+
+        @Override
+        public Boolean onSetDifference(SetDifference difference) {
+            return difference.getLeft().accept(this) || difference.getRight().accept(this);
+        }
+    }
+}
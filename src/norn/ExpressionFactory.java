@@ -0,0 +1,134 @@
+package norn;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes list expressions, hash-consed so that all structurally-equal expressions made here are the same object.
+ * Expressions built only from parts made here share every identical subtree, which keeps large sets of definitions
+ * small, and makes equals() on them an identity check in the common case.
+ * Expressions are only held weakly, so ones that are no longer used elsewhere can still be garbage collected.
+ */
+public class ExpressionFactory {
+    // Note: AF, RI, SRE, Thread safety all for the class, since it only has static members.
+    // AF(interned, collected) = the factory where k.get() is the canonical expression structurally equal to e,
+    //     for every expression e made here that is still reachable, and k the key in interned equal to e
+    // RI:
+    //     for every k in interned.keySet(), interned.get(k) is k
+    //     every key in interned whose expression has been collected is in collected, or about to be put there
+    // SRE:
+    //     interned and collected are private and never returned, and all expressions are immutable,
+    //     so sharing them is safe
+    // Thread safety:
+    //     interned is a ConcurrentHashMap and collected is a ReferenceQueue, which are both threadsafe.
+    //     A key is only ever added with putIfAbsent, so two threads interning equal expressions agree on one of them,
+    //     and a key whose expression was collected is never equal to a live key, so it is only ever removed.
+
+    private static final Map<WeakExpressionKey, WeakExpressionKey> interned = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ListExpression> collected = new ReferenceQueue<>();
+    private static final EmptyExpression EMPTY = new EmptyExpression();
+
+    private ExpressionFactory() {
+        throw new AssertionError("should never be instantiated");
+    }
+
+    /**
+     * @param address an email address, in any case
+     * @return the canonical expression for address
+     */
+    public static EmailAddress emailAddress(String address) {
+        // addresses are already canonical, since AddressDictionary hands out one instance per address
+        return AddressDictionary.intern(address);
+    }
+
+    /**
+     * @return the canonical empty expression
+     */
+    public static EmptyExpression empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param listname the name of a list, in any case
+     * @return the canonical expression for listname
+     */
+    public static Listname listname(String listname) {
+        return intern(new Listname(listname));
+    }
+
+    /**
+     * @param listname the name of the list being defined, in any case
+     * @param value the expression listname is defined to be
+     * @return the canonical expression defining listname to be value
+     */
+    public static ListDefinition definition(String listname, ListExpression value) {
+        return intern(new ListDefinition(listname, value));
+    }
+
+    /**
+     * @param left the expression to the left of the | operator
+     * @param right the expression to the right of the | operator
+     * @return the canonical expression for left | right
+     */
+    public static Pipe pipe(ListExpression left, ListExpression right) {
+        return intern(new Pipe(left, right));
+    }
+
+    /**
+     * @param elements the expressions in the sequence, at least 2
+     * @return the canonical sequence of elements
+     */
+    public static Sequence sequence(List<ListExpression> elements) {
+        return intern(new Sequence(elements));
+    }
+
+    /**
+     * @param elements the expressions to union together, at least 2
+     * @return the canonical union of elements
+     */
+    public static SetUnion union(List<ListExpression> elements) {
+        return intern(new SetUnion(elements));
+    }
+
+    /**
+     * @param left the expression to the left of the * operator
+     * @param right the expression to the right of the * operator
+     * @return the canonical expression for left * right
+     */
+    public static SetIntersection intersection(ListExpression left, ListExpression right) {
+        return intern(new SetIntersection(left, right));
+    }
+
+    /**
+     * @param left the expression to the left of the ! operator
+     * @param right the expression to the right of the ! operator
+     * @return the canonical expression for left ! right
+     */
+    public static SetDifference difference(ListExpression left, ListExpression right) {
+        return intern(new SetDifference(left, right));
+    }
+
+    /**
+     * @param expression a newly made expression
+     * @return the canonical expression structurally equal to expression, which is expression itself if there was none
+     */
+    @SuppressWarnings("unchecked") // structurally-equal expressions are always the same variant
+    private static <T extends ListExpression> T intern(T expression) {
+        WeakExpressionKey.expunge(interned, collected);
+        final WeakExpressionKey key = new WeakExpressionKey(expression, collected);
+        while (true) {
+            final WeakExpressionKey existing = interned.putIfAbsent(key, key);
+            if (existing == null) {
+                return expression;
+            }
+            final ListExpression canonical = existing.get();
+            if (canonical != null) {
+                return (T) canonical;
+            }
+            // collected after it was found equal, so it can't be equal to anything any more
+            interned.remove(existing, existing);
+        }
+    }
+}
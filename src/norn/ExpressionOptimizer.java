@@ -0,0 +1,250 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites a list expression, once its edits are removed, into one with the same members that is cheaper to evaluate.
+ *
+ * Nested unions are flattened into one, with duplicate and empty elements dropped. Chains of intersections are
+ * flattened too, and rebuilt with the operands in increasing order of estimated size, so every intermediate set is
+ * at most as big as the smallest operand. Differences are merged (a ! b ! c becomes a ! (b, c)) and pushed into
+ * the smallest operand of an intersection they subtract from. Empty expressions and undefined list names
+ * short-circuit the operators around them, and x * x, x , x and x ! x are simplified.
+ *
+ * The result only has the same members as the original; it doesn't define any lists, so it must not be used in
+ * place of the original for anything but evaluating members.
+ */
+public class ExpressionOptimizer implements ListExpression.Visitor<ListExpression> {
+    // AF(definitions) = an optimization of expressions that will be evaluated against definitions
+    // RI:
+    //     true
+    // SRE:
+    //     definitions is private and final, and only read
+    // Thread safety:
+    //     the optimizer only reads definitions, which is required to be threadsafe, and expressions are immutable.
+
+    /** estimated size of a list whose members aren't known without evaluating it */
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private final Map<String, ListExpression> definitions;
+
+    private ExpressionOptimizer(Map<String, ListExpression> definitions) {
+        this.definitions = definitions;
+    }
+
+    /**
+     * Rewrites an expression into a cheaper one with the same members.
+     * Requires that definitions is a threadsafe data type.
+     * @param expression an expression, which must have had its edits removed
+     * @param definitions the definitions expression will be evaluated with
+     * @return an expression with no definitions, pipes or sequences whose members against definitions are the same
+     *         as those of expression
+     */
+    public static ListExpression optimize(ListExpression expression, Map<String, ListExpression> definitions) {
+        return expression.accept(new ExpressionOptimizer(definitions));
+    }
+
+    @Override
+    public ListExpression onEmailAddress(EmailAddress address) {
+        return address;
+    }
+
+    @Override
+    public ListExpression onEmptyExpression(EmptyExpression empty) {
+        return empty;
+    }
+
+    @Override
+    public ListExpression onListname(Listname listname) {
+        return definitions.containsKey(listname.getListname()) ? listname : ExpressionFactory.empty();
+    }
+
+    @Override
+    public ListExpression onListDefinition(ListDefinition definition) {
+        return definition.getValue().accept(this);
+    }
+
+    @Override
+    public ListExpression onPipe(Pipe pipe) {
+        return ExpressionFactory.empty();
+    }
+
+    @Override
+    public ListExpression onSequence(Sequence sequence) {
+        final List<ListExpression> elements = sequence.getElements();
+        return elements.get(elements.size() - 1).accept(this);
+    }
+
+    @Override
+    public ListExpression onSetUnion(SetUnion union) {
+        final List<ListExpression> elements = new ArrayList<>();
+        for (ListExpression e: union.getElements()) {
+            elements.add(e.accept(this));
+        }
+        return unionOf(elements);
+    }
+
+    @Override
+    public ListExpression onSetIntersection(SetIntersection intersection) {
+        final List<ListExpression> operands = new ArrayList<>();
+        operands.addAll(operandsOf(intersection.getLeft().accept(this)));
+        operands.addAll(operandsOf(intersection.getRight().accept(this)));
+        return intersectionOf(operands);
+    }
+
+    @Override
+    public ListExpression onSetDifference(SetDifference difference) {
+        return differenceOf(difference.getLeft().accept(this), difference.getRight().accept(this));
+    }
+
+    /**
+     * @param elements optimized expressions
+     * @return an optimized expression for the union of elements
+     */
+    private static ListExpression unionOf(List<ListExpression> elements) {
+        // hash-consing makes equal elements cheap to find
+        final Set<ListExpression> flattened = new LinkedHashSet<>();
+        for (ListExpression e: elements) {
+            if (e instanceof SetUnion) {
+                flattened.addAll(((SetUnion) e).getElements());
+            } else if (!(e instanceof EmptyExpression)) {
+                flattened.add(e);
+            }
+        }
+        if (flattened.isEmpty()) {
+            return ExpressionFactory.empty();
+        } else if (flattened.size() == 1) {
+            return flattened.iterator().next();
+        }
+        return ExpressionFactory.union(new ArrayList<>(flattened));
+    }
+
+    /**
+     * @param expression an optimized expression
+     * @return the operands of expression if it is a chain of intersections, or else just expression
+     */
+    private static List<ListExpression> operandsOf(ListExpression expression) {
+        if (!(expression instanceof SetIntersection)) {
+            return List.of(expression);
+        }
+        final SetIntersection intersection = (SetIntersection) expression;
+        final List<ListExpression> operands = new ArrayList<>(operandsOf(intersection.getLeft()));
+        operands.addAll(operandsOf(intersection.getRight()));
+        return operands;
+    }
+
+    /**
+     * @param operands at least one optimized expression, none of which is an intersection
+     * @return an optimized expression for the intersection of operands
+     */
+    private ListExpression intersectionOf(List<ListExpression> operands) {
+        final List<ListExpression> distinct = new ArrayList<>(new LinkedHashSet<>(operands));
+        if (distinct.stream().anyMatch(e -> e instanceof EmptyExpression)) {
+            return ExpressionFactory.empty();
+        }
+        // the sort is stable, so operands of unknown size stay in the order they were written
+        distinct.sort(Comparator.comparingLong(this::estimateSize));
+        ListExpression result = distinct.get(0);
+        for (ListExpression operand: distinct.subList(1, distinct.size())) {
+            result = ExpressionFactory.intersection(result, operand);
+        }
+        return result;
+    }
+
+    /**
+     * @param left an optimized expression
+     * @param right another optimized expression
+     * @return an optimized expression for the members of left that are not members of right
+     */
+    private ListExpression differenceOf(ListExpression left, ListExpression right) {
+        if (left instanceof EmptyExpression || left.equals(right)) {
+            return ExpressionFactory.empty();
+        } else if (right instanceof EmptyExpression) {
+            return left;
+        } else if (left instanceof SetDifference) {
+            // subtract everything at once, rather than making the set left of each difference
+            final SetDifference inner = (SetDifference) left;
+            return differenceOf(inner.getLeft(), unionOf(List.of(inner.getRight(), right)));
+        } else if (left instanceof SetIntersection) {
+            // the intersection can only be as big as its smallest operand, so subtract from that one first
+            final List<ListExpression> operands = new ArrayList<>(operandsOf(left));
+            operands.set(0, differenceOf(operands.get(0), right));
+            return intersectionOf(operands);
+        }
+        return ExpressionFactory.difference(left, right);
+    }
+
+    /**
+     * @param expression an optimized expression
+     * @return an upper bound on the number of members of expression, or UNKNOWN if working one out would take
+     *         evaluating a list
+     */
+    private long estimateSize(ListExpression expression) {
+        return expression.accept(new ListExpression.Visitor<Long>() {
+            @Override
+            public Long onEmailAddress(EmailAddress address) {
+                return 1L;
+            }
+
+            @Override
+            public Long onEmptyExpression(EmptyExpression empty) {
+                return 0L;
+            }
+
+            @Override
+            public Long onListname(Listname listname) {
+                if (definitions instanceof DefinitionMap) {
+                    final DefinitionMap map = (DefinitionMap) definitions;
+                    if (map.isCached(listname.getListname())) {
+                        return (long) map.getMembers(listname.getListname()).size();
+                    }
+                }
+                return UNKNOWN;
+            }
+
+            @Override
+            public Long onListDefinition(ListDefinition definition) {
+                return definition.getValue().accept(this);
+            }
+
+            @Override
+            public Long onPipe(Pipe pipe) {
+                return 0L;
+            }
+
+            @Override
+            public Long onSequence(Sequence sequence) {
+                final List<ListExpression> elements = sequence.getElements();
+                return elements.get(elements.size() - 1).accept(this);
+            }
+
+            @Override
+            public Long onSetUnion(SetUnion union) {
+                long total = 0;
+                for (ListExpression e: union.getElements()) {
+                    final long size = e.accept(this);
+                    total = size == UNKNOWN ? UNKNOWN : Math.min(UNKNOWN, total + size);
+                    if (total == UNKNOWN) {
+                        break;
+                    }
+                }
+                return total;
+            }
+
+            @Override
+            public Long onSetIntersection(SetIntersection intersection) {
+                return Math.min(intersection.getLeft().accept(this), intersection.getRight().accept(this));
+            }
+
+            @Override
+            public Long onSetDifference(SetDifference difference) {
+                return difference.getLeft().accept(this);
+            }
+        });
+    }
+}
@@ -1,199 +1,229 @@
 package norn;
 
-import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
-import edu.mit.eecs.parserlib.ParseTree;
-import edu.mit.eecs.parserlib.Parser;
 import edu.mit.eecs.parserlib.UnableToParseException;
 
 /**
  * Static class for parsing ListExpressions.
+ *
+ * The parser is a hand-written recursive descent over the grammar in ListExpressionGrammar.g, which builds the
+ * abstract syntax tree directly, in a single left-to-right pass with one character of lookahead. Operators that
+ * repeat (a, b, c or a * b * c) are parsed with loops, so only parentheses and nested definitions recurse.
  */
 public class ExpressionParser {
-    
-    // the nonterminals of the grammar
-    private static enum ListExpressionGrammar {
-        EXPRESSION, SEQUENCE, SETUNION, SETDIFFERENCE, SETINTERSECTION, PRIMITIVE,
-        EMAILADDRESS, EMPTYEXPRESSION, USERNAME, DOMAIN, WHITESPACE, LISTNAME, LISTDEFINITION,
-        PIPE
-    }
+    // AF(input, pos) = a parse of input, of which the first pos characters have been consumed
+    // RI:
+    //     0 <= pos <= input.length()
+    // SRE:
+    //     all fields are private; input is an immutable String
+    // Thread safety:
+    //     not threadsafe, but instances are confined to the thread that called parse()
 
-    private static Parser<ListExpressionGrammar> parser = makeParser();
-    
-    /**
-     * Compile the grammar into a parser.
-     * 
-     * @return parser for the grammar
-     * @throws RuntimeException if grammar file can't be read or has syntax errors
-     */
-    private static Parser<ListExpressionGrammar> makeParser() {
-        try {
-            // read the grammar as a file, relative to the project root.
-            final File grammarFile = new File("src/norn/ListExpressionGrammar.g");
-            return Parser.compile(grammarFile, ListExpressionGrammar.EXPRESSION);
-            
-        // Parser.compile() throws two checked exceptions.
-        // Translate these checked exceptions into unchecked RuntimeExceptions,
-        // because these failures indicate internal bugs rather than client errors
-        } catch (IOException e) {
-            throw new RuntimeException("can't read the grammar file", e);
-        } catch (UnableToParseException e) {
-            throw new RuntimeException("the grammar has a syntax error", e);
-        }
+    private final String input;
+    private int pos = 0;
+
+    private ExpressionParser(String input) {
+        this.input = input;
     }
-    
+
     /**
      * Parses an expression for email addresses.  Supports the "," , "!", and "*" operators.
      * Email addresses are defined as a username followed by a domain name, with an "@" symbol between them.
-     * 
+     *
      * Parsing is done as specified in the project specifications.
-     * Behavior is undetermined in the case of nested definitions of the same variable, such as a=(a=c).   
-     * 
+     * Behavior is undetermined in the case of nested definitions of the same variable, such as a=(a=c).
+     *
      * Usernames are defined as nonempty case-insensitive strings of letters, digits, underscores, dashes, periods, and plus signs (e.g. bitdiddle+nospam).
      * Domain name are defined as nonempty case-insensitive strings of letters, digits, underscores, dashes, and periods.
-     * 
-     * This also modifies previousDefinitions to include all new definitions in the string to parse.
-     * 
+     *
      * @param string the string we want to parse into a ListExpression
      * @return ListExpression parsed from the string.
      * @throws UnableToParseException if the string does not match the ListExpressionGrammar
      */
     public static ListExpression parse(final String string) throws UnableToParseException {
-        // parse the example into a parse tree
-        final ParseTree<ListExpressionGrammar> parseTree = parser.parse(string);
-        // display the parse tree in various ways, for debugging only
-        // System.out.println("parse tree " + parseTree);
-        // Visualizer.showInBrowser(parseTree);
-
-        // make an AST from the parse tree
-        final ListExpression expression = makeAbstractSyntaxTree(parseTree);
-        // System.out.println("AST " + expression);
-        
+        final ExpressionParser parser = new ExpressionParser(string);
+        final ListExpression expression = parser.parsePipe();
+        if (parser.pos < string.length()) {
+            throw parser.error("an operator or the end of the expression");
+        }
         return expression;
     }
-    
+
     /**
-     * Convert a parse tree into an abstract syntax tree.
-     * 
-     * This also modifies previousDefinitions to include all new definitions in the string to parse.
-     * 
-     * @param parseTree constructed according to the grammar in ListExressionGrammar.g
-     * @param previousDefinitions the definitions that we want to use when parsing the input string.
-     * @return abstract syntax tree corresponding to parseTree
+     * pipe ::= sequence ('|' sequence)*
      */
-    private static ListExpression makeAbstractSyntaxTree(final ParseTree<ListExpressionGrammar> parseTree) {
-        switch(parseTree.name()) {
-        case EXPRESSION: // expression ::= sequence;
-            {
-                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
-                return makeAbstractSyntaxTree(child);
-            }
-        case SEQUENCE:
-            {
-                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
-                ListExpression expression;
-                if (children.size() == 1) {
-                    expression = makeAbstractSyntaxTree(children.get(0));
-                } else {
-                    expression = new Sequence(children.stream()
-                            .map(c -> makeAbstractSyntaxTree(c))
-                            .collect(Collectors.toList()));
-                }
-                return expression;
-            }
-        case SETUNION:
-            {
-                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
-                ListExpression expression;
-                if (children.size() == 1) {
-                    expression = makeAbstractSyntaxTree(children.get(0));
-                } else {
-                    expression = new SetUnion(children.stream()
-                            .map(c -> makeAbstractSyntaxTree(c))
-                            .collect(Collectors.toList()));
-                }
-                return expression;
-            }
-        case SETDIFFERENCE:
-            {
-                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new SetDifference(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
-            }
-        case SETINTERSECTION:
-            {
-                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new SetIntersection(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
-            }
-        case PRIMITIVE:
-            {
-                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
-                switch(child.name()) {
-                case EMAILADDRESS:
-                    {
-                        return new EmailAddress(child.text());
-                    }
-                case EMPTYEXPRESSION:
-                    {
-                        return new EmptyExpression();
-                    }
-                case EXPRESSION:
-                    {
-                        return makeAbstractSyntaxTree(child);
-                    }
-                case LISTNAME:
-                    {
-                        if (parseTree.children().size() == 1) {
-                            return makeAbstractSyntaxTree(child);
-                        } else { // case where we have listname '=' listDefinition
-                            String listname = child.text().toLowerCase();
-                            ListExpression value = makeAbstractSyntaxTree(parseTree.children().get(1));
-                            return new ListDefinition(listname, value);
-                        }
-                    }
-                default:
-                    throw new RuntimeException("should never get here");
-                }
-            }
-        case LISTDEFINITION:
-            {
-                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
-                if (parseTree.children().size() == 1) {
-                    return makeAbstractSyntaxTree(child);
-                } else if (parseTree.children().size() == 2) {
-                    String listname = child.text().toLowerCase();
-                    ListExpression value = makeAbstractSyntaxTree(parseTree.children().get(1));
-                    return new ListDefinition(listname, value);
-                } else {
-                    throw new RuntimeException("should never have more than one child here");
-                }
+    private ListExpression parsePipe() throws UnableToParseException {
+        ListExpression expression = parseSequence();
+        while (consume('|')) {
+            expression = ExpressionFactory.pipe(expression, parseSequence());
+        }
+        return expression;
+    }
+
+    /**
+     * sequence ::= listDefinition (';' listDefinition)*
+     */
+    private ListExpression parseSequence() throws UnableToParseException {
+        final ListExpression first = parseListDefinition();
+        if (!lookingAt(';')) {
+            return first;
+        }
+        final List<ListExpression> elements = new ArrayList<>();
+        elements.add(first);
+        while (consume(';')) {
+            elements.add(parseListDefinition());
+        }
+        return ExpressionFactory.sequence(elements);
+    }
+
+    /**
+     * listDefinition ::= (listname '=' listDefinition) | setUnion
+     *
+     * The grammar also allows listname '=' listDefinition as a primitive, and a union that starts with that primitive
+     * and has no operators after it is the same definition, so definitions are only parsed in parsePrimitive().
+     */
+    private ListExpression parseListDefinition() throws UnableToParseException {
+        return parseSetUnion();
+    }
+
+    /**
+     * setUnion ::= setDifference (',' setDifference)*
+     */
+    private ListExpression parseSetUnion() throws UnableToParseException {
+        final ListExpression first = parseSetDifference();
+        if (!lookingAt(',')) {
+            return first;
+        }
+        final List<ListExpression> elements = new ArrayList<>();
+        elements.add(first);
+        while (consume(',')) {
+            elements.add(parseSetDifference());
+        }
+        return ExpressionFactory.union(elements);
+    }
+
+    /**
+     * setDifference ::= setIntersection ('!' setIntersection)*
+     */
+    private ListExpression parseSetDifference() throws UnableToParseException {
+        ListExpression expression = parseSetIntersection();
+        while (consume('!')) {
+            expression = ExpressionFactory.difference(expression, parseSetIntersection());
+        }
+        return expression;
+    }
+
+    /**
+     * setIntersection ::= primitive ('*' primitive)*
+     */
+    private ListExpression parseSetIntersection() throws UnableToParseException {
+        ListExpression expression = parsePrimitive();
+        while (consume('*')) {
+            expression = ExpressionFactory.intersection(expression, parsePrimitive());
+        }
+        return expression;
+    }
+
+    /**
+     * primitive ::= emailAddress | listname | emptyExpression | '(' expression ')' | (listname '=' listDefinition)
+     *
+     * Like the grammar, this takes whichever alternative matches the most input.
+     */
+    private ListExpression parsePrimitive() throws UnableToParseException {
+        skipWhitespace();
+        if (consume('(')) {
+            final ListExpression expression = parsePipe();
+            if (!consume(')')) {
+                throw error("')'");
             }
-        case LISTNAME:
-            {
-                return new Listname(parseTree.text());
+            return expression;
+        }
+        final int start = pos;
+        final int usernameEnd = scan(start, true);
+        if (usernameEnd > start && usernameEnd < input.length() && input.charAt(usernameEnd) == '@') {
+            final int domainEnd = scan(usernameEnd + 1, false);
+            if (domainEnd > usernameEnd + 1) {
+                pos = domainEnd;
+                return ExpressionFactory.emailAddress(input.substring(start, domainEnd));
             }
-        case PIPE:
-            {
-                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
-                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
-                for (int i = 1; i < children.size(); i++) {
-                    expression = new Pipe(expression, makeAbstractSyntaxTree(children.get(i)));
-                }
-                return expression;
+        }
+        final int listnameEnd = scan(start, false);
+        if (listnameEnd == start) {
+            return ExpressionFactory.empty();
+        }
+        pos = listnameEnd;
+        final String listname = input.substring(start, listnameEnd);
+        if (consume('=')) {
+            return ExpressionFactory.definition(listname.toLowerCase(), parseListDefinition());
+        }
+        return ExpressionFactory.listname(listname);
+    }
+
+    /**
+     * @param from index into input
+     * @param username true to scan the characters of a username, false for those of a list name or domain
+     * @return the end of the longest run of those characters in input starting at from
+     */
+    private int scan(int from, boolean username) {
+        int end = from;
+        while (end < input.length() && isNameCharacter(input.charAt(end), username)) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @param c a character
+     * @param username true for the characters of a username, false for those of a list name or domain
+     * @return true if c can be part of such a name: a letter, digit, underscore, dash or period, or for a username,
+     *         also a plus sign
+     */
+    private static boolean isNameCharacter(char c, boolean username) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '-' || c == '.' || (username && c == '+');
+    }
+
+    /**
+     * Skips any whitespace, then consumes a character if it comes next.
+     * @param c the character to consume
+     * @return true if c was consumed
+     */
+    private boolean consume(char c) {
+        if (!lookingAt(c)) {
+            return false;
+        }
+        pos++;
+        return true;
+    }
+
+    /**
+     * Skips any whitespace.
+     * @param c a character
+     * @return true if c comes next
+     */
+    private boolean lookingAt(char c) {
+        skipWhitespace();
+        return pos < input.length() && input.charAt(pos) == c;
+    }
+
+    private void skipWhitespace() {
+        while (pos < input.length()) {
+            final char c = input.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return;
             }
-        default:
-            throw new RuntimeException("should never get here");
+            pos++;
         }
     }
-    
+
+    /**
+     * @param expected what the parser expected at the current position
+     * @return an exception describing what was found there instead
+     */
+    private UnableToParseException error(String expected) {
+        final String found = pos < input.length() ? "'" + input.charAt(pos) + "'" : "the end of the expression";
+        return new UnableToParseException("expected " + expected + " at position " + pos + ", but found " + found);
+    }
 }
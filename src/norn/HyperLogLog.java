@@ -0,0 +1,156 @@
+package norn;
+
+import java.util.List;
+
+/**
+ * Immutable HyperLogLog sketch of a set of address ids, which estimates the size of the set in a fixed 4 KiB,
+ * with a standard error of about 1.6%.
+ * Sketches of two sets merge into the sketch of their union by taking the larger of each register, so the size of
+ * a union of lists can be estimated from the lists' sketches without looking at their members.
+ */
+public class HyperLogLog {
+    // AF(registers) = the sketch where byte i % 8 of registers[i / 8], counting from the lowest, is the largest rank
+    //     of the hash of any id in the set whose hash falls in bucket i, or 0 if none does
+    // RI:
+    //     registers.length == BUCKETS / 8
+    //     every register is in [0, 64 - PRECISION + 1], so the top bit of every byte is clear
+    // SRE:
+    //     registers is private and final, never returned, and never modified after construction.
+    // Thread safety:
+    //     HyperLogLog is immutable.
+
+    private static final int PRECISION = 12;
+    private static final int BUCKETS = 1 << PRECISION;
+    /** bias correction for BUCKETS >= 128, from Flajolet et al. */
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / BUCKETS);
+
+    /** INVERSE_POWERS[r] == 2^-r for every possible register value r */
+    private static final double[] INVERSE_POWERS = new double[64 - PRECISION + 2];
+    static {
+        for (int r = 0; r < INVERSE_POWERS.length; r++) {
+            INVERSE_POWERS[r] = Math.scalb(1.0, -r);
+        }
+    }
+
+    /** the top bit of every byte of a word */
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private static final HyperLogLog EMPTY = new HyperLogLog(new long[BUCKETS / 8]);
+
+    private final long[] registers;
+
+    private HyperLogLog(long[] registers) {
+        this.registers = registers;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert registers.length == BUCKETS / 8;
+    }
+
+    /**
+     * @return the sketch of the empty set
+     */
+    public static HyperLogLog empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param members a set of ids
+     * @return the sketch of members
+     */
+    public static HyperLogLog of(MemberSet members) {
+        if (members.isEmpty()) {
+            return EMPTY;
+        }
+        final long[] registers = new long[BUCKETS / 8];
+        members.forEach(id -> add(registers, id));
+        return new HyperLogLog(registers);
+    }
+
+    /**
+     * @param sketches sketches of sets
+     * @return the sketch of the union of the sets
+     */
+    public static HyperLogLog unionAll(List<HyperLogLog> sketches) {
+        if (sketches.size() == 1) {
+            return sketches.get(0);
+        }
+        final long[] registers = new long[BUCKETS / 8];
+        for (HyperLogLog sketch: sketches) {
+            final long[] other = sketch.registers;
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = max(registers[i], other[i]);
+            }
+        }
+        return new HyperLogLog(registers);
+    }
+
+    /**
+     * @param a eight registers packed into a word
+     * @param b eight more registers
+     * @return the larger of each pair of registers, packed the same way
+     */
+    private static long max(long a, long b) {
+        // with the top bits clear, each byte of (a | HIGH_BITS) - b keeps its top bit exactly where a >= b
+        final long aAtLeastB = ((a | HIGH_BITS) - b) & HIGH_BITS;
+        final long mask = (aAtLeastB >>> 7) * 0xFF;
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * @param registers the registers of a sketch, which are updated to include id
+     * @param id an address id
+     */
+    private static void add(long[] registers, int id) {
+        final long hash = mix(id);
+        final int bucket = (int) (hash >>> (64 - PRECISION));
+        // the rank is the position of the first set bit in the rest of the hash
+        final long rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        final int shift = 8 * (bucket % 8);
+        if (rank > ((registers[bucket / 8] >>> shift) & 0xFF)) {
+            registers[bucket / 8] = (registers[bucket / 8] & ~(0xFFL << shift)) | (rank << shift);
+        }
+    }
+
+    /**
+     * @param id an address id
+     * @return a 64-bit hash of id whose bits are all equally likely to be set (the finalizer of MurmurHash3)
+     */
+    private static long mix(int id) {
+        // offset first, so that id 0 doesn't hash to 0
+        long hash = (id + 0x632BE59BD9B4E019L) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return an estimate of the number of ids in the set
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (long word: registers) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                final int register = (int) ((word >>> shift) & 0xFF);
+                sum += INVERSE_POWERS[register];
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+        }
+        final double raw = ALPHA * BUCKETS * BUCKETS / sum;
+        if (raw <= 2.5 * BUCKETS && zeros > 0) {
+            // for small sets, counting the empty buckets is more accurate
+            return Math.round(BUCKETS * Math.log((double) BUCKETS / zeros));
+        }
+        return Math.round(raw);
+    }
+}
@@ -0,0 +1,657 @@
+package norn;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ * Append-only journal of the definitions stored in a DefinitionStore, kept in a data directory, so that definitions
+ * survive a restart without the whole namespace being saved after every change.
+ *
+ * The directory holds snapshots named snapshot-g.snap and journal segments named journal-g.log, for generations g.
+ * Each record in a segment is the text of an expression whose definitions were stored, or, for a snapshot file that
+ * was loaded, a reference to a copy of the file kept in the directory as loaded-n.snap, so that loading a large
+ * snapshot doesn't decode and journal every definition in it. Replaying the records in order stores the same
+ * definitions again. snapshot-g.snap holds the definitions that every segment before
+ * journal-g.log leads to, so recovery loads the newest snapshot and replays the segments from its generation on.
+ * A background compactor checkpoints the journal: it starts a new segment, and folds the earlier ones into a
+ * snapshot of the new segment's generation. It does so once the current segment passes a size, and otherwise at a
+ * fixed interval if anything was appended since the last checkpoint. The definitions it writes are an immutable
+ * snapshot of the store, so writers are only held up while the new segment is started; the snapshot itself is
+ * written on a thread of the lowest priority, at a bounded rate, and renamed into place once it is complete and has
+ * been checked to load. Copies of loaded snapshots are deleted once a snapshot includes their definitions.
+ *
+ * A record is appended to memory while the writer still holds the locks of the lists it changed, so records are
+ * in the order their changes were made, and written to the segment in groups. How a writer waits for its record
+ * depends on the Sync policy, which is the system property norn.journalSync if it is not given.
+ *
+ * On disk, a record is its length and its CRC32, as big-endian ints, then its text in UTF-8. A crash can leave a
+ * partly written record at the end of the newest segment, which recovery drops. If a group can't be written, the
+ * journal fails: nothing more is written, and every later append() and await() throws, so a record that was lost
+ * is never reported as durable, and the segment never has a hole before records that were written.
+ */
+public class Journal implements Closeable {
+    // AF(directory, store, generation, segment, pending, appended, durable) = the journal in directory of the
+    //     changes to store, whose current segment is journal-generation.log, open in segment; records 1..appended
+    //     have been appended, the ones after durable are not known to be on disk, the bytes of those not yet
+    //     written to segment are in pending, and records 1..compactedThrough are in segments before the current one;
+    //     loadsAppended are the copies of loaded snapshots referenced by records that haven't been compacted,
+    //     loadsCompacted are those referenced only by compacted records, and nextLoad is the number of the next copy;
+    //     failure is the error that stopped records from being written, after which nothing more is, or null
+    // RI:
+    //     0 <= durable <= appended
+    //     0 <= compactedThrough <= appended
+    //     segmentSize is the size of segment
+    // SRE:
+    //     all fields are private, and the channel and buffer are never returned
+    // Thread safety:
+    //     pending, appended, compactedThrough, loadsAppended, loadsCompacted, nextLoad, failure,
+    //     compactionRequested and closed are guarded by the lock on this.
+    //     segment, generation and segmentSize are guarded by flushLock, which is taken before the lock on this,
+    //     and is only held by one thread writing a group of records. durable is volatile, and only written while
+    //     holding flushLock.
+    //     The compactor starts a new segment through DefinitionStore.rotateJournal(), so no writer can be between
+    //     storing its definitions and appending its record while it does.
+
+    /**
+     * When a writer waits for its record to reach the disk.
+     */
+    public enum Sync {
+        /** a writer waits until its record is forced to disk; writers that wait at once share one force */
+        COMMIT,
+        /** records are written and forced to disk by a background thread, every SYNC_INTERVAL_MILLIS */
+        INTERVAL,
+        /** records are written by a background thread every SYNC_INTERVAL_MILLIS, and never forced to disk */
+        NONE
+    }
+
+    /** the default size of a segment that is folded into a snapshot, in bytes */
+    public static final long DEFAULT_COMPACT_BYTES = 64 << 20;
+
+    private static final Sync SYNC = Sync.valueOf(System.getProperty("norn.journalSync", "commit").toUpperCase());
+    private static final long COMPACT_BYTES = Long.getLong("norn.journalCompactBytes", DEFAULT_COMPACT_BYTES);
+    private static final long SYNC_INTERVAL_MILLIS = Long.getLong("norn.journalSyncMillis", 1000);
+
+    /** the default time between checkpoints, in milliseconds */
+    public static final long DEFAULT_CHECKPOINT_MILLIS = 5 * 60 * 1000;
+    /** the default rate at which checkpoints are written, in bytes per second */
+    public static final long DEFAULT_CHECKPOINT_RATE = 32 << 20;
+
+    private static final long CHECKPOINT_MILLIS = Long.getLong("norn.checkpointMillis", DEFAULT_CHECKPOINT_MILLIS);
+    private static final long CHECKPOINT_RATE = Long.getLong("norn.checkpointBytesPerSecond", DEFAULT_CHECKPOINT_RATE);
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOAD_PREFIX = "loaded-";
+    private static final String LOAD_SUFFIX = ".snap";
+
+    /** the start of a record that references a copy of a loaded snapshot, which no expression can start with */
+    private static final String LOAD_RECORD = "#load ";
+
+    /** the bytes before the text of a record: its length and CRC32 */
+    private static final int RECORD_HEADER = 8;
+
+    private final Path directory;
+    private final DefinitionStore store;
+    private final Sync sync;
+    private final long compactBytes;
+    private final long checkpointMillis;
+    private final long checkpointRate;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long compactedThrough = 0;
+    private List<String> loadsAppended;
+    private List<String> loadsCompacted = new ArrayList<>();
+    private int nextLoad;
+    private boolean compactionRequested = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    private final Object flushLock = new Object();
+    private FileChannel segment;
+    private int generation;
+    private long segmentSize;
+    private volatile long durable = 0;
+
+    private final Thread compactor;
+    private final Thread flusher;
+
+    /**
+     * Opens the current segment of a recovered journal, and starts its background threads.
+     */
+    private Journal(Path directory, DefinitionStore store, Sync sync, long compactBytes, long checkpointMillis,
+            long checkpointRate, int generation, List<String> loads, int nextLoad) throws IOException {
+        this.directory = directory;
+        this.store = store;
+        this.sync = sync;
+        this.compactBytes = compactBytes;
+        this.checkpointMillis = checkpointMillis;
+        this.checkpointRate = checkpointRate;
+        this.generation = generation;
+        this.loadsAppended = loads;
+        this.nextLoad = nextLoad;
+        this.segment = openSegment(generation);
+        this.segmentSize = segment.size();
+        this.compactor = new Thread(this::runCompactor, "norn-journal-compactor");
+        compactor.setDaemon(true);
+        compactor.setPriority(Thread.MIN_PRIORITY);
+        compactor.start();
+        if (sync == Sync.COMMIT) {
+            this.flusher = null;
+        } else {
+            this.flusher = new Thread(this::runFlusher, "norn-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert 0 <= durable;
+        assert 0 <= compactedThrough;
+    }
+
+    /**
+     * Recovers the definitions in a data directory into a store, and journals the store's changes from then on,
+     * configured by the system properties norn.journalSync, norn.journalCompactBytes, norn.checkpointMillis and
+     * norn.checkpointBytesPerSecond.
+     * @param directory the data directory, which is created if it doesn't exist
+     * @param store an empty store
+     * @return the journal the store now appends to
+     * @throws IOException if the directory can't be read, or a snapshot or segment other than the newest is corrupt
+     */
+    public static Journal recover(Path directory, DefinitionStore store) throws IOException {
+        return recover(directory, store, SYNC, COMPACT_BYTES, CHECKPOINT_MILLIS, CHECKPOINT_RATE);
+    }
+
+    /**
+     * Recovers the definitions in a data directory into a store, and journals the store's changes from then on.
+     * Files made obsolete by a snapshot are deleted.
+     * @param directory the data directory, which is created if it doesn't exist
+     * @param store an empty store
+     * @param sync when writers wait for their records to reach the disk
+     * @param compactBytes the size of a segment that is folded into a snapshot
+     * @param checkpointMillis the time between checkpoints, in milliseconds
+     * @param checkpointRate the rate at which checkpoints are written, in bytes per second
+     * @return the journal the store now appends to
+     * @throws IOException if the directory can't be read, or a snapshot or segment other than the newest is corrupt
+     */
+    public static Journal recover(Path directory, DefinitionStore store, Sync sync, long compactBytes,
+            long checkpointMillis, long checkpointRate) throws IOException {
+        Files.createDirectories(directory);
+        final SortedMap<Integer, Path> snapshots = files(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        final SortedMap<Integer, Path> segments = files(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        int generation = 0;
+        if (!snapshots.isEmpty()) {
+            generation = snapshots.lastKey();
+            try {
+                store.defineAll(SnapshotFile.open(snapshots.get(generation)).storedDefinitions());
+            } catch (InvalidExpressionException e) {
+                throw new IOException("snapshot " + snapshots.get(generation) + " is not valid: " + e.getMessage());
+            }
+        }
+        final SortedMap<Integer, Path> replayed = segments.tailMap(generation);
+        final List<String> loads = new ArrayList<>();
+        for (Map.Entry<Integer, Path> entry: replayed.entrySet()) {
+            replay(entry.getValue(), store, entry.getKey().equals(replayed.lastKey()), loads);
+            generation = entry.getKey();
+        }
+        deleteBefore(directory, snapshots.isEmpty() ? 0 : snapshots.lastKey());
+        // copies that no replayed record references were either folded into a snapshot, or never journaled
+        final SortedMap<Integer, Path> copies = files(directory, LOAD_PREFIX, LOAD_SUFFIX);
+        for (Path copy: copies.values()) {
+            if (!loads.contains(copy.getFileName().toString())) {
+                Files.deleteIfExists(copy);
+            }
+        }
+        final Journal journal = new Journal(directory, store, sync, compactBytes, checkpointMillis, checkpointRate,
+                generation, loads, copies.isEmpty() ? 0 : copies.lastKey() + 1);
+        store.journalTo(journal);
+        return journal;
+    }
+
+    /**
+     * @return the files in directory named prefix + g + suffix for some generation g, by generation
+     */
+    private static SortedMap<Integer, Path> files(Path directory, String prefix, String suffix) throws IOException {
+        final SortedMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file: stream) {
+                final String name = file.getFileName().toString();
+                try {
+                    files.put(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Deletes the snapshots and segments of generations before a snapshot, which no longer needs them.
+     * @param directory the data directory
+     * @param generation the generation of the newest snapshot
+     */
+    private static void deleteBefore(Path directory, int generation) throws IOException {
+        for (Path file: files(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(generation).values()) {
+            Files.deleteIfExists(file);
+        }
+        for (Path file: files(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX).headMap(generation).values()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Stores the definitions of every record in a segment.
+     * @param path the segment
+     * @param store the store to replay the records into
+     * @param newest true if path is the newest segment, whose partly written last record is dropped
+     * @param loads the file names of the copies of loaded snapshots that records reference, which are added to
+     * @throws IOException if the segment can't be read, or has an invalid record, or is torn and not the newest
+     */
+    private static void replay(Path path, DefinitionStore store, boolean newest, List<String> loads)
+            throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            for (int record = 1; ; record++) {
+                final byte[] text = readRecord(in);
+                if (text == null) {
+                    break;
+                }
+                final String expression = new String(text, StandardCharsets.UTF_8);
+                try {
+                    if (expression.startsWith(LOAD_RECORD)) {
+                        final String copy = expression.substring(LOAD_RECORD.length());
+                        store.defineAll(SnapshotFile.open(path.resolveSibling(copy)).storedDefinitions());
+                        loads.add(copy);
+                    } else {
+                        store.define(ExpressionParser.parse(expression));
+                    }
+                } catch (UnableToParseException | InvalidExpressionException e) {
+                    throw new IOException("record " + record + " of " + path + " is not a valid expression");
+                }
+                valid += RECORD_HEADER + text.length;
+            }
+        }
+        if (valid < Files.size(path)) {
+            if (!newest) {
+                throw new IOException(path + " is corrupt after byte " + valid);
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    /**
+     * @param in a segment, positioned at a record
+     * @return the UTF-8 text of the record, or null if the segment ends there, or the record is torn or corrupt
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        final byte[] bytes;
+        final int checksum;
+        try {
+            final int length = in.readInt();
+            checksum = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            bytes = in.readNBytes(length);
+            if (bytes.length < length) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == checksum ? bytes : null;
+    }
+
+    /**
+     * Stops the journal from writing anything more.
+     * @param e the error that stopped it
+     */
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * @throws IOException if the journal has failed
+     */
+    private synchronized void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("the journal stopped after failing to write: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Appends a record to memory, to be written with the next group.
+     * Requires that the caller holds the locks of every list the record changed.
+     * @param text an expression whose definitions were stored
+     * @return the ticket of the record, to wait for with await()
+     * @throws IOException if the journal has failed
+     */
+    public synchronized long append(String text) throws IOException {
+        checkFailure();
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        pending.writeBytes(
+                ByteBuffer.allocate(RECORD_HEADER).putInt(bytes.length).putInt((int) crc.getValue()).array());
+        pending.writeBytes(bytes);
+        return ++appended;
+    }
+
+    /**
+     * Copies a snapshot file into the data directory, forced to disk, so that a record can reference it.
+     * The copy is deleted once the record is compacted, or at recovery if no record references it.
+     * @param snapshot a snapshot file
+     * @return the copy
+     * @throws IOException if the snapshot can't be copied
+     */
+    public Path copySnapshot(Path snapshot) throws IOException {
+        final int number;
+        synchronized (this) {
+            number = nextLoad++;
+        }
+        final Path copy = directory.resolve(LOAD_PREFIX + number + LOAD_SUFFIX);
+        final Path temporary = copy.resolveSibling(copy.getFileName() + ".tmp");
+        Files.copy(snapshot, temporary, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, copy, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        SnapshotFile.forceDirectory(directory);
+        return copy;
+    }
+
+    /**
+     * Appends a record that a copy of a snapshot was loaded, to be written with the next group.
+     * Requires that the caller holds the locks of every list.
+     * @param copy a copy returned by copySnapshot()
+     * @return the ticket of the record, to wait for with await()
+     * @throws IOException if the journal has failed
+     */
+    public synchronized long appendLoad(Path copy) throws IOException {
+        checkFailure();
+        final String name = copy.getFileName().toString();
+        loadsAppended.add(name);
+        return append(LOAD_RECORD + name);
+    }
+
+    /**
+     * Waits until a record has reached the disk, if the sync policy is COMMIT, by writing and forcing every record
+     * appended so far, unless another writer already has.
+     * @param ticket a ticket returned by append()
+     * @throws IOException if the records can't be written, or the journal has failed and the record is not known to
+     *         be on disk
+     */
+    public void await(long ticket) throws IOException {
+        if (sync != Sync.COMMIT) {
+            checkFailure();
+            return;
+        }
+        if (durable >= ticket) {
+            return;
+        }
+        synchronized (flushLock) {
+            // while we waited for the lock, the writer holding it may have written our record with its own
+            if (durable < ticket) {
+                flush(true);
+            }
+        }
+    }
+
+    /**
+     * Writes every record appended so far to the current segment, and requests a compaction if it has grown past
+     * compactBytes. Must be called while holding flushLock.
+     * @param force true to force the records to disk
+     * @throws IOException if the journal has failed, or the records can't be written, which fails it
+     */
+    private void flush(boolean force) throws IOException {
+        final ByteBuffer group;
+        final long last;
+        synchronized (this) {
+            checkFailure();
+            group = ByteBuffer.wrap(pending.toByteArray());
+            pending.reset();
+            last = appended;
+        }
+        try {
+            while (group.hasRemaining()) {
+                segment.write(group);
+            }
+            segmentSize += group.capacity();
+            if (force) {
+                segment.force(false);
+                durable = last;
+            }
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        if (segmentSize >= compactBytes) {
+            synchronized (this) {
+                compactionRequested = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, after forcing every record appended so far into the current one.
+     * Requires that no writer is between storing definitions and appending their record, which
+     * DefinitionStore.rotateJournal() ensures.
+     * @return the generation of the new segment
+     * @throws IOException if the segments can't be written
+     */
+    int rotate() throws IOException {
+        synchronized (flushLock) {
+            flush(true);
+            synchronized (this) {
+                compactedThrough = appended;
+                loadsCompacted.addAll(loadsAppended);
+                loadsAppended = new ArrayList<>();
+            }
+            try {
+                segment.close();
+                generation++;
+                segment = openSegment(generation);
+                SnapshotFile.forceDirectory(directory);
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            segmentSize = 0;
+            return generation;
+        }
+    }
+
+    /**
+     * Folds every segment before the current one into a snapshot, starting a new segment first. The snapshot is
+     * loaded into a scratch store before it is put in place, so recovery is never left with a snapshot it rejects;
+     * if it doesn't load, the segments are kept and replayed instead.
+     * @throws IOException if the snapshot can't be written, or doesn't load
+     */
+    void compact() throws IOException {
+        final int snapshotGeneration;
+        final DefinitionMap.Snapshot snapshot;
+        final List<String> compactedLoads;
+        synchronized (flushLock) {
+            // rotateJournal() calls rotate(), which can only run once we hold flushLock, so the generation it
+            // reaches is the one we read
+            snapshot = store.rotateJournal();
+            snapshotGeneration = generation;
+            synchronized (this) {
+                compactedLoads = loadsCompacted;
+                loadsCompacted = new ArrayList<>();
+            }
+        }
+        final Path file = directory.resolve(SNAPSHOT_PREFIX + snapshotGeneration + SNAPSHOT_SUFFIX);
+        final Path unchecked = file.resolveSibling(file.getFileName() + ".unchecked");
+        try {
+            SnapshotFile.write(unchecked, snapshot.getDefinitions(), checkpointRate);
+            try {
+                new DefinitionStore().defineAll(SnapshotFile.open(unchecked).storedDefinitions());
+            } catch (InvalidExpressionException e) {
+                Files.deleteIfExists(unchecked);
+                throw new IOException("checkpoint " + file + " would not load: " + e.getMessage());
+            }
+            Files.move(unchecked, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            SnapshotFile.forceDirectory(directory);
+        } catch (IOException e) {
+            // the segments that reference the copies are kept, so the copies are needed until the next checkpoint
+            synchronized (this) {
+                loadsCompacted.addAll(compactedLoads);
+            }
+            throw e;
+        }
+        deleteBefore(directory, snapshotGeneration);
+        // stored definitions that still read a copy keep it mapped, so deleting it only removes its name
+        for (String copy: compactedLoads) {
+            Files.deleteIfExists(directory.resolve(copy));
+        }
+    }
+
+    /**
+     * @return the segment of a generation, opened for appending
+     */
+    private FileChannel openSegment(int generation) throws IOException {
+        final FileChannel channel = FileChannel.open(directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Compacts the journal whenever a flush requests it, or checkpointMillis have passed since the last compaction
+     * and records have been appended since, until the journal is closed.
+     */
+    private void runCompactor() {
+        while (true) {
+            synchronized (this) {
+                long due = deadline(checkpointMillis);
+                while (!compactionRequested && !closed) {
+                    final long remaining = due - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        if (checkpointDue()) {
+                            break;
+                        }
+                        due = deadline(checkpointMillis);
+                        continue;
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                compactionRequested = false;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Problem compacting journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if records have been appended since the last compaction, so a checkpoint would save replaying them
+     */
+    synchronized boolean checkpointDue() {
+        return appended > compactedThrough;
+    }
+
+    /**
+     * @param millis a time from now, in milliseconds
+     * @return the time millis from now, or the latest time there is if that is too far away to represent
+     */
+    private static long deadline(long millis) {
+        final long now = System.currentTimeMillis();
+        return millis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + millis;
+    }
+
+    /**
+     * Writes the records appended so far every SYNC_INTERVAL_MILLIS, until the journal is closed.
+     */
+    private void runFlusher() {
+        while (true) {
+            try {
+                Thread.sleep(SYNC_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (flushLock) {
+                try {
+                    flush(sync == Sync.INTERVAL);
+                } catch (IOException e) {
+                    // the journal has failed, so writers find out from append() and await()
+                    System.err.println("Problem writing journal: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads, waiting for any compaction in progress, then writes and forces every record
+     * appended so far and closes the current segment. Nothing may be appended afterwards.
+     * @throws IOException if the records can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            compactor.join();
+            if (flusher != null) {
+                flusher.interrupt();
+                flusher.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (flushLock) {
+            try {
+                flush(true);
+            } finally {
+                segment.close();
+            }
+        }
+    }
+}
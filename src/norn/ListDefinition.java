@@ -1,10 +1,7 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Represents a list expression where we define a listname
@@ -14,6 +11,7 @@ public class ListDefinition implements ListExpression {
     //     corresponding to <value>. It evaluates to value.getMemberAddresses()
     // RI
     //    listname is lowercase
+    //    hash == Objects.hash(listname.hashCode(), value.hashCode())
     // SRE
     //    all reps are private, final, and immutable.
     //
@@ -24,6 +22,7 @@ public class ListDefinition implements ListExpression {
     
     private final ListExpression value;
     private final String listname;
+    private final int hash;
 
     /**
      * Creates a new ListDefinition instance
@@ -33,6 +32,7 @@ public class ListDefinition implements ListExpression {
     public ListDefinition(String listname, ListExpression value) {
         this.listname = listname.toLowerCase();
         this.value = value;
+        this.hash = Objects.hash(this.listname.hashCode(), value.hashCode());
         checkRep();
     }
     
@@ -49,13 +49,25 @@ public class ListDefinition implements ListExpression {
         ListExpression newValue = value.removeEdits(listname, definitions);
         definitions.put(listname, newValue);
         checkRep();
-        return new ListDefinition(listname, newValue);
+        return ExpressionFactory.definition(listname, newValue);
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
         checkRep();
-        return value.getMemberAddresses(previousDefinitions);
+        return value.getMembers(previousDefinitions);
+    }
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return value.hasMember(id, definitions);
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return value.getMemberDelta(listDeltas, definitions);
     }
     
     @Override
@@ -66,10 +78,16 @@ public class ListDefinition implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // Just needs to check that the right and left expressions are equal
         if (that instanceof ListDefinition) {
             ListDefinition other = (ListDefinition) that;
-            if (this.value.equals(other.value) && this.listname.equals(other.listname)){
+            if (this.hash == other.hash && this.value.equals(other.value) && this.listname.equals(other.listname)){
                 return true;
             } 
         }
@@ -79,7 +97,7 @@ public class ListDefinition implements ListExpression {
     @Override
     public int hashCode(){
         checkRep();
-        return Objects.hash(listname.hashCode(), value.hashCode());
+        return hash;
     }
 
     @Override
@@ -88,33 +106,25 @@ public class ListDefinition implements ListExpression {
         return "(" + listname + "=" + value.htmlString() + ")";
     }
     
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
+    /**
+     * @return the name of the list being defined
+     */
+    public String getListname() {
         checkRep();
-        return value.getDependentListNames(outerNames, definitions);
+        return listname;
     }
     
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>(value.getReferencedLists(definitions));
-        referenced.add(listname);
-        checkRep();
-        return referenced;
-    }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>(value.getDefinedLists(definitions));
-        defined.add(listname);
+    /**
+     * @return the expression the list is defined to be
+     */
+    public ListExpression getValue() {
         checkRep();
-        return defined;
+        return value;
     }
     
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return value.noForbiddenPipes(definitions);
+        return visitor.onListDefinition(this);
     }
-
 }
@@ -11,27 +11,46 @@ import java.util.Set;
  * For all purposes this can be thought of as a typed Tuple output.
  */
 public class ListEval {
-    // AF (emailAddresses, visualizationString, definitions) = the output of ListExpression.eval() with
-    //      set of email addresses emailAddresses and visualization string visualizationString
-    //      and definitions definitions.
+    // AF (expression, members, visualizationString, definitions) = the output of ListExpression.eval() with
+    //      set of email addresses with ids in members, or the members of expression against definitions if members
+    //      is null, and visualization string visualizationString and definitions definitions.
     // RI
-    //    true
+    //    expression != null or members != null
     // SRE
     //    class is only used as a wrapper for returning method calls by ListExpression, so does not provide
     //      any guarantees of immutability or exposure prevention.
+    // Thread safety
+    //    members is only read and set while holding the lock on this.
     
-    private final Set<EmailAddress> emailAddresses;
+    private final ListExpression expression;
+    private MemberSet members;
     private final String visualizationString;
     private final Map<String, ListExpression> definitions;
     
     /**
-     * Create the ListEval with the given set of email addresses and visualization string and definitions.
-     * @param emailAddresses the email addresses
+     * Create the ListEval with the given set of email address ids and visualization string and definitions.
+     * @param members the ids of the email addresses
      * @param visualizationString the visualization string
      * @param definitions the definitions
      */
-    public ListEval(Set<EmailAddress> emailAddresses, String visualizationString, Map<String, ListExpression> definitions) {
-        this.emailAddresses = emailAddresses;
+    public ListEval(MemberSet members, String visualizationString, Map<String, ListExpression> definitions) {
+        this.expression = null;
+        this.members = members;
+        this.visualizationString = visualizationString;
+        this.definitions = definitions;
+        checkRep();
+    }
+    
+    /**
+     * Create the ListEval of an expression whose members are only evaluated when they are asked for.
+     * Requires that definitions is threadsafe and is not changed afterwards.
+     * @param expression an expression with the same members as the one that was evaluated, with no edits
+     * @param visualizationString the visualization string
+     * @param definitions the definitions after evaluating expression, which reach no circular definitions from it
+     */
+    public ListEval(ListExpression expression, String visualizationString, Map<String, ListExpression> definitions) {
+        this.expression = expression;
+        this.members = null;
         this.visualizationString = visualizationString;
         this.definitions = definitions;
         checkRep();
@@ -41,20 +60,47 @@ public class ListEval {
      * Fails an assertion if some part of our rep invariant has been broken
      */
     private void checkRep() {
-        assert this.emailAddresses != null;
+        assert this.expression != null || this.members != null;
         assert this.visualizationString != null;
         assert this.definitions != null;
     }
     
     /**
      * Returns the set of email addresses associated with this instance.
+     * Converts every id back into an EmailAddress, so callers that only print the addresses
+     * should prefer getMembers().
      * @return the set of email addresses
      */
     public Set<EmailAddress> getEmailAddresses() {
         checkRep();
-        return emailAddresses;
+        return getMembers().toAddresses();
     } 
     
+    /**
+     * Returns the ids of the email addresses associated with this instance, as given by AddressDictionary.
+     * @return the set of email address ids
+     */
+    public synchronized MemberSet getMembers() {
+        checkRep();
+        if (members == null) {
+            members = ParallelEvaluator.getMembers(expression, definitions);
+        }
+        return members;
+    }
+    
+    /**
+     * Returns the ids of the email addresses associated with this instance one at a time, in increasing order,
+     * without holding them all at once unless they were already evaluated.
+     * @return a new stream of the email address ids
+     */
+    public synchronized MemberStream streamMembers() {
+        checkRep();
+        if (members != null) {
+            return MemberStream.of(members);
+        }
+        return StreamingEvaluator.stream(expression, definitions);
+    }
+    
     /**
      * Returns the visualization string associated with this instance.
      * @return the visualization string
@@ -78,7 +124,7 @@ public class ListEval {
         final int prime = 31;
         int result = 1;
         result = prime * result + definitions.hashCode();
-        result = prime * result + emailAddresses.hashCode();
+        result = prime * result + getMembers().hashCode();
         result = prime * result + visualizationString.hashCode();
         checkRep();
         return result;
@@ -88,7 +134,7 @@ public class ListEval {
         if (!(obj instanceof ListEval))
             return false;
         ListEval other = (ListEval) obj;
-        return this.emailAddresses.equals(other.emailAddresses)
+        return this.getMembers().equals(other.getMembers())
                 && this.visualizationString.equals(other.visualizationString)
                 && this.definitions.equals(other.definitions);
     }
@@ -1,9 +1,6 @@
 package norn;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,7 +30,7 @@ public interface ListExpression {
      */
     public static ListExpression parse(String input) throws InvalidExpressionException {
         try {
-            return ExpressionParser.parse(input);
+            return ParseCache.parse(input);
         } catch (UnableToParseException e) {
             throw new InvalidExpressionException("Error: expression is syntactically invalid");
         }
@@ -50,36 +47,27 @@ public interface ListExpression {
      *  for instance because it has circular definitions, or the pipes cannot be evaluated in parallel
      */
     public static ListEval evalAndVisualize(ListExpression e, Map<String, ListExpression> previousDefinitions) throws InvalidExpressionException {
-        // put the old definitions into the new definitions.
-        Map<String, ListExpression> definitions = Collections.synchronizedMap(new HashMap<>(previousDefinitions));
+        // put the old definitions into the new definitions, keeping their versions so cached members can be reused.
+        DefinitionMap definitions = new DefinitionMap(previousDefinitions);
         String noOuter = ""; // to start, there is no outer definition, so do empty string, which won't match any definition.
-        ListExpression noEdits = e.removeEdits(noOuter, definitions);
+        ListExpression noEdits = removeAllEdits(e, noOuter, definitions);
         
         String breakdown = noEdits.htmlString();
         
-        List<String> listNamesToDefine = noEdits.getDependentListNames(new HashSet<>(), definitions);
-        
-        if (!noEdits.noForbiddenPipes(definitions))
-            throw new InvalidExpressionException("Expression contains pipes which may not be evaluated in parallel");
-        
-        // so that we don't define something twice if its referenced twice
-        Set<String> usedSoFar = new HashSet<>();
+        ExpressionAnalysis analysis = checkAndPropagate(noEdits, definitions);
         
+        // each list name appears once in the analysis, even if its referenced twice
         List<String> dependentHtmls = new ArrayList<>();
-        for (String name: listNamesToDefine) {
-            if (!usedSoFar.contains(name)) {
-                String dependentHtml = name + ": ";
-                if (definitions.containsKey(name)) {
-                    ListExpression value = definitions.get(name);
-                    dependentHtml += value.htmlString();
-                } else {
-                    // if its a listname without a definition, we get here
-                    dependentHtml += new EmptyExpression().htmlString();
-                }
-               
-                usedSoFar.add(name);
-                dependentHtmls.add(dependentHtml);
+        for (String name: analysis.getDependentListNames()) {
+            String dependentHtml = name + ": ";
+            if (definitions.containsKey(name)) {
+                ListExpression value = definitions.get(name);
+                dependentHtml += value.htmlString();
+            } else {
+                // if its a listname without a definition, we get here
+                dependentHtml += new EmptyExpression().htmlString();
             }
+            dependentHtmls.add(dependentHtml);
         }
         
         String dependentString = dependentHtmls.stream()
@@ -88,73 +76,247 @@ public interface ListExpression {
         String visualization = breakdown + "<hr> <p>" + dependentLine + "</p>" + dependentString;
         
         // now this is safe, because we've checked for circular definitions.
-        Set<EmailAddress> addresses = noEdits.getMemberAddresses(definitions);
-        ListEval output = new ListEval(addresses, visualization, definitions);
+        // members are only evaluated once asked for, so printing them can stream them instead
+        ListEval output = new ListEval(ExpressionOptimizer.optimize(noEdits, definitions), visualization, definitions);
         return output;
     }
     
     
     /**
-     * Returns whether the expression does not contain any forbidden pipes,
-     * as defined in the project spec. 
-     * Requires that definitions is a threadsafe data type.
-     * @param definitions the set of definitions for this expression
-     * @return whether the expression does not contain any forbidden pipes.
+     * Evaluates a ListExpression without building its visualization, for callers that only want its members or
+     * the definitions it makes.
+     * @param e the list expression to evaluate
+     * @param previousDefinitions map containing any previously defined list names
+     * @return a ListEval object containing the set of email addresses, with an empty visualization string
+     * @throws InvalidExpressionException if the expression given cannot be evaluated,
+     *  for instance because it has circular definitions, or the pipes cannot be evaluated in parallel
      */
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions);
+    public static ListEval eval(ListExpression e, Map<String, ListExpression> previousDefinitions)
+            throws InvalidExpressionException {
+        DefinitionMap definitions = new DefinitionMap(previousDefinitions);
+        ListExpression noEdits = removeAllEdits(e, "", definitions);
+        checkAndPropagate(noEdits, definitions);
+        return new ListEval(ExpressionOptimizer.optimize(noEdits, definitions), "", definitions);
+    }
     
     /**
-     * @return an html-formatted string representation of the object.
+     * Counts the email addresses a ListExpression evaluates to, without building its visualization.
+     * Any definitions the expression makes are only used to evaluate it, and are not kept.
+     * @param e the list expression to count the members of
+     * @param previousDefinitions map containing any previously defined list names
+     * @return the number of email addresses e evaluates to
+     * @throws InvalidExpressionException if the expression given cannot be evaluated, 
+     *  for instance because it has circular definitions, or the pipes cannot be evaluated in parallel
      */
-    public String htmlString();
+    public static int count(ListExpression e, Map<String, ListExpression> previousDefinitions)
+            throws InvalidExpressionException {
+        DefinitionMap definitions = new DefinitionMap(previousDefinitions);
+        ListExpression noEdits = removeAllEdits(e, "", definitions);
+        checkAndPropagate(noEdits, definitions);
+        // list names in e are cached with their members, so counting them again is O(1)
+        return ParallelEvaluator.getMembers(ExpressionOptimizer.optimize(noEdits, definitions), definitions).size();
+    }
+    
+    /**
+     * Estimates the number of email addresses a ListExpression evaluates to, using the HyperLogLog sketches of the
+     * lists it reads, which is much faster than counting for unions of lists whose sketches were made before.
+     * Any definitions the expression makes are only used to evaluate it, and are not kept.
+     * @param e the list expression to estimate the members of
+     * @param previousDefinitions map containing any previously defined list names
+     * @return an estimate of the number of email addresses e evaluates to, usually within a few percent
+     * @throws InvalidExpressionException if the expression given cannot be evaluated, 
+     *  for instance because it has circular definitions, or the pipes cannot be evaluated in parallel
+     */
+    public static long estimate(ListExpression e, Map<String, ListExpression> previousDefinitions)
+            throws InvalidExpressionException {
+        DefinitionMap definitions = new DefinitionMap(previousDefinitions);
+        ListExpression noEdits = removeAllEdits(e, "", definitions);
+        checkAndPropagate(noEdits, definitions);
+        return SketchEvaluator.sketch(ExpressionOptimizer.optimize(noEdits, definitions), definitions).estimate();
+    }
     
     /**
-     * Returns a list of list names referenced in this ListExpression.
-     * In order to count as referenced, the ListName has to contribute to the final set of email addresses
-     * outputted by this expression.
-     * List names are included in order of inclusion from left to right. If a list name is included more than once
-     * in the expression, the list name is in the list for each time it's included.
-     * @param definitions a map between list names and definitions for this expression.
-     * @param outerNames a set of names of definitions that have already been referenced in the list expression
-     * @return a list of list names referenced in this ListExpression. 
-     * @throws InvalidExpressionException if for some reason we run into an invalid expression as we evaluation (a loop in definitions or invalid pipe)
+     * Makes the definitions of a ListExpression, without evaluating or visualizing it.
+     * @param e the list expression whose definitions to make
+     * @param previousDefinitions map containing any previously defined list names
+     * @return the definitions after e, whose cached members are up to date
+     * @throws InvalidExpressionException if the expression given cannot be evaluated, 
+     *  for instance because it has circular definitions, or the pipes cannot be evaluated in parallel
      */
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException;
+    public static DefinitionMap define(ListExpression e, Map<String, ListExpression> previousDefinitions)
+            throws InvalidExpressionException {
+        DefinitionMap definitions = new DefinitionMap(previousDefinitions);
+        ListExpression noEdits = removeAllEdits(e, "", definitions);
+        checkAndPropagate(noEdits, definitions);
+        return definitions;
+    }
     
     /**
-     * Returns a list of all listnames either referenced or defined somewhere in the expression.
-     * @param definitions a map between list names and definitions for this expression. 
-     * @return a list of all listnames either referenced or defined somewhere in the expression.
+     * Removes the edits of a whole expression, after checking once that every pipe in it can have its sides evaluated
+     * in parallel, rather than at each pipe as removing edits reaches it.
+     * @param e the list expression to remove edits from
+     * @param outerDefinition the list e is the definition of, or the empty string if none
+     * @param definitions the definitions before e, which are updated with the definitions e makes
+     * @return e with its edits removed
+     * @throws InvalidExpressionException if e has pipes which may not be evaluated in parallel
      */
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions);
+    private static ListExpression removeAllEdits(ListExpression e, String outerDefinition, DefinitionMap definitions)
+            throws InvalidExpressionException {
+        if (!ExpressionAnalysis.noForbiddenPipes(e, definitions)) {
+            throw new InvalidExpressionException("Expression contains pipes which may not be evaluated in parallel");
+        }
+        return e.removeEdits(outerDefinition, definitions);
+    }
     
     /**
-     * Returns a list of all listnames defined somewhere in the expression.
-     * @param definitions a map between list names and definitions for this expression. 
-     * @return a list of all listnames defined somewhere in the expression.
+     * Checks that an expression can be evaluated, then updates the cached members of lists it redefined.
+     * @param noEdits an expression with its edits removed
+     * @param definitions the definitions after removing the edits of noEdits
+     * @return the analysis of noEdits
+     * @throws InvalidExpressionException if noEdits reaches circular definitions, or has pipes which may not be
+     *  evaluated in parallel
      */
- 
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions);
+    private static ExpressionAnalysis checkAndPropagate(ListExpression noEdits, DefinitionMap definitions)
+            throws InvalidExpressionException {
+        // a single pass finds circular definitions, forbidden pipes, and the lists to show
+        ExpressionAnalysis analysis = ExpressionAnalysis.analyze(noEdits, definitions);
         
+        if (!analysis.noForbiddenPipes())
+            throw new InvalidExpressionException("Expression contains pipes which may not be evaluated in parallel");
+        
+        // now that we know there are no circular definitions, update the cached members of lists that changed
+        definitions.propagateChanges();
+        return analysis;
+    }
+    
+    /**
+     * @return an html-formatted string representation of the object.
+     */
+    public String htmlString();
+    
     /**
      * Returns a new ListExpression object where all edits have been taken out, or replaced as best they can
      * Populates the provided map with definitions found in the list expression, replacing definitions as we go.
      * @param outerDefinition the most recent definition.
      * @param definitions the definitions for all of the list expressions seen so far (which may not contains any edits)
+     * Requires that the pipes of the whole expression this is part of have been checked, as removeAllEdits() does.
      * @return a new listExpression where all of the edits have been removed.
-     * @throws InvalidExpressionException if the expression contains a pipe whose left and right sides cannot be safely evaluated in parallel.
+     * @throws InvalidExpressionException if the edits cannot be removed
      */
     public ListExpression removeEdits(String outerDefinition, Map<String, ListExpression> definitions)
             throws InvalidExpressionException;
     
+    /**
+     * Returns the set of ids of the member addresses on this mailing list, as given by AddressDictionary.
+     * A member is an email address, not another mailing list, but sublist members are added recursively.
+     * @param previousDefinitions the definitions that we want to use when evaluating listnames in the string
+     * @return a MemberSet of the ids of the member addresses.
+     */
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions);
+    
+    /**
+     * Returns whether the address with the given id is a member of this mailing list, 
+     * without evaluating the members of any sublist that is not already cached.
+     * Requires that there are no circular definitions involving this expression.
+     * @param id the id of an address, as given by AddressDictionary
+     * @param definitions the definitions that we want to use when evaluating listnames in the string
+     * @return true if and only if the address with that id is a member of this mailing list.
+     */
+    public boolean hasMember(int id, Map<String, ListExpression> definitions);
+    
+    /**
+     * Returns whether an address is a member of this mailing list, stopping as soon as the answer is known:
+     * a union stops at the first element that has it, an intersection at the first side that doesn't,
+     * and a difference only looks at its right side if its left side has it.
+     * Requires that there are no circular definitions involving this expression.
+     * @param address an email address
+     * @param definitions the definitions that we want to use when evaluating listnames in the string
+     * @return true if and only if address is a member of this mailing list.
+     */
+    public default boolean contains(EmailAddress address, Map<String, ListExpression> definitions) {
+        return hasMember(address.getId(), definitions);
+    }
+    
+    /**
+     * Returns how the members of this mailing list changed when the members of some of the lists it depends on changed.
+     * The expression itself must be the same before and after the change.
+     * Requires that there are no circular definitions involving this expression.
+     * @param listDeltas for each list name whose members changed, how they changed. 
+     *                   Lists not in listDeltas must not have changed.
+     * @param definitions the definitions after the change
+     * @return the change to the members of this mailing list
+     */
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions);
+    
     /**
      * Returns a set of member addresses on this mailing list.
      * A member is an email address, not another mailing list, but sublist members are added recursively.
      * @param previousDefinitions the definitions that we want to use when evaluating listnames in the string
      * @return a Set of the member addresses.
      */
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions);
+    public default Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+        return getMembers(previousDefinitions).toAddresses();
+    }
+    
+    /**
+     * Calls the method of visitor for the variant of this expression.
+     * @param <R> the type of the result of visitor
+     * @param visitor the function to apply to this expression
+     * @return the result of applying visitor to this expression
+     */
+    public <R> R accept(Visitor<R> visitor);
+    
+    /**
+     * A function over the variants of ListExpression, applied with accept().
+     * @param <R> the type of the result of the function
+     */
+    public interface Visitor<R> {
+        /**
+         * @param address an email address
+         * @return the result for address
+         */
+        public R onEmailAddress(EmailAddress address);
+        /**
+         * @param empty an empty expression
+         * @return the result for empty
+         */
+        public R onEmptyExpression(EmptyExpression empty);
+        /**
+         * @param listname a list name
+         * @return the result for listname
+         */
+        public R onListname(Listname listname);
+        /**
+         * @param definition a list definition
+         * @return the result for definition
+         */
+        public R onListDefinition(ListDefinition definition);
+        /**
+         * @param pipe a pipe
+         * @return the result for pipe
+         */
+        public R onPipe(Pipe pipe);
+        /**
+         * @param sequence a sequence
+         * @return the result for sequence
+         */
+        public R onSequence(Sequence sequence);
+        /**
+         * @param union a set union
+         * @return the result for union
+         */
+        public R onSetUnion(SetUnion union);
+        /**
+         * @param intersection a set intersection
+         * @return the result for intersection
+         */
+        public R onSetIntersection(SetIntersection intersection);
+        /**
+         * @param difference a set difference
+         * @return the result for difference
+         */
+        public R onSetDifference(SetDifference difference);
+    }
     
     /**
      * @return a parsable representation of this ListExpression
@@ -0,0 +1,86 @@
+package norn;
+
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks, each guarding the list names whose hash falls in its stripe.
+ * A thread locks every stripe of the list names it works on, always in increasing order of stripe, so two threads can
+ * never each hold a lock the other is waiting for.
+ */
+public class ListLocks {
+    // AF(stripes) = the locks for list names, where list name n is guarded by stripes[stripeOf(n)]
+    // RI:
+    //     stripes.length > 0
+    // SRE:
+    //     stripes is private and final, and the locks themselves are never returned
+    // Thread safety:
+    //     stripes is never modified after construction, and ReentrantLock is threadsafe.
+
+    private final ReentrantLock[] stripes;
+
+    /**
+     * Make a new set of unlocked locks.
+     * @param count the number of stripes, which must be positive
+     */
+    public ListLocks(int count) {
+        this.stripes = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert stripes.length > 0;
+    }
+
+    /**
+     * @param listnames list names
+     * @return the stripes guarding listnames, in increasing order
+     */
+    public SortedSet<Integer> stripesOf(Set<String> listnames) {
+        final SortedSet<Integer> indexes = new TreeSet<>();
+        for (String listname: listnames) {
+            final int hash = listname.hashCode();
+            indexes.add(Math.floorMod(hash ^ (hash >>> 16), stripes.length));
+        }
+        return indexes;
+    }
+
+    /**
+     * @return every stripe, in increasing order
+     */
+    public SortedSet<Integer> allStripes() {
+        final SortedSet<Integer> indexes = new TreeSet<>();
+        for (int index = 0; index < stripes.length; index++) {
+            indexes.add(index);
+        }
+        return indexes;
+    }
+
+    /**
+     * Blocks until the current thread holds every lock in indexes, locking them in increasing order.
+     * @param indexes stripes, as given by stripesOf()
+     */
+    public void lock(SortedSet<Integer> indexes) {
+        for (int index: indexes) {
+            stripes[index].lock();
+        }
+    }
+
+    /**
+     * Releases every lock in indexes, which the current thread must hold.
+     * @param indexes stripes, as given by stripesOf()
+     */
+    public void unlock(SortedSet<Integer> indexes) {
+        for (int index: indexes) {
+            stripes[index].unlock();
+        }
+    }
+}
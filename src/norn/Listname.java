@@ -1,10 +1,6 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Represents a list expression that is just a listname
@@ -41,20 +37,43 @@ public class Listname implements ListExpression {
     public ListExpression removeEdits(String outerDefinition, Map<String, ListExpression> definitions) {
         checkRep();
         if (listname.equals(outerDefinition)) { // if we have an edit
-            return definitions.getOrDefault(outerDefinition, new EmptyExpression());
+            // stored definitions only stand in for whole definitions, never for parts of a tree
+            return StoredDefinition.resolve(definitions.getOrDefault(outerDefinition, ExpressionFactory.empty()));
         }
         return this;
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
         checkRep();
+        if (previousDefinitions instanceof DefinitionMap) {
+            // only re-evaluates the definition if this version of the list isn't cached
+            return ((DefinitionMap) previousDefinitions).getMembers(listname);
+        }
         if (previousDefinitions.containsKey(listname)) {
-            return previousDefinitions.get(listname).getMemberAddresses(previousDefinitions);
+            return previousDefinitions.get(listname).getMembers(previousDefinitions);
+        }
+        return MemberSet.empty(); // if listname has not been defined, return empty set.
+    }
+    
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        if (definitions instanceof DefinitionMap) {
+            return ((DefinitionMap) definitions).hasMember(listname, id);
+        }
+        if (definitions.containsKey(listname)) {
+            return definitions.get(listname).hasMember(id, definitions);
         }
-        return Set.of(); // if listname has not been defined, return empty set.
+        return false;
     }
     
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return listDeltas.getOrDefault(listname, MemberDelta.none());
+    }
     
     @Override
     public String toString() {
@@ -64,6 +83,12 @@ public class Listname implements ListExpression {
     
     @Override
     public boolean equals(Object that){
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // Just needs to check that the right and left expressions are equal
         checkRep();
         if (that instanceof Listname) {
@@ -87,51 +112,17 @@ public class Listname implements ListExpression {
         return listname;
     }
     
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        if (outerNames.contains(listname)) {
-            throw new InvalidExpressionException("Circular definition found involving list name " + listname);
-        }
-        
-        Set<String> newOuterNames = new HashSet<>(outerNames);
-        newOuterNames.add(listname);
-        List<String> names = new ArrayList<>();
-        names.add(listname);
-        if (definitions.containsKey(listname)) {
-            names.addAll(definitions.get(listname).getDependentListNames(newOuterNames, definitions));
-        }
+    /**
+     * @return the name of this list
+     */
+    public String getListname() {
         checkRep();
-        return names; 
+        return listname;
     }
     
     @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        referenced.add(listname);
-        if (definitions.containsKey(listname)) {
-            referenced.addAll(definitions.get(listname).getReferencedLists(definitions));
-        }
-        checkRep();
-        return referenced;
-    }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        if (definitions.containsKey(listname)) {
-            defined.addAll(definitions.get(listname).getReferencedLists(definitions));
-        }
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return defined;
-    }
-
-    @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
-        checkRep();
-        if (definitions.containsKey(listname)) {
-            return definitions.get(listname).noForbiddenPipes(definitions);
-        }
-        return true;
+        return visitor.onListname(this);
     }
 }
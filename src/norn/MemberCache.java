@@ -0,0 +1,647 @@
+package norn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Global cache of the materialized member sets of list names.
+ * Each entry is keyed by a list name and the definition version it was computed for, as given by DefinitionMap,
+ * so an entry can only be used by definitions in which that list, and every list it depends on, are unchanged.
+ *
+ * Member sets are kept in one of three tiers: the hot tier holds them as MemberSets on the heap, the warm tier holds
+ * them encoded in direct buffers off the heap, and the cold tier holds them encoded in memory-mapped files. Callers
+ * always get a MemberSet back; a set in a lower tier is decoded each time it is asked for.
+ * Each tier has a budget in bytes, the system properties norn.memberCacheHeap, norn.memberCacheOffHeap and
+ * norn.memberCacheDisk, or the DEFAULT_ budgets if they are not set. When a tier goes over its budget, sets move down
+ * a tier until it is back to LOW_WATER of its budget, each the least used of a few sets sampled from the tier, and
+ * sets that move down from the cold tier are dropped, to be evaluated again if they are asked for. A set moves back up
+ * when it is used more often than the most used set that last moved down out of the tier above. Use counts are halved
+ * every time sets move down, so they count recent use. Cold files are made in norn.memberCacheDir, or the default
+ * temporary directory.
+ */
+public class MemberCache {
+    // Note: AF, RI, SRE, Thread safety all for the class, since it only has static members.
+    // AF(entries, residents, budgets, bytes, admission, epoch, regions, region) = the cache where list name n
+    //     evaluated to the member set entries.get(n).members(), whose sketch is entries.get(n).sketch if it was made
+    //     yet, in every version of the definitions where n has version entries.get(n).version. The set is held in the
+    //     tier entries.get(n).stored.tier, which has budgets[tier] bytes and uses bytes[tier] of them, and has been
+    //     used entries.get(n).uses() times recently. A set in a lower tier moves into tier t once it has been used more
+    //     than admission[t] times. Sets have moved down epoch times. Cold sets are held in the mapped files in
+    //     regions, and new ones are added to region.
+    // RI:
+    //     residents.get(t) holds exactly the entries in tier t, each once, at the index given by its slot
+    //     bytes[t] is the sum of the sizes of the stored sets of entries in tier t, for every t
+    //     the regions are exactly the regions of cold entries, and region if it is not null
+    //     each region's entries are exactly the entries stored in it
+    // SRE:
+    //     all fields are private, only MemberSets and sketches are returned, and they are immutable.
+    //     Encoded sets are only returned as decoded copies.
+    // Thread safety:
+    //     entries is a threadsafe map. Entries are only added, replaced, removed or moved between tiers while holding
+    //     the lock on tiers, which also guards residents, slots, budgets, bytes, admission, regions, region, and each
+    //     region's entries. epoch is volatile, and only changed while holding the lock.
+    //     An entry's stored set is volatile and immutable, and buffers are only read through duplicates, so a reader
+    //     that does not hold the lock sees some tier the set was in, and decodes it from a buffer that is never
+    //     written again; buffers of sets that moved or were dropped are only freed once no reader can reach them.
+    //     Any put replaces the entry for its list, whatever its version: a higher version is not necessarily a
+    //     later one, since writers make versions that are never published when another writer publishes first.
+    //     A thread working on an old version may replace the set of a newer one, which only costs that set being
+    //     evaluated again, since get() only returns a set for the version it was computed for.
+    //     An entry's sketch is volatile, and is only ever set to the sketch of its members, so threads that both make
+    //     it store the same value. Use counts and the epochs they were last halved in are volatile, and increments or
+    //     halvings that race may be lost, which only makes the counts approximate.
+
+    /** the default budget of the hot tier, in bytes */
+    public static final long DEFAULT_HEAP_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /** the default budget of the warm tier, in bytes, which is within the JVM's default limit on direct memory */
+    public static final long DEFAULT_OFF_HEAP_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+    /** the default budget of the cold tier, in bytes */
+    public static final long DEFAULT_DISK_BYTES = 8L << 30;
+
+    /** the fraction of its budget a tier is brought back down to when it goes over */
+    private static final double LOW_WATER = 0.9;
+
+    /** the weight of a hot set apart from its ids, roughly the size of its entry */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** the number of sets sampled from a tier to find the least used, each time one moves down */
+    private static final int SAMPLE = 5;
+
+    /** the largest cold file made to hold more than one set */
+    private static final int REGION_SIZE = 1 << 26;
+
+    private static final Path DIRECTORY =
+            Paths.get(System.getProperty("norn.memberCacheDir", System.getProperty("java.io.tmpdir")));
+
+    /**
+     * Where a member set can be held, from the fastest to use to the largest.
+     */
+    private enum Tier { HOT, WARM, COLD }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final List<List<Entry>> residents = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+
+    private static final Object tiers = new Object();
+    private static final long[] budgets = {
+        Long.getLong("norn.memberCacheHeap", DEFAULT_HEAP_BYTES),
+        Long.getLong("norn.memberCacheOffHeap", DEFAULT_OFF_HEAP_BYTES),
+        Long.getLong("norn.memberCacheDisk", DEFAULT_DISK_BYTES),
+    };
+    private static final long[] bytes = new long[Tier.values().length];
+    private static final int[] admission = new int[Tier.values().length];
+    private static volatile int epoch = 0;
+    private static final Set<Region> regions = new HashSet<>();
+    private static Region region = null;
+
+    private static final LongAdder promotions = new LongAdder();
+    private static final LongAdder demotions = new LongAdder();
+    private static final LongAdder drops = new LongAdder();
+
+    /**
+     * A cached member set together with the version it was computed for, where it is held, how often it has been
+     * used, and its sketch once one is asked for.
+     */
+    private static class Entry {
+        private final String listname;
+        private final long version;
+        private volatile Stored stored;
+        private volatile int uses = 0;
+        private volatile int halved = epoch;
+        private volatile HyperLogLog sketch = null;
+        private int slot;
+
+        private Entry(String listname, long version, MemberSet members) {
+            this.listname = listname;
+            this.version = version;
+            this.stored = new Stored(members);
+        }
+
+        /**
+         * @return the number of times this entry has been used, halved for every time sets moved down since
+         */
+        private int uses() {
+            final int since = epoch - halved;
+            return since >= Integer.SIZE ? 0 : uses >> since;
+        }
+
+        /**
+         * @return the members of this entry, which are decoded if they are not in the hot tier
+         */
+        private MemberSet members() {
+            // halve the count for every time sets moved down since it was last used, rather than halving every count
+            // each time
+            final int now = epoch;
+            if (halved != now) {
+                uses = uses();
+                halved = now;
+            }
+            uses++;
+            final Stored held = stored;
+            if (held.tier == Tier.HOT) {
+                return held.members;
+            }
+            final MemberSet members = MemberSet.readFrom(held.buffer.duplicate());
+            promote(this, held, members);
+            return members;
+        }
+
+        /**
+         * @return the sketch of members
+         */
+        private HyperLogLog sketch() {
+            if (sketch == null) {
+                sketch = HyperLogLog.of(members());
+            }
+            return sketch;
+        }
+    }
+
+    /**
+     * A member set as held in one tier: on the heap in the hot tier, and encoded in a buffer in the others.
+     */
+    private static class Stored {
+        private final Tier tier;
+        private final MemberSet members;
+        private final ByteBuffer buffer;
+        private final Region region;
+        private final long size;
+
+        /**
+         * Make a hot set.
+         * @param members the set
+         */
+        private Stored(MemberSet members) {
+            this.tier = Tier.HOT;
+            this.members = members;
+            this.buffer = null;
+            this.region = null;
+            this.size = members.sizeInBytes() + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * Make a warm or cold set.
+         * @param tier WARM, or COLD if region is not null
+         * @param buffer the encoded set, which must not be written afterwards
+         * @param region the cold file buffer is in, or null for a warm set
+         */
+        private Stored(Tier tier, ByteBuffer buffer, Region region) {
+            this.tier = tier;
+            this.members = null;
+            this.buffer = buffer;
+            this.region = region;
+            this.size = buffer.capacity();
+        }
+    }
+
+    /**
+     * A memory-mapped file that cold sets are added to one after another, and that is unmapped once none of them are
+     * left. The file is deleted as soon as it is mapped, so a cache never leaves files behind, and its space is freed
+     * with the mapping.
+     */
+    private static class Region {
+        private final MappedByteBuffer buffer;
+        private final Set<Entry> entries = new HashSet<>();
+
+        /**
+         * Make a new region.
+         * @param size its size in bytes
+         * @throws IOException if the file can't be made
+         */
+        private Region(int size) throws IOException {
+            final Path file = Files.createTempFile(DIRECTORY, "norn-members-", ".cold");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private MemberCache() {
+        throw new AssertionError("should never be instantiated");
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     * Requires holding the lock on tiers.
+     */
+    private static void checkRep() {
+        for (long used: bytes) {
+            assert used >= 0;
+        }
+        assert residents.size() == Tier.values().length;
+        assert region == null || regions.contains(region);
+    }
+
+    /**
+     * @param listname a list name
+     * @param version the version of listname's definition
+     * @return the members of listname at that version, or null if they are not cached
+     */
+    public static MemberSet get(String listname, long version) {
+        final Entry entry = entries.get(listname);
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        return entry.members();
+    }
+
+    /**
+     * @param listname a list name
+     * @param version the version of listname's definition
+     * @return true if and only if get(listname, version) would return the members, found without decoding them or
+     *         counting a use
+     */
+    public static boolean contains(String listname, long version) {
+        final Entry entry = entries.get(listname);
+        return entry != null && entry.version == version;
+    }
+
+    /**
+     * @param listname a list name
+     * @param version the version of listname's definition
+     * @return the sketch of the members of listname at that version, or null if the members are not cached
+     */
+    public static HyperLogLog getSketch(String listname, long version) {
+        final Entry entry = entries.get(listname);
+        if (entry == null || entry.version != version) {
+            return null;
+        }
+        return entry.sketch();
+    }
+
+    /**
+     * Caches the members of a list name in the hot tier, replacing the members of any other version of the list.
+     * The list keeps the use count of the version it replaces.
+     * @param listname a list name
+     * @param version the version of listname's definition that members were computed for
+     * @param members the members of listname at that version
+     */
+    public static void put(String listname, long version, MemberSet members) {
+        final Entry entry = new Entry(listname, version, members);
+        synchronized (tiers) {
+            final Entry old = entries.get(listname);
+            if (old != null) {
+                entry.uses = old.uses();
+                release(old);
+            }
+            entries.put(listname, entry);
+            hold(entry, entry.stored);
+            rebalance();
+            checkRep();
+        }
+    }
+
+    /**
+     * Removes every cached member set.
+     */
+    public static void clear() {
+        synchronized (tiers) {
+            entries.clear();
+            for (List<Entry> resident: residents) {
+                resident.clear();
+            }
+            Arrays.fill(bytes, 0);
+            Arrays.fill(admission, 0);
+            regions.clear();
+            region = null;
+            checkRep();
+        }
+    }
+
+    /**
+     * Sets the budgets of the tiers, moving sets down to fit them.
+     * @param heapBytes the budget of the hot tier, in bytes
+     * @param offHeapBytes the budget of the warm tier, in bytes
+     * @param diskBytes the budget of the cold tier, in bytes
+     */
+    static void setBudgets(long heapBytes, long offHeapBytes, long diskBytes) {
+        synchronized (tiers) {
+            budgets[Tier.HOT.ordinal()] = heapBytes;
+            budgets[Tier.WARM.ordinal()] = offHeapBytes;
+            budgets[Tier.COLD.ordinal()] = diskBytes;
+            rebalance();
+            checkRep();
+        }
+    }
+
+    /**
+     * Moves an entry that was just used up a tier or two, if it is used often enough.
+     * @param entry an entry
+     * @param held where its set was when it was decoded
+     * @param members its set
+     */
+    private static void promote(Entry entry, Stored held, MemberSet members) {
+        synchronized (tiers) {
+            // the entry may have moved, or been replaced or dropped, since it was read
+            if (entry.stored != held || entries.get(entry.listname) != entry) {
+                return;
+            }
+            final int uses = entry.uses();
+            final Tier target;
+            if (uses > admission[Tier.HOT.ordinal()]) {
+                target = Tier.HOT;
+            } else if (held.tier == Tier.COLD && uses > admission[Tier.WARM.ordinal()]) {
+                target = Tier.WARM;
+            } else {
+                return;
+            }
+            release(entry);
+            hold(entry, target == Tier.HOT ? new Stored(members) : warm(held.buffer));
+            promotions.increment();
+            rebalance();
+            checkRep();
+        }
+    }
+
+    /**
+     * Moves little used sets of every tier that is over its budget down a tier, and halves every use count if any
+     * moved. Requires holding the lock on tiers.
+     */
+    private static void rebalance() {
+        boolean moved = false;
+        for (Tier tier: Tier.values()) {
+            if (bytes[tier.ordinal()] > budgets[tier.ordinal()]) {
+                demote(tier);
+                moved = true;
+            }
+        }
+        if (moved) {
+            epoch++;
+            for (int t = 0; t < admission.length; t++) {
+                admission[t] >>= 1;
+            }
+        }
+    }
+
+    /**
+     * Moves sets of a tier down a tier, or drops them from the cold tier, until the tier is within LOW_WATER of its
+     * budget. Each set moved is the least used of SAMPLE sets picked at random from the tier, so finding it doesn't
+     * take looking at every set. Requires holding the lock on tiers.
+     * @param tier a tier that is over its budget
+     */
+    private static void demote(Tier tier) {
+        final List<Entry> resident = residents.get(tier.ordinal());
+        final long target = (long) (budgets[tier.ordinal()] * LOW_WATER);
+        final Random random = ThreadLocalRandom.current();
+        int mostUsed = 0;
+        while (bytes[tier.ordinal()] > target && !resident.isEmpty()) {
+            Entry victim = null;
+            int fewest = Integer.MAX_VALUE;
+            for (int i = 0; i < SAMPLE; i++) {
+                final Entry candidate = resident.get(random.nextInt(resident.size()));
+                // readers count uses without the lock, so compare the counts as they were when sampled
+                final int uses = candidate.uses();
+                if (uses < fewest) {
+                    victim = candidate;
+                    fewest = uses;
+                }
+            }
+            mostUsed = Math.max(mostUsed, fewest);
+            moveDown(victim);
+        }
+        admission[tier.ordinal()] = mostUsed;
+    }
+
+    /**
+     * Moves an entry's set down to the next tier with a budget, or drops the entry if there is none or its set can't
+     * be made cold. Requires holding the lock on tiers.
+     * @param entry an entry in the cache
+     */
+    private static void moveDown(Entry entry) {
+        final Stored held = entry.stored;
+        Stored moved = null;
+        if (held.tier != Tier.COLD) {
+            final ByteBuffer encoded;
+            if (held.tier == Tier.HOT) {
+                encoded = ByteBuffer.allocate(held.members.encodedSize());
+                held.members.writeTo(encoded);
+                encoded.flip();
+            } else {
+                encoded = held.buffer.duplicate();
+            }
+            if (held.tier == Tier.HOT && budgets[Tier.WARM.ordinal()] > 0) {
+                moved = warm(encoded);
+            } else if (budgets[Tier.COLD.ordinal()] > 0) {
+                moved = cold(encoded);
+            }
+        }
+        release(entry);
+        if (moved == null) {
+            drop(entry);
+            return;
+        }
+        hold(entry, moved);
+        demotions.increment();
+    }
+
+    /**
+     * @param encoded an encoded set, positioned at its start
+     * @return the set copied into a new direct buffer
+     */
+    private static Stored warm(ByteBuffer encoded) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.remaining());
+        buffer.put(encoded.duplicate()).flip();
+        return new Stored(Tier.WARM, buffer.asReadOnlyBuffer(), null);
+    }
+
+    /**
+     * Requires holding the lock on tiers.
+     * @param encoded an encoded set, positioned at its start
+     * @return the set copied to the end of the current region, or a new one if it doesn't fit, or null if no region
+     *         could be made for it
+     */
+    private static Stored cold(ByteBuffer encoded) {
+        final int size = encoded.remaining();
+        if (region == null || region.buffer.remaining() < size) {
+            retire(region);
+            region = null;
+            final long budget = budgets[Tier.COLD.ordinal()];
+            final int regionSize = (int) Math.max(size, Math.min(REGION_SIZE, budget / 4));
+            // sets that leave a region leave gaps behind, so rather than let the files grow without bound, drop the
+            // sets of the emptiest regions once the files would be twice the budget
+            while (!regions.isEmpty() && mapped() + regionSize > 2 * budget) {
+                evacuate(Collections.min(regions, Comparator.comparingLong(MemberCache::live)));
+            }
+            try {
+                region = new Region(regionSize);
+            } catch (IOException e) {
+                return null;
+            }
+            regions.add(region);
+        }
+        final int start = region.buffer.position();
+        region.buffer.put(encoded.duplicate());
+        return new Stored(Tier.COLD, region.buffer.slice(start, size).asReadOnlyBuffer(), region);
+    }
+
+    /**
+     * Requires holding the lock on tiers.
+     * @return the total size of the regions
+     */
+    private static long mapped() {
+        long total = 0;
+        for (Region mapped: regions) {
+            total += mapped.buffer.capacity();
+        }
+        return total;
+    }
+
+    /**
+     * Requires holding the lock on tiers.
+     * @param full a region
+     * @return the total size of the sets in it
+     */
+    private static long live(Region full) {
+        long total = 0;
+        for (Entry entry: full.entries) {
+            total += entry.stored.size;
+        }
+        return total;
+    }
+
+    /**
+     * Drops every set in a region, and the region. Requires holding the lock on tiers.
+     * @param emptied a region that no new sets will be added to
+     */
+    private static void evacuate(Region emptied) {
+        for (Entry entry: new ArrayList<>(emptied.entries)) {
+            release(entry);
+            drop(entry);
+        }
+        regions.remove(emptied);
+    }
+
+    /**
+     * Removes an entry whose set has been released from the cache. Requires holding the lock on tiers.
+     * @param entry an entry in the cache
+     */
+    private static void drop(Entry entry) {
+        entries.remove(entry.listname, entry);
+        drops.increment();
+    }
+
+    /**
+     * Puts an entry's set in a tier, and counts it against the tier. Requires holding the lock on tiers.
+     * @param entry an entry in the cache whose set is not held in any tier
+     * @param stored where to hold its set
+     */
+    private static void hold(Entry entry, Stored stored) {
+        entry.stored = stored;
+        if (stored.region != null) {
+            stored.region.entries.add(entry);
+        }
+        final List<Entry> resident = residents.get(stored.tier.ordinal());
+        entry.slot = resident.size();
+        resident.add(entry);
+        bytes[stored.tier.ordinal()] += stored.size;
+    }
+
+    /**
+     * Stops counting an entry's set against its tier. Requires holding the lock on tiers.
+     * @param entry an entry whose set is about to move or be dropped
+     */
+    private static void release(Entry entry) {
+        final Stored held = entry.stored;
+        // move the last entry of the tier into this one's slot, so removing it takes constant time
+        final List<Entry> resident = residents.get(held.tier.ordinal());
+        final Entry last = resident.remove(resident.size() - 1);
+        if (last != entry) {
+            last.slot = entry.slot;
+            resident.set(entry.slot, last);
+        }
+        bytes[held.tier.ordinal()] -= held.size;
+        if (held.region != null) {
+            held.region.entries.remove(entry);
+            if (held.region != region) {
+                retire(held.region);
+            }
+        }
+    }
+
+    /**
+     * Forgets a region that no new sets will be added to, if none of its sets are left.
+     * Requires holding the lock on tiers.
+     * @param retired a region, or null
+     */
+    private static void retire(Region retired) {
+        if (retired != null && retired.entries.isEmpty()) {
+            regions.remove(retired);
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the hot tier
+     */
+    public static long heapBytes() {
+        synchronized (tiers) {
+            return bytes[Tier.HOT.ordinal()];
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the warm tier
+     */
+    public static long offHeapBytes() {
+        synchronized (tiers) {
+            return bytes[Tier.WARM.ordinal()];
+        }
+    }
+
+    /**
+     * @return the number of bytes used by the cold tier
+     */
+    public static long diskBytes() {
+        synchronized (tiers) {
+            return bytes[Tier.COLD.ordinal()];
+        }
+    }
+
+    /**
+     * @return the number of cached member sets, in every tier
+     */
+    public static int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of times a set has moved up a tier
+     */
+    public static long promotions() {
+        return promotions.sum();
+    }
+
+    /**
+     * @return the number of times a set has moved down a tier
+     */
+    public static long demotions() {
+        return demotions.sum();
+    }
+
+    /**
+     * @return the number of sets dropped from the cold tier to stay within its budget
+     */
+    public static long drops() {
+        return drops.sum();
+    }
+}
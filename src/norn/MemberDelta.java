@@ -0,0 +1,117 @@
+package norn;
+
+/**
+ * Immutable change to the members of a list expression: the ids that were added to it, and the ids that were removed.
+ */
+public class MemberDelta {
+    // AF(added, removed) = the change that adds the ids in added and removes the ids in removed
+    // RI:
+    //     added and removed have no ids in common
+    // SRE:
+    //     all fields are private, final and immutable
+    // Thread safety:
+    //     MemberDelta is immutable.
+
+    private static final MemberDelta NONE = new MemberDelta(MemberSet.empty(), MemberSet.empty());
+
+    private final MemberSet added;
+    private final MemberSet removed;
+
+    /**
+     * Make a new MemberDelta.
+     * @param added the ids added, which must not be in removed
+     * @param removed the ids removed
+     */
+    public MemberDelta(MemberSet added, MemberSet removed) {
+        this.added = added;
+        this.removed = removed;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert added.intersect(removed).isEmpty();
+    }
+
+    /**
+     * @return the change that adds and removes nothing
+     */
+    public static MemberDelta none() {
+        return NONE;
+    }
+
+    /**
+     * @param before the members before a change
+     * @param after the members after the change
+     * @return the change that turns before into after
+     */
+    public static MemberDelta between(MemberSet before, MemberSet after) {
+        // unchanged chunks are shared between before and after, so this only does work for the chunks that changed
+        final MemberSet added = after.difference(before);
+        final MemberSet removed = before.difference(after);
+        if (added.isEmpty() && removed.isEmpty()) {
+            return NONE;
+        }
+        return new MemberDelta(added, removed);
+    }
+
+    /**
+     * @return the ids added
+     */
+    public MemberSet getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the ids removed
+     */
+    public MemberSet getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return true if and only if this change adds and removes nothing
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * @param before the members before this change
+     * @return the members after this change
+     */
+    public MemberSet apply(MemberSet before) {
+        return before.difference(removed).union(added);
+    }
+
+    /**
+     * Works out whether an id was a member before this change, from whether it is a member after.
+     * @param id an address id
+     * @param isMember whether id is a member after this change
+     * @return whether id was a member before this change
+     */
+    public boolean wasMember(int id, boolean isMember) {
+        return removed.contains(id) || (isMember && !added.contains(id));
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (that instanceof MemberDelta) {
+            MemberDelta other = (MemberDelta) that;
+            return this.added.equals(other.added) && this.removed.equals(other.removed);
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * added.hashCode() + removed.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "+" + added + " -" + removed;
+    }
+}
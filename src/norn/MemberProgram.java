@@ -0,0 +1,299 @@
+package norn;
+
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable stack program that evaluates the members of a list expression, compiled from its tree once, so that
+ * evaluating it again is a loop over an array of instructions instead of a walk of the tree.
+ *
+ * Each instruction pushes a member set onto an operand stack or combines the sets on top of it:
+ *   CONSTANT i pushes constants[i], the members of the addresses of the expression, folded at compile time;
+ *   LIST i pushes the members of list names[i], which are looked up when the program runs;
+ *   UNION n replaces the top n sets with their union;
+ *   INTERSECT and DIFFERENCE replace the top two sets with their intersection or difference.
+ * List names are resolved when the program runs, so a program stays valid however the lists it reads are redefined,
+ * and programs are cached by the expression they were compiled from.
+ */
+public class MemberProgram {
+    // AF(code, constants, names, maxDepth) = the program whose i-th instruction has opcode code[2i] and argument
+    //     code[2i + 1], which never needs more than maxDepth sets on the operand stack
+    // RI:
+    //     code.length is even and > 0
+    //     the arguments of CONSTANT and LIST are indexes into constants and names
+    //     running the program leaves exactly one set on the stack
+    // SRE:
+    //     all fields are private and final, and are never returned or modified after construction
+    // Thread safety:
+    //     MemberProgram is immutable. Each thread runs programs on its own operand stack. The cache is a
+    //     ConcurrentHashMap and collected is a ReferenceQueue, which are both threadsafe; two threads compiling the
+    //     same expression at once each get a correct program, and only one of them is kept.
+
+    private static final int CONSTANT = 0;
+    private static final int LIST = 1;
+    private static final int UNION = 2;
+    private static final int INTERSECT = 3;
+    private static final int DIFFERENCE = 4;
+
+    private static final Map<WeakExpressionKey, MemberProgram> cache = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<ListExpression> collected = new ReferenceQueue<>();
+
+    /** the operand stack of each thread, which programs run inside other programs share above their caller's sets */
+    private static final ThreadLocal<OperandStack> stacks = ThreadLocal.withInitial(OperandStack::new);
+
+    private final int[] code;
+    private final MemberSet[] constants;
+    private final String[] names;
+    private final int maxDepth;
+
+    private MemberProgram(int[] code, MemberSet[] constants, String[] names, int maxDepth) {
+        this.code = code;
+        this.constants = constants;
+        this.names = names;
+        this.maxDepth = maxDepth;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert code.length % 2 == 0 && code.length > 0;
+        assert maxDepth > 0;
+    }
+
+    /**
+     * Returns the program for an expression, compiling it unless it was compiled before.
+     * @param expression an expression
+     * @return a program whose result is the members of expression
+     */
+    public static MemberProgram of(ListExpression expression) {
+        final MemberProgram cached = cache.get(new WeakExpressionKey(expression, null));
+        if (cached != null) {
+            return cached;
+        }
+        WeakExpressionKey.expunge(cache, collected);
+        final MemberProgram program = new Compiler().compile(expression);
+        final MemberProgram raced = cache.putIfAbsent(new WeakExpressionKey(expression, collected), program);
+        return raced == null ? program : raced;
+    }
+
+    /**
+     * Runs the program.
+     * Requires that definitions is a threadsafe data type, and that the program reaches no circular definitions.
+     * @param definitions the definitions to look up list names in
+     * @return the members of the expression the program was compiled from, against definitions
+     */
+    public MemberSet run(Map<String, ListExpression> definitions) {
+        final OperandStack stack = stacks.get();
+        final int base = stack.top;
+        stack.reserve(maxDepth);
+        try {
+            for (int pc = 0; pc < code.length; pc += 2) {
+                final int argument = code[pc + 1];
+                switch (code[pc]) {
+                case CONSTANT:
+                    stack.push(constants[argument]);
+                    break;
+                case LIST:
+                    // a list read by this one may run its own program on the same stack, above our sets
+                    stack.push(membersOf(names[argument], definitions));
+                    break;
+                case UNION:
+                    stack.push(MemberSet.unionAll(stack.pop(argument)));
+                    break;
+                case INTERSECT: {
+                    final MemberSet right = stack.pop();
+                    stack.push(stack.pop().intersect(right));
+                    break;
+                }
+                case DIFFERENCE: {
+                    final MemberSet right = stack.pop();
+                    stack.push(stack.pop().difference(right));
+                    break;
+                }
+                default:
+                    throw new AssertionError("unknown opcode " + code[pc]);
+                }
+            }
+            assert stack.top == base + 1;
+            return stack.pop();
+        } finally {
+            stack.clearAbove(base);
+        }
+    }
+
+    /**
+     * @param listname a list name
+     * @param definitions the definitions to look listname up in
+     * @return the members of listname in definitions
+     */
+    private static MemberSet membersOf(String listname, Map<String, ListExpression> definitions) {
+        if (definitions instanceof DefinitionMap) {
+            return ((DefinitionMap) definitions).getMembers(listname);
+        }
+        final ListExpression definition = definitions.get(listname);
+        return definition == null ? MemberSet.empty() : of(definition).run(definitions);
+    }
+
+    /**
+     * Mutable, growable stack of member sets, confined to one thread.
+     */
+    private static class OperandStack {
+        private MemberSet[] sets = new MemberSet[16];
+        private int top = 0;
+
+        /**
+         * Makes room for count more sets above the top.
+         */
+        private void reserve(int count) {
+            if (top + count > sets.length) {
+                sets = Arrays.copyOf(sets, Math.max(2 * sets.length, top + count));
+            }
+        }
+
+        private void push(MemberSet set) {
+            sets[top++] = set;
+        }
+
+        private MemberSet pop() {
+            final MemberSet set = sets[--top];
+            sets[top] = null;
+            return set;
+        }
+
+        /**
+         * @return the top count sets, from the deepest to the top, which are removed from the stack
+         */
+        private List<MemberSet> pop(int count) {
+            final List<MemberSet> popped = new ArrayList<>(Arrays.asList(sets).subList(top - count, top));
+            clearAbove(top - count);
+            return popped;
+        }
+
+        /**
+         * Removes every set above height, so the stack doesn't keep them alive.
+         */
+        private void clearAbove(int height) {
+            Arrays.fill(sets, height, top, null);
+            top = height;
+        }
+    }
+
+    /**
+     * Mutable visitor that emits the instructions of one program.
+     */
+    private static class Compiler implements ListExpression.Visitor<Void> {
+        private final List<Integer> code = new ArrayList<>();
+        private final List<MemberSet> constants = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+        private int depth = 0;
+        private int maxDepth = 0;
+
+        private MemberProgram compile(ListExpression expression) {
+            expression.accept(this);
+            assert depth == 1;
+            return new MemberProgram(code.stream().mapToInt(Integer::intValue).toArray(),
+                    constants.toArray(new MemberSet[0]), names.toArray(new String[0]), maxDepth);
+        }
+
+        /**
+         * @param opcode an opcode
+         * @param argument its argument
+         * @param change the change to the height of the stack after running the instruction
+         */
+        private void emit(int opcode, int argument, int change) {
+            code.add(opcode);
+            code.add(argument);
+            depth += change;
+            maxDepth = Math.max(maxDepth, depth);
+        }
+
+        private void emitConstant(MemberSet members) {
+            constants.add(members);
+            emit(CONSTANT, constants.size() - 1, 1);
+        }
+
+        @Override
+        public Void onEmailAddress(EmailAddress address) {
+            emitConstant(MemberSet.of(address.getId()));
+            return null;
+        }
+
+        @Override
+        public Void onEmptyExpression(EmptyExpression empty) {
+            emitConstant(MemberSet.empty());
+            return null;
+        }
+
+        @Override
+        public Void onListname(Listname listname) {
+            int index = names.indexOf(listname.getListname());
+            if (index < 0) {
+                names.add(listname.getListname());
+                index = names.size() - 1;
+            }
+            emit(LIST, index, 1);
+            return null;
+        }
+
+        @Override
+        public Void onListDefinition(ListDefinition definition) {
+            return definition.getValue().accept(this);
+        }
+
+        @Override
+        public Void onPipe(Pipe pipe) {
+            return onEmptyExpression(ExpressionFactory.empty());
+        }
+
+        @Override
+        public Void onSequence(Sequence sequence) {
+            final List<ListExpression> elements = sequence.getElements();
+            return elements.get(elements.size() - 1).accept(this);
+        }
+
+        @Override
+        public Void onSetUnion(SetUnion union) {
+            // the addresses of a union are folded into one constant
+            final List<MemberSet> addresses = new ArrayList<>();
+            int operands = 0;
+            for (ListExpression e: union.getElements()) {
+                if (e instanceof EmailAddress) {
+                    addresses.add(MemberSet.of(((EmailAddress) e).getId()));
+                } else if (!(e instanceof EmptyExpression)) {
+                    e.accept(this);
+                    operands++;
+                }
+            }
+            if (!addresses.isEmpty() || operands == 0) {
+                emitConstant(MemberSet.unionAll(addresses));
+                operands++;
+            }
+            if (operands > 1) {
+                emit(UNION, operands, 1 - operands);
+            }
+            return null;
+        }
+
+        @Override
+        public Void onSetIntersection(SetIntersection intersection) {
+            intersection.getLeft().accept(this);
+            intersection.getRight().accept(this);
+            emit(INTERSECT, 0, -1);
+            return null;
+        }
+
+        @Override
+        public Void onSetDifference(SetDifference difference) {
+            difference.getLeft().accept(this);
+            difference.getRight().accept(this);
+            emit(DIFFERENCE, 0, -1);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package norn;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable set of email address ids, as given by AddressDictionary.
+ * This is the representation that list expressions are evaluated on, so that set operations
+ * work on primitive ints rather than on hashed address strings.
+ *
+ * Ids are split by their high 16 bits into compressed containers (see Container), so union, intersection
+ * and difference work a chunk at a time, and cost nothing for chunks only one side has.
+ * Containers are immutable and shared between sets wherever an operation leaves a chunk unchanged.
+ */
+public class MemberSet {
+    // AF(keys, containers) = the set of ids (keys[i] << 16) | v for every v in containers[i], for all i
+    // RI:
+    //     keys.length == containers.length
+    //     keys is strictly increasing
+    //     no container is empty
+    //     size == the sum of the cardinalities of containers
+    // SRE:
+    //     all fields are private and final, and keys and containers are never returned or modified after construction.
+    //     Containers are immutable, so sharing them between sets is safe.
+    // Thread safety:
+    //     MemberSet is immutable, and so are its containers.
+
+    private static final MemberSet EMPTY = new MemberSet(new char[0], new Container[0]);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int size;
+
+    private MemberSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int count = 0;
+        for (Container container: containers) {
+            count += container.cardinality();
+        }
+        this.size = count;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert keys.length == containers.length;
+        for (int i = 0; i < keys.length; i++) {
+            assert i == 0 || keys[i - 1] < keys[i];
+            assert !containers[i].isEmpty();
+        }
+    }
+
+    /**
+     * @return the empty set
+     */
+    public static MemberSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param id an address id
+     * @return the set containing only id
+     */
+    public static MemberSet of(int id) {
+        return new MemberSet(new char[] { high(id) }, new Container[] { ArrayContainer.of(low(id)) });
+    }
+
+    /**
+     * @param ids strictly increasing non-negative ids
+     * @param length the number of ids to use from the start of ids
+     * @return the set of the first length ids in ids
+     */
+    public static MemberSet fromSorted(int[] ids, int length) {
+        final List<Character> keys = new ArrayList<>();
+        final List<Container> containers = new ArrayList<>();
+        int start = 0;
+        while (start < length) {
+            final char key = high(ids[start]);
+            int end = start;
+            while (end < length && high(ids[end]) == key) {
+                end++;
+            }
+            if (end - start <= Container.MAX_ARRAY_SIZE) {
+                final char[] values = new char[end - start];
+                for (int i = start; i < end; i++) {
+                    values[i - start] = low(ids[i]);
+                }
+                containers.add(new ArrayContainer(values));
+            } else {
+                final long[] words = new long[Container.WORDS];
+                for (int i = start; i < end; i++) {
+                    words[low(ids[i]) >>> 6] |= 1L << ids[i];
+                }
+                containers.add(Container.fromWords(words));
+            }
+            keys.add(key);
+            start = end;
+        }
+        final char[] keyArray = new char[keys.size()];
+        for (int i = 0; i < keyArray.length; i++) {
+            keyArray[i] = keys.get(i);
+        }
+        return new MemberSet(keyArray, containers.toArray(new Container[0]));
+    }
+
+    /**
+     * @param sets the sets to union together
+     * @return a set containing every id in any of the sets
+     */
+    public static MemberSet unionAll(List<MemberSet> sets) {
+        // gather the containers of each chunk, so chunks in many sets are merged in a single pass over a bitmap
+        final TreeMap<Character, List<Container>> chunks = new TreeMap<>();
+        for (MemberSet set: sets) {
+            for (int i = 0; i < set.keys.length; i++) {
+                chunks.computeIfAbsent(set.keys[i], k -> new ArrayList<>()).add(set.containers[i]);
+            }
+        }
+        final char[] keys = new char[chunks.size()];
+        final Container[] containers = new Container[chunks.size()];
+        int count = 0;
+        for (Character key: chunks.keySet()) {
+            final List<Container> chunk = chunks.get(key);
+            keys[count] = key;
+            if (chunk.size() == 1) {
+                containers[count] = chunk.get(0);
+            } else if (chunk.size() == 2) {
+                containers[count] = chunk.get(0).or(chunk.get(1));
+            } else {
+                final long[] words = new long[Container.WORDS];
+                for (Container container: chunk) {
+                    container.orInto(words);
+                }
+                containers[count] = Container.fromWords(words);
+            }
+            count++;
+        }
+        return new MemberSet(keys, containers);
+    }
+
+    /**
+     * @param that another set
+     * @return a set containing every id in this or in that
+     */
+    public MemberSet union(MemberSet that) {
+        if (that.isEmpty() || that == this) {
+            return this;
+        } else if (this.isEmpty()) {
+            return that;
+        }
+        final char[] keys = new char[this.keys.length + that.keys.length];
+        final Container[] containers = new Container[keys.length];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < this.keys.length || j < that.keys.length) {
+            if (j == that.keys.length || (i < this.keys.length && this.keys[i] < that.keys[j])) {
+                keys[count] = this.keys[i];
+                containers[count++] = this.containers[i++];
+            } else if (i == this.keys.length || this.keys[i] > that.keys[j]) {
+                keys[count] = that.keys[j];
+                containers[count++] = that.containers[j++];
+            } else {
+                keys[count] = this.keys[i];
+                containers[count++] = this.containers[i++].or(that.containers[j++]);
+            }
+        }
+        return new MemberSet(Arrays.copyOf(keys, count), Arrays.copyOf(containers, count));
+    }
+
+    /**
+     * @param that another set
+     * @return a set containing every id in both this and that
+     */
+    public MemberSet intersect(MemberSet that) {
+        if (that == this) {
+            return this;
+        }
+        // only chunks of the set with fewer chunks can be kept, so walk those and gallop through the other set's
+        final MemberSet small = this.keys.length <= that.keys.length ? this : that;
+        final MemberSet large = small == this ? that : this;
+        final char[] keys = new char[small.keys.length];
+        final Container[] containers = new Container[keys.length];
+        int j = 0;
+        int count = 0;
+        for (int i = 0; i < small.keys.length && j < large.keys.length; i++) {
+            j = Container.gallop(large.keys, j, small.keys[i]);
+            if (j < large.keys.length && large.keys[j] == small.keys[i]) {
+                final Container container = small.containers[i].and(large.containers[j]);
+                if (!container.isEmpty()) {
+                    keys[count] = small.keys[i];
+                    containers[count++] = container;
+                }
+            }
+        }
+        return count == 0 ? EMPTY : new MemberSet(Arrays.copyOf(keys, count), Arrays.copyOf(containers, count));
+    }
+
+    /**
+     * @param that another set
+     * @return a set containing every id in this that is not in that
+     */
+    public MemberSet difference(MemberSet that) {
+        if (that == this) {
+            return EMPTY;
+        } else if (that.isEmpty() || this.isEmpty()) {
+            return this;
+        }
+        final char[] keys = new char[this.keys.length];
+        final Container[] containers = new Container[keys.length];
+        int j = 0;
+        int count = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            j = Container.gallop(that.keys, j, this.keys[i]);
+            Container container = this.containers[i];
+            if (j < that.keys.length && that.keys[j] == this.keys[i]) {
+                container = container.andNot(that.containers[j]);
+            }
+            if (!container.isEmpty()) {
+                keys[count] = this.keys[i];
+                containers[count++] = container;
+            }
+        }
+        return count == 0 ? EMPTY : new MemberSet(Arrays.copyOf(keys, count), Arrays.copyOf(containers, count));
+    }
+
+    /**
+     * @param keep the test for which ids to keep
+     * @return a set of the ids in this set that pass keep
+     */
+    public MemberSet filter(IntPredicate keep) {
+        final int[] kept = new int[size];
+        final int[] count = { 0 };
+        forEach(id -> {
+            if (keep.test(id)) {
+                kept[count[0]++] = id;
+            }
+        });
+        return count[0] == size ? this : fromSorted(kept, count[0]);
+    }
+
+    /**
+     * @param id an address id
+     * @return true if and only if id is in this set
+     */
+    public boolean contains(int id) {
+        final int index = Arrays.binarySearch(keys, high(id));
+        return index >= 0 && containers[index].contains(low(id));
+    }
+
+    /**
+     * @return the number of ids in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if and only if this set has no ids
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return an iterator over the ids in this set, in increasing order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int index = 0;
+            private PrimitiveIterator.OfInt current = containers.length == 0 ? null : containers[0].iterator(keys[0]);
+
+            @Override
+            public boolean hasNext() {
+                while (current != null && !current.hasNext()) {
+                    index++;
+                    current = index < containers.length ? containers[index].iterator(keys[index]) : null;
+                }
+                return current != null;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.nextInt();
+            }
+        };
+    }
+
+    /**
+     * Calls action on every id in this set, in increasing order.
+     * @param action the action to perform on each id
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < keys.length; i++) {
+            containers[i].forEach(keys[i], action);
+        }
+    }
+
+    /**
+     * Converts this set back into email addresses, looking each id up in AddressDictionary.
+     * @return a new mutable set of the email addresses in this set
+     */
+    public Set<EmailAddress> toAddresses() {
+        final Set<EmailAddress> addresses = new HashSet<>();
+        forEach(id -> addresses.add(AddressDictionary.lookup(id)));
+        return addresses;
+    }
+
+    /**
+     * @return the approximate number of bytes used to hold the ids in this set
+     */
+    public long sizeInBytes() {
+        long bytes = 2L * keys.length;
+        for (Container container: containers) {
+            bytes += container.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes writeTo() writes
+     */
+    int encodedSize() {
+        int bytes = 4 + 2 * keys.length;
+        for (Container container: containers) {
+            bytes += container.encodedSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes this set as its number of containers, then each container's key and the container, in a form
+     * readFrom() reads back without sorting or hashing anything.
+     * @param out where to write, with at least encodedSize() bytes remaining
+     */
+    void writeTo(ByteBuffer out) {
+        out.putInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            out.putChar(keys[i]);
+            containers[i].writeTo(out);
+        }
+    }
+
+    /**
+     * Reads a set written by writeTo().
+     * @param in where to read, positioned at the start of the set; it is left positioned after it
+     * @return the set that was written
+     */
+    static MemberSet readFrom(ByteBuffer in) {
+        final int count = in.getInt();
+        final char[] keys = new char[count];
+        final Container[] containers = new Container[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = in.getChar();
+            containers[i] = Container.readFrom(in);
+        }
+        return new MemberSet(keys, containers);
+    }
+
+    private static char high(int id) {
+        return (char) (id >>> 16);
+    }
+
+    private static char low(int id) {
+        return (char) id;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof MemberSet)) {
+            return false;
+        }
+        final MemberSet other = (MemberSet) that;
+        if (this.size != other.size || !Arrays.equals(this.keys, other.keys)) {
+            return false;
+        }
+        // the same ids may be held by different kinds of container, so compare the ids themselves
+        final PrimitiveIterator.OfInt mine = this.iterator();
+        final PrimitiveIterator.OfInt theirs = other.iterator();
+        while (mine.hasNext()) {
+            if (mine.nextInt() != theirs.nextInt()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        final int[] hash = { 0 };
+        forEach(id -> hash[0] = 31 * hash[0] + id);
+        return hash[0];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder output = new StringBuilder("{");
+        forEach(id -> {
+            if (output.length() > 1) {
+                output.append(", ");
+            }
+            output.append(AddressDictionary.lookup(id).getAddress());
+        });
+        return output.append("}").toString();
+    }
+}
@@ -0,0 +1,177 @@
+package norn;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * Mutable stream of address ids in strictly increasing order, pulled one at a time.
+ * Set operations on streams are merge-joins that only look at the next id of each operand, so a whole expression
+ * can be evaluated without holding any intermediate set of members.
+ */
+public abstract class MemberStream implements PrimitiveIterator.OfInt {
+    // AF(next, ready) = the ids still to come from this stream, which begin with next if ready,
+    //     and are the ids computeNext() will return otherwise
+    // RI:
+    //     if ready, next is END or >= 0
+    // SRE:
+    //     fields are private, and ids are primitives
+    // Thread safety:
+    //     not threadsafe, a stream is confined to the thread pulling from it
+
+    /** Returned by computeNext() once the stream has no more ids. */
+    protected static final int END = -1;
+
+    private int next;
+    private boolean ready = false;
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert !ready || next >= END;
+    }
+
+    /**
+     * @return the next id of the stream, which is greater than every id returned before, or END if there are none left
+     */
+    protected abstract int computeNext();
+
+    @Override
+    public boolean hasNext() {
+        if (!ready) {
+            next = computeNext();
+            ready = true;
+        }
+        checkRep();
+        return next != END;
+    }
+
+    /**
+     * @return the next id of the stream, without removing it
+     * @throws NoSuchElementException if the stream has no more ids
+     */
+    public int peek() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return next;
+    }
+
+    @Override
+    public int nextInt() {
+        final int id = peek();
+        ready = false;
+        return id;
+    }
+
+    /**
+     * @return a stream with no ids
+     */
+    public static MemberStream empty() {
+        return new MemberStream() {
+            @Override
+            protected int computeNext() {
+                return END;
+            }
+        };
+    }
+
+    /**
+     * @param members a set of ids
+     * @return a stream of the ids in members, in increasing order
+     */
+    public static MemberStream of(MemberSet members) {
+        final PrimitiveIterator.OfInt ids = members.iterator();
+        return new MemberStream() {
+            @Override
+            protected int computeNext() {
+                return ids.hasNext() ? ids.nextInt() : END;
+            }
+        };
+    }
+
+    /**
+     * @param streams streams to merge, which are consumed by the result
+     * @return a stream of every id in any of streams, each once
+     */
+    public static MemberStream union(List<MemberStream> streams) {
+        final PriorityQueue<MemberStream> heads =
+                new PriorityQueue<>(Math.max(1, streams.size()), Comparator.comparingInt(MemberStream::peek));
+        for (MemberStream stream: streams) {
+            if (stream.hasNext()) {
+                heads.add(stream);
+            }
+        }
+        return new MemberStream() {
+            @Override
+            protected int computeNext() {
+                if (heads.isEmpty()) {
+                    return END;
+                }
+                final int id = heads.peek().peek();
+                // every stream whose head is id moves past it, so it comes out once
+                while (!heads.isEmpty() && heads.peek().peek() == id) {
+                    final MemberStream stream = heads.poll();
+                    stream.nextInt();
+                    if (stream.hasNext()) {
+                        heads.add(stream);
+                    }
+                }
+                return id;
+            }
+        };
+    }
+
+    /**
+     * @param left a stream, which is consumed by the result
+     * @param right another stream, which is consumed by the result
+     * @return a stream of the ids in both left and right
+     */
+    public static MemberStream intersection(MemberStream left, MemberStream right) {
+        return new MemberStream() {
+            @Override
+            protected int computeNext() {
+                while (left.hasNext() && right.hasNext()) {
+                    final int leftId = left.peek();
+                    final int rightId = right.peek();
+                    if (leftId == rightId) {
+                        left.nextInt();
+                        right.nextInt();
+                        return leftId;
+                    } else if (leftId < rightId) {
+                        left.nextInt();
+                    } else {
+                        right.nextInt();
+                    }
+                }
+                return END;
+            }
+        };
+    }
+
+    /**
+     * @param left a stream, which is consumed by the result
+     * @param right another stream, which is consumed by the result
+     * @return a stream of the ids in left but not in right
+     */
+    public static MemberStream difference(MemberStream left, MemberStream right) {
+        return new MemberStream() {
+            @Override
+            protected int computeNext() {
+                while (left.hasNext()) {
+                    final int id = left.nextInt();
+                    while (right.hasNext() && right.peek() < id) {
+                        right.nextInt();
+                    }
+                    if (!right.hasNext() || right.peek() != id) {
+                        return id;
+                    }
+                }
+                return END;
+            }
+        };
+    }
+}
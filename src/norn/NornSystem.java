@@ -3,14 +3,18 @@ package norn;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Set;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
 /**
  * Class of static methods combining the console and Webserver output for the norn system.
  */
@@ -25,10 +29,16 @@ public class NornSystem {
     // Thread safety:
     //      run() will only be called once, by Main.java. So there's only one chain of sequential console input to consider.
     //      However, the WebServer may give concurrent parseEvalAndStore requests.
-    //      parseEvalAndStore is synchronized, so parsing, evaluating, and storing a list expression is an atomic action.
+    //      definitions is a threadsafe DefinitionStore, so evaluating an expression and storing the definitions it
+    //      makes is an atomic action, and only expressions that define or read the same lists wait for each other.
     
     private static final String SAVE_COMMAND = "/save";
     private static final String LOAD_COMMAND = "/load";
+    private static final String SNAPSHOT_COMMAND = "/snapshot";
+    
+    /** the number of characters of statements to load at once */
+    private static final int LOAD_BATCH_LENGTH = 1 << 20;
+    private static final long PROGRESS_INTERVAL_NANOS = 2_000_000_000L;
     
     private static final WebServer WEB;
     
@@ -42,15 +52,22 @@ public class NornSystem {
         }
     }
     
-    private static Map<String, ListExpression> definitions = new HashMap<>();
+    private static final DefinitionStore definitions = new DefinitionStore();
     
     /**
      * Read expression and command inputs from the console and output results,
      * and start a web server to handle requests from remote clients.
+     * If the system property norn.data names a directory, the definitions in it are recovered first, and every
+     * change is journaled there.
      * An empty console input terminates the program.
-     * @throws IOException if there is an error reading the input
+     * @throws IOException if there is an error reading the input, or recovering the data directory
      */
     public static void run() throws IOException {
+        final String data = System.getProperty("norn.data");
+        final Journal journal = data == null ? null : Journal.recover(Paths.get(data), definitions);
+        if (journal != null) {
+            System.out.println("Recovered " + definitions.snapshot().getDefinitions().size() + " lists from " + data);
+        }
         WEB.start();
         
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
@@ -61,6 +78,9 @@ public class NornSystem {
             
             if (input.isEmpty()) {
                 WEB.stop();
+                if (journal != null) {
+                    journal.close();
+                }
                 return; // exits the program
             }
             
@@ -79,23 +99,23 @@ public class NornSystem {
                     } catch (IOException e) {
                         System.out.println("Problem loading file: " + e.getMessage());
                     }
+                } else if (input.split(" ")[0].equals(SNAPSHOT_COMMAND)) {
+                    String filepath = input.split(" ")[1];
+                    try {
+                        snapshot(filepath);
+                    } catch (IOException e) {
+                        System.out.println("Problem saving snapshot: " + e.getMessage());
+                    }
                 } else {
-                    String output;
                     try {
                         ListEval eval = parseEvalAndStore(input);
-                        output = "";
-                        Set<EmailAddress> emails = eval.getEmailAddresses();
-                        
-                        for (EmailAddress email: emails) {
-                            if (output.length() != 0) {
-                                output += ", ";
-                            }
-                            output = output + email.getAddress(); 
-                        }
+                        PrintWriter out = new PrintWriter(System.out);
+                        writeAddresses(eval.streamMembers(), out);
+                        out.println();
+                        out.flush();
                     } catch (InvalidExpressionException e) {
-                        output = "Error: Invalid expression: " + e.getMessage();
+                        System.out.println("Error: Invalid expression: " + e.getMessage());
                     }
-                    System.out.println(output);
                 }
             } catch (NoSuchElementException nse) {
                 // currentExpression was empty
@@ -106,59 +126,209 @@ public class NornSystem {
         }
     }
     
-    private static void load(String filename) throws IOException{
-        BufferedReader br = new BufferedReader(new FileReader(new File(filename)));
-        String line = br.readLine();
-        String savedString = "";
-        
-        while (line != null) { // must use null since the reading library does this
-            savedString += line;
-            line = br.readLine();
+    /**
+     * Writes the email addresses of a stream of address ids, separated by ", ", as the ids are pulled from it.
+     * Addresses are only looked up in AddressDictionary here, once evaluation is done.
+     * @param members the ids of the email addresses, which are consumed
+     * @param out where to write the addresses
+     */
+    static void writeAddresses(MemberStream members, PrintWriter out) {
+        boolean first = true;
+        while (members.hasNext()) {
+            if (!first) {
+                out.print(", ");
+            }
+            out.print(AddressDictionary.lookup(members.nextInt()).getAddress());
+            first = false;
+        }
+    }
+    
+    /**
+     * Loads the definitions in a file, which is either a snapshot or statements. Statements are loaded one batch at
+     * a time, reporting progress as they go, and if a statement is invalid, the statements before it stay loaded.
+     * @param filename the file to load
+     * @throws IOException if the file can't be read, or is a corrupt snapshot, or a statement is invalid
+     */
+    private static void load(String filename) throws IOException {
+        final Path path = Paths.get(filename);
+        if (SnapshotFile.isSnapshot(path)) {
+            loadSnapshot(path);
+            return;
+        }
+        if (StatementReader.hasPipe(path)) {
+            // a pipe applies to everything before it, so the file must be evaluated as a whole
+            loadWhole(path);
+            return;
+        }
+        try (StatementReader statements = new StatementReader(path)) {
+            final List<String> batch = new ArrayList<>();
+            int batchLength = 0;
+            long loaded = 0;
+            long lastReport = System.nanoTime();
+            for (String statement = statements.next(); statement != null; statement = statements.next()) {
+                if (statement.isBlank()) {
+                    continue;
+                }
+                batch.add(statement);
+                batchLength += statement.length();
+                if (batchLength >= LOAD_BATCH_LENGTH) {
+                    loaded += define(batch, loaded);
+                    batch.clear();
+                    batchLength = 0;
+                }
+                if (System.nanoTime() - lastReport > PROGRESS_INTERVAL_NANOS) {
+                    System.out.println("Loaded " + loaded + " statements, "
+                            + 100 * statements.position() / Math.max(1, statements.size()) + "% of the file");
+                    lastReport = System.nanoTime();
+                }
+            }
+            loaded += define(batch, loaded);
+            System.out.println("Successfully loaded " + loaded + " statements from the supplied file.");
+        }
+    }
+    
+    /**
+     * Stores the definitions of a batch of statements, as one sequence if they are all valid, and otherwise one at
+     * a time up to the first invalid one.
+     * @param batch statements, in the order they are in the file
+     * @param loaded the number of statements loaded before the batch
+     * @return the number of statements in batch
+     * @throws IOException if a statement is invalid, after storing every statement before it
+     */
+    private static int define(List<String> batch, long loaded) throws IOException {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            // one sequence needs only one analysis of the lists it touches, rather than one per statement
+            definitions.define(ExpressionParser.parse(String.join(";", batch)));
+            return batch.size();
+        } catch (UnableToParseException | InvalidExpressionException e) {
+            // find the invalid statement, keeping the ones before it
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                definitions.define(ExpressionParser.parse(batch.get(i)));
+            } catch (UnableToParseException | InvalidExpressionException e) {
+                final String message = e instanceof InvalidExpressionException ? e.getMessage() : "syntax error";
+                throw new IOException("statement " + (loaded + i + 1) + " was not a valid expression (" + message
+                        + "), so only the " + (loaded + i) + " statements before it were loaded");
+            }
+        }
+        return batch.size();
+    }
+    
+    /**
+     * Loads a file as a single expression.
+     * @param path the file to load
+     * @throws IOException if the file can't be read, or is not a valid expression
+     */
+    private static void loadWhole(Path path) throws IOException {
+        final StringBuilder savedString = new StringBuilder();
+        try (StatementReader statements = new StatementReader(path)) {
+            for (String statement = statements.next(); statement != null; statement = statements.next()) {
+                if (savedString.length() > 0) {
+                    savedString.append(';');
+                }
+                savedString.append(statement);
+            }
         }
-        
         try {
-            parseEvalAndStore(savedString); // we can throw away the output since we are just loading
-            br.close();
+            definitions.define(ExpressionParser.parse(savedString.toString()));
             System.out.println("Successfully loaded the ListExpression from the supplied file.");
-        } catch (InvalidExpressionException e) {
-            br.close();
+        } catch (UnableToParseException | InvalidExpressionException e) {
             throw new IOException("file was not a valid expression");
         }
-        br.close();
+    }
+    
+    /**
+     * Loads the definitions in a snapshot, all at once.
+     * @param path the snapshot to load
+     * @throws IOException if the snapshot can't be read, or is corrupt, or its definitions are circular
+     */
+    private static void loadSnapshot(Path path) throws IOException {
+        final int loaded;
+        try {
+            loaded = definitions.loadSnapshot(path);
+        } catch (InvalidExpressionException e) {
+            throw new IOException("snapshot was not valid: " + e.getMessage());
+        }
+        System.out.println("Successfully loaded " + loaded + " lists from the supplied snapshot.");
     }
     
     private static void save(String filename) throws IOException{
-        String outputString = "";
-        for (String listname: definitions.keySet()) {
-            if (outputString.length() != 0) {
-                outputString += ";";
+        final Map<String, ListExpression> definitions = NornSystem.definitions.snapshot().getDefinitions();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(filename)))) {
+            boolean first = true;
+            for (Map.Entry<String, ListExpression> entry: definitions.entrySet()) {
+                if (!first) {
+                    bw.write(";");
+                }
+                bw.write("(" + entry.getKey() + "=" + entry.getValue() + ")");
+                first = false;
             }
-            outputString += "(" + listname + "=" + definitions.get(listname) + ")";
         }
-        BufferedWriter bw = new BufferedWriter(new FileWriter(new File(filename)));
-        bw.write(outputString);
-        bw.close();
         System.out.println("Successfully saved all ListExpression definitions at the supplied location.");
     }
     
+    /**
+     * Saves every definition to a binary snapshot, which /load reads back without parsing.
+     * @param filename the file to write
+     * @throws IOException if the file can't be written
+     */
+    private static void snapshot(String filename) throws IOException {
+        SnapshotFile.write(Paths.get(filename), definitions.snapshot().getDefinitions());
+        System.out.println("Successfully saved a snapshot of all ListExpression definitions at the supplied location.");
+    }
+    
     /**
      * Parses the string input into a ListExpression, evaluates into a set of email addresses and a visualization string, 
      * and stores it into the norn system's current expression if it was a valid expression.
      * 
-     * This method is synchronized, so it is safe to be called by multiple threads. 
-     * Parsing, evaluating, and storing is thus an atomic operation,
-     * preventing concurrency issues with adding list expressions.
+     * This method is safe to be called by multiple threads. 
+     * Expressions that define lists are evaluated and stored as an atomic operation,
+     * preventing concurrency issues with adding list expressions, 
+     * but only wait for other expressions that define or read the same lists.
+     * Other expressions are evaluated against the current definitions without waiting for any lock.
      * 
      * @param input the string to parse
      * @return a ListEval object containing the set of email addresses and visualization string
      *  of the parsed string combined sequentially with the norn system's previous input.
      * @throws InvalidExpressionException if the expression from the parsed input is not valid.
      */
-    public static synchronized ListEval parseEvalAndStore(String input) throws InvalidExpressionException {
+    public static ListEval parseEvalAndStore(String input) throws InvalidExpressionException {
         final ListExpression newExpression = ListExpression.parse(input);
-        ListEval eval = ListExpression.evalAndVisualize(newExpression, definitions);
-        // if above line gives InvalidExpressionException, rest won't happen
-        definitions = eval.getDefinitions();
-        return eval;
+        return definitions.evaluate(newExpression);
+    }
+    
+    /**
+     * Counts the email addresses of an expression, as if by parseEvalAndStore() but without visualizing it.
+     * @param input the string to parse
+     * @return the number of email addresses the parsed expression evaluates to
+     * @throws InvalidExpressionException if the expression from the parsed input is not valid.
+     */
+    public static int count(String input) throws InvalidExpressionException {
+        return definitions.count(ListExpression.parse(input));
+    }
+    
+    /**
+     * Estimates the number of email addresses of an expression, as if by count() but from sketches of its lists.
+     * @param input the string to parse
+     * @return an estimate of the number of email addresses the parsed expression evaluates to
+     * @throws InvalidExpressionException if the expression from the parsed input is not valid.
+     */
+    public static long estimate(String input) throws InvalidExpressionException {
+        return definitions.estimate(ListExpression.parse(input));
+    }
+    
+    /**
+     * Checks whether an address is on a list, as currently defined in the norn system.
+     * Doesn't wait for any other expression, and only evaluates as much of the list as it needs to.
+     * @param listname the list name
+     * @param address the email address
+     * @return true if and only if address is a member of listname
+     */
+    public static boolean isMember(String listname, String address) {
+        return definitions.contains(listname, address);
     }
 }
@@ -0,0 +1,235 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the members of list expressions by running independent subtrees as fork/join tasks on EvaluationPool.
+ *
+ * Subtrees whose weight is below a threshold are evaluated inline by a MemberProgram, since forking them would cost
+ * more than it saves. Wide unions are split in half recursively, and the partial member sets are merged back pairwise,
+ * so no single task has to union every element.
+ * Parallel evaluation is on unless the system property norn.parallel is "false".
+ */
+public class ParallelEvaluator implements ListExpression.Visitor<MemberSet> {
+    // AF(definitions) = an evaluation of expressions against definitions
+    // RI:
+    //     true
+    // SRE:
+    //     definitions is private and final, and only read
+    // Thread safety:
+    //     the evaluator only reads definitions, which is required to be threadsafe, and creates new member sets,
+    //     which are immutable. Results of forked tasks are only read after joining them.
+
+    /** Weight at or above which a subtree is worth evaluating in parallel. */
+    static final int INLINE_WEIGHT = 64;
+
+    private static final boolean ENABLED = !"false".equals(System.getProperty("norn.parallel"));
+
+    private final Map<String, ListExpression> definitions;
+
+    private ParallelEvaluator(Map<String, ListExpression> definitions) {
+        this.definitions = definitions;
+    }
+
+    /**
+     * Evaluates the members of an expression, in parallel if it is heavy enough and parallel evaluation is on.
+     * Requires that definitions is a threadsafe data type, and that expression reaches no circular definitions.
+     * @param expression an expression, which must have had its edits removed
+     * @param definitions the definitions to evaluate expression with
+     * @return the members of expression, the same as expression.getMembers(definitions)
+     */
+    public static MemberSet getMembers(ListExpression expression, Map<String, ListExpression> definitions) {
+        if (!ENABLED) {
+            return expression.getMembers(definitions);
+        }
+        return new ParallelEvaluator(definitions).members(expression);
+    }
+
+    /**
+     * @param expression an expression
+     * @return the members of expression, evaluated inline if it is light
+     */
+    private MemberSet members(ListExpression expression) {
+        if (weight(expression, INLINE_WEIGHT) < INLINE_WEIGHT) {
+            return MemberProgram.of(expression).run(definitions);
+        }
+        return expression.accept(this);
+    }
+
+    /**
+     * Estimates the work of evaluating an expression, without expanding any list names.
+     * A list name that must be evaluated weighs as much as the threshold, since its definition may be arbitrarily big;
+     * one that is cached or undefined weighs 1, as does every other node.
+     * @param expression an expression
+     * @param limit weight at which to stop counting
+     * @return the weight of expression, or some weight >= limit if it is at least limit
+     */
+    private int weight(ListExpression expression, int limit) {
+        return expression.accept(new ListExpression.Visitor<Integer>() {
+            @Override
+            public Integer onEmailAddress(EmailAddress address) {
+                return 1;
+            }
+
+            @Override
+            public Integer onEmptyExpression(EmptyExpression empty) {
+                return 1;
+            }
+
+            @Override
+            public Integer onListname(Listname listname) {
+                if (definitions instanceof DefinitionMap
+                        && ((DefinitionMap) definitions).isCached(listname.getListname())) {
+                    return 1;
+                }
+                return definitions.containsKey(listname.getListname()) ? INLINE_WEIGHT : 1;
+            }
+
+            @Override
+            public Integer onListDefinition(ListDefinition definition) {
+                return 1 + weight(definition.getValue(), limit - 1);
+            }
+
+            @Override
+            public Integer onPipe(Pipe pipe) {
+                return 1;
+            }
+
+            @Override
+            public Integer onSequence(Sequence sequence) {
+                final List<ListExpression> elements = sequence.getElements();
+                return 1 + weight(elements.get(elements.size() - 1), limit - 1);
+            }
+
+            @Override
+            public Integer onSetUnion(SetUnion union) {
+                return 1 + weightOfAll(union.getElements(), limit - 1);
+            }
+
+            @Override
+            public Integer onSetIntersection(SetIntersection intersection) {
+                return 1 + weightOfAll(List.of(intersection.getLeft(), intersection.getRight()), limit - 1);
+            }
+
+            @Override
+            public Integer onSetDifference(SetDifference difference) {
+                return 1 + weightOfAll(List.of(difference.getLeft(), difference.getRight()), limit - 1);
+            }
+        });
+    }
+
+    /**
+     * @param expressions expressions
+     * @param limit weight at which to stop counting
+     * @return the total weight of expressions, or some weight >= limit if it is at least limit
+     */
+    private int weightOfAll(List<ListExpression> expressions, int limit) {
+        int total = 0;
+        for (ListExpression e: expressions) {
+            if (total >= limit) {
+                break;
+            }
+            total += weight(e, limit - total);
+        }
+        return total;
+    }
+
+    @Override
+    public MemberSet onEmailAddress(EmailAddress address) {
+        return address.getMembers(definitions);
+    }
+
+    @Override
+    public MemberSet onEmptyExpression(EmptyExpression empty) {
+        return MemberSet.empty();
+    }
+
+    @Override
+    public MemberSet onListname(Listname listname) {
+        if (definitions instanceof DefinitionMap) {
+            // the definition is only evaluated, in parallel, if this version of the list isn't cached
+            return ((DefinitionMap) definitions).getMembers(listname.getListname(), this::members);
+        }
+        final ListExpression definition = definitions.get(listname.getListname());
+        return definition == null ? MemberSet.empty() : members(definition);
+    }
+
+    @Override
+    public MemberSet onListDefinition(ListDefinition definition) {
+        return members(definition.getValue());
+    }
+
+    @Override
+    public MemberSet onPipe(Pipe pipe) {
+        return MemberSet.empty();
+    }
+
+    @Override
+    public MemberSet onSequence(Sequence sequence) {
+        final List<ListExpression> elements = sequence.getElements();
+        return members(elements.get(elements.size() - 1));
+    }
+
+    @Override
+    public MemberSet onSetUnion(SetUnion union) {
+        final MemberSet known = DefinitionMap.knownMembers(union, definitions);
+        if (known != null) {
+            return known;
+        }
+        return unionOf(union.getElements());
+    }
+
+    /**
+     * @param elements at least one expression
+     * @return the union of the members of elements, evaluating the halves of elements in parallel if both are heavy
+     */
+    private MemberSet unionOf(List<ListExpression> elements) {
+        final int middle = elements.size() / 2;
+        final List<ListExpression> lower = elements.subList(0, middle);
+        final List<ListExpression> upper = elements.subList(middle, elements.size());
+        if (elements.size() < 2 || weightOfAll(lower, INLINE_WEIGHT) < INLINE_WEIGHT
+                || weightOfAll(upper, INLINE_WEIGHT) < INLINE_WEIGHT) {
+            final List<MemberSet> memberSets = new ArrayList<>();
+            for (ListExpression e: elements) {
+                memberSets.add(members(e));
+            }
+            return MemberSet.unionAll(memberSets);
+        }
+        final List<MemberSet> halves = EvaluationPool.bothOf(() -> unionOf(lower), () -> unionOf(upper));
+        return halves.get(0).union(halves.get(1));
+    }
+
+    @Override
+    public MemberSet onSetIntersection(SetIntersection intersection) {
+        final MemberSet known = DefinitionMap.knownMembers(intersection, definitions);
+        if (known != null) {
+            return known;
+        }
+        final List<MemberSet> sides = bothSides(intersection.getLeft(), intersection.getRight());
+        return sides.get(0).intersect(sides.get(1));
+    }
+
+    @Override
+    public MemberSet onSetDifference(SetDifference difference) {
+        final MemberSet known = DefinitionMap.knownMembers(difference, definitions);
+        if (known != null) {
+            return known;
+        }
+        final List<MemberSet> sides = bothSides(difference.getLeft(), difference.getRight());
+        return sides.get(0).difference(sides.get(1));
+    }
+
+    /**
+     * @param left an expression
+     * @param right another expression
+     * @return the members of left and right, in that order, evaluated in parallel if both are heavy
+     */
+    private List<MemberSet> bothSides(ListExpression left, ListExpression right) {
+        if (weight(left, INLINE_WEIGHT) < INLINE_WEIGHT || weight(right, INLINE_WEIGHT) < INLINE_WEIGHT) {
+            return List.of(members(left), members(right));
+        }
+        return EvaluationPool.bothOf(() -> members(left), () -> members(right));
+    }
+}
@@ -0,0 +1,185 @@
+package norn;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ * Global cache of parsed expressions, keyed by their input text, so that an expression that is submitted again
+ * skips the parser. Expressions are immutable, so a cached expression can be shared by any number of callers.
+ *
+ * The cache is bounded by the total weight of its entries, which is the length of their input plus a fixed overhead,
+ * and evicts entries that have not been used since the eviction last passed over them (the clock approximation of
+ * least recently used), so that a hit only marks its entry instead of reordering the cache under a lock. Inputs too
+ * heavy to share the cache with many others, such as whole files of definitions, are parsed without being cached.
+ * The bound is the system property norn.parseCacheWeight, in characters, or DEFAULT_WEIGHT if it is not set.
+ */
+public class ParseCache {
+    // Note: AF, RI, SRE, Thread safety all for the class, since it only has static members.
+    // AF(entries, clock, weight, hits, misses, evictions) = the cache where input text s parsed to
+    //     entries.get(s).expression, where the entries in clock that are not referenced are the next to be evicted,
+    //     in order, and which has been asked for a cached expression hits times, parsed misses times, and dropped
+    //     evictions expressions to stay within MAX_WEIGHT
+    // RI:
+    //     every entry in entries is in clock once the parse() that added it has returned, and every entry in clock is
+    //     in entries,
+    //     weight is the sum of weight(s) for s in entries.keySet(),
+    //     and weight <= MAX_WEIGHT whenever no parse() is adding an entry
+    // SRE:
+    //     all fields are private, and only immutable expressions are returned
+    // Thread safety:
+    //     entries is a ConcurrentHashMap, clock is a ConcurrentLinkedQueue, and weight and the counters are atomic.
+    //     A hit only reads entries and sets the volatile referenced flag of its entry, so hits take no lock.
+    //     An entry is added to clock before it is counted in weight, and only the thread that removes it from entries
+    //     subtracts its weight, so weight stays the sum of the weights of the entries. Eviction is done while holding
+    //     the lock on clock, so only one thread moves the clock hand at a time, and parsing happens outside the lock.
+
+    /** the default bound on the total weight of the cache, in characters */
+    public static final long DEFAULT_WEIGHT = 1 << 22;
+
+    private static final long MAX_WEIGHT = Long.getLong("norn.parseCacheWeight", DEFAULT_WEIGHT);
+
+    /** the weight of an entry apart from its input, roughly the size of its map entry and node */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+    private static final AtomicLong weight = new AtomicLong();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached expression, and whether it has been used since the clock last passed over it.
+     */
+    private static class Entry {
+        private final String input;
+        private final ListExpression expression;
+        private volatile boolean referenced = false;
+
+        private Entry(String input, ListExpression expression) {
+            this.input = input;
+            this.expression = expression;
+        }
+    }
+
+    private ParseCache() {
+        throw new AssertionError("should never be instantiated");
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     * Requires holding the lock on clock.
+     */
+    private static void checkRep() {
+        assert weight.get() >= 0;
+    }
+
+    /**
+     * Parses an input, or returns the expression it was parsed into before.
+     * @param input the string we want to parse into a ListExpression
+     * @return ListExpression parsed from input
+     * @throws UnableToParseException if input does not match the ListExpressionGrammar
+     */
+    public static ListExpression parse(String input) throws UnableToParseException {
+        final Entry cached = entries.get(input);
+        if (cached != null) {
+            // only write the flag when it changes, so hits on a popular entry don't contend on its cache line
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            hits.increment();
+            return cached.expression;
+        }
+        misses.increment();
+        final ListExpression expression = ExpressionParser.parse(input);
+        final long inputWeight = weight(input);
+        // an input this heavy would evict a large part of the cache, and is unlikely to be repeated
+        if (inputWeight > MAX_WEIGHT / 8) {
+            return expression;
+        }
+        final Entry entry = new Entry(input, expression);
+        final Entry raced = entries.putIfAbsent(input, entry);
+        if (raced != null) {
+            return raced.expression;
+        }
+        clock.add(entry);
+        weight.addAndGet(inputWeight);
+        if (weight.get() > MAX_WEIGHT) {
+            evict();
+        }
+        return expression;
+    }
+
+    /**
+     * Moves the clock hand, giving referenced entries another pass and removing the others,
+     * until the cache is within MAX_WEIGHT.
+     */
+    private static void evict() {
+        synchronized (clock) {
+            while (weight.get() > MAX_WEIGHT) {
+                final Entry hand = clock.poll();
+                if (hand == null) {
+                    break;
+                }
+                if (hand.referenced) {
+                    hand.referenced = false;
+                    clock.add(hand);
+                } else if (entries.remove(hand.input, hand)) {
+                    weight.addAndGet(-weight(hand.input));
+                    evictions.increment();
+                }
+            }
+            checkRep();
+        }
+    }
+
+    /**
+     * @param input the key of an entry
+     * @return the weight of the entry
+     */
+    private static long weight(String input) {
+        return input.length() + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * @return the number of times parse() has returned a cached expression
+     */
+    public static long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of times parse() has had to run the parser
+     */
+    public static long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of expressions dropped from the cache to stay within its bound
+     */
+    public static long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of expressions in the cache
+     */
+    public static int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the expressions in the cache
+     */
+    public static long weight() {
+        return weight.get();
+    }
+}
@@ -0,0 +1,379 @@
+package norn;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable hash map, stored as a hash array mapped trie.
+ * plus() and minus() return a new map in O(log n) time, which shares every part of the trie that the change
+ * did not touch with this map, so keeping old versions of a map around is cheap.
+ * The Map mutators are not supported.
+ *
+ * @param <K> the type of keys, which must be immutable
+ * @param <V> the type of values
+ */
+public class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    // AF(root, size) = the map from k to v for every Leaf(k, v) reachable from root
+    // RI:
+    //     size is the number of leaves reachable from root
+    //     no two leaves have equal keys
+    //     a leaf or collision reachable from root through branches at shifts 0, 5, ..., s - 5 is in the slot of
+    //         each branch given by the 5 bits of its key's hash at that branch's shift
+    //     collisions are only found below shift 30, and hold at least 2 leaves, all with the same hash
+    //     branches other than root are not empty
+    // SRE:
+    //     all fields are private and final, nodes are never modified after construction, and only leaves
+    //     (which are immutable entries) or unmodifiable views are returned
+    // Thread safety:
+    //     PersistentHashMap is immutable, and so are its nodes, so they can be shared between maps and threads.
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(new Branch(0, new Object[0]), 0);
+
+    private final Branch root;
+    private final int size;
+
+    /**
+     * Immutable entry of the map, with its key's hash.
+     */
+    private static class Leaf<K, V> extends SimpleImmutableEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final int hash;
+
+        private Leaf(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Immutable inner node, holding a leaf, collision or branch in each slot whose bit is set in bitmap,
+     * in increasing order of slot.
+     */
+    private static class Branch {
+        private final int bitmap;
+        private final Object[] children;
+
+        private Branch(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Immutable node holding leaves whose keys have exactly the same hash.
+     */
+    private static class Collision {
+        private final int hash;
+        private final Leaf<?, ?>[] leaves;
+
+        private Collision(int hash, Leaf<?, ?>[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    private PersistentHashMap(Branch root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    private static int hash(Object key) {
+        final int h = Objects.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    public V get(Object key) {
+        final Leaf<K, V> leaf = find(key);
+        return leaf == null ? null : leaf.getValue();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param key a key
+     * @return the leaf for key, or null if key is not in this map
+     */
+    @SuppressWarnings("unchecked")
+    private Leaf<K, V> find(Object key) {
+        final int hash = hash(key);
+        Object node = root;
+        int shift = 0;
+        while (node instanceof Branch) {
+            final Branch branch = (Branch) node;
+            final int bit = bit(hash, shift);
+            if ((branch.bitmap & bit) == 0) {
+                return null;
+            }
+            node = branch.children[index(branch.bitmap, bit)];
+            shift += BITS;
+        }
+        if (node instanceof Collision) {
+            for (Leaf<?, ?> leaf: ((Collision) node).leaves) {
+                if (Objects.equals(leaf.getKey(), key)) {
+                    return (Leaf<K, V>) leaf;
+                }
+            }
+            return null;
+        }
+        final Leaf<K, V> leaf = (Leaf<K, V>) node;
+        return Objects.equals(leaf.getKey(), key) ? leaf : null;
+    }
+
+    /**
+     * @param key a key
+     * @param value the value to map key to
+     * @return a map with the same entries as this one, except that key maps to value
+     */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        final boolean[] added = { false };
+        final Branch newRoot = (Branch) plus(root, 0, new Leaf<>(hash(key), key, value), added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @param key a key
+     * @return a map with the same entries as this one, except for any entry for key
+     */
+    public PersistentHashMap<K, V> minus(Object key) {
+        final Object newRoot = minus(root, 0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot == null ? EMPTY.root : (Branch) newRoot, size - 1);
+    }
+
+    /**
+     * @param node a node at the given shift
+     * @param shift the number of hash bits used to reach node
+     * @param leaf the entry to add
+     * @param added set to true if leaf's key was not in node
+     * @return node with leaf added, or node itself if it already had that entry
+     */
+    private static Object plus(Object node, int shift, Leaf<?, ?> leaf, boolean[] added) {
+        if (node instanceof Branch) {
+            final Branch branch = (Branch) node;
+            final int bit = bit(leaf.hash, shift);
+            final int index = index(branch.bitmap, bit);
+            if ((branch.bitmap & bit) == 0) {
+                added[0] = true;
+                final Object[] children = new Object[branch.children.length + 1];
+                System.arraycopy(branch.children, 0, children, 0, index);
+                children[index] = leaf;
+                System.arraycopy(branch.children, index, children, index + 1, branch.children.length - index);
+                return new Branch(branch.bitmap | bit, children);
+            }
+            final Object child = branch.children[index];
+            final Object newChild = plus(child, shift + BITS, leaf, added);
+            if (newChild == child) {
+                return branch;
+            }
+            final Object[] children = branch.children.clone();
+            children[index] = newChild;
+            return new Branch(branch.bitmap, children);
+        } else if (node instanceof Collision) {
+            final Collision collision = (Collision) node;
+            for (int i = 0; i < collision.leaves.length; i++) {
+                if (Objects.equals(collision.leaves[i].getKey(), leaf.getKey())) {
+                    if (Objects.equals(collision.leaves[i].getValue(), leaf.getValue())) {
+                        return collision;
+                    }
+                    final Leaf<?, ?>[] leaves = collision.leaves.clone();
+                    leaves[i] = leaf;
+                    return new Collision(collision.hash, leaves);
+                }
+            }
+            added[0] = true;
+            final Leaf<?, ?>[] leaves = Arrays.copyOf(collision.leaves, collision.leaves.length + 1);
+            leaves[collision.leaves.length] = leaf;
+            return new Collision(collision.hash, leaves);
+        }
+        final Leaf<?, ?> existing = (Leaf<?, ?>) node;
+        if (Objects.equals(existing.getKey(), leaf.getKey())) {
+            return Objects.equals(existing.getValue(), leaf.getValue()) ? existing : leaf;
+        }
+        added[0] = true;
+        return pair(existing, leaf, shift);
+    }
+
+    /**
+     * @param first a leaf
+     * @param second a leaf with a different key, whose hash agrees with first's in the bits before shift
+     * @param shift the number of hash bits used to reach the slot both leaves belong in
+     * @return a node holding exactly first and second
+     */
+    private static Object pair(Leaf<?, ?> first, Leaf<?, ?> second, int shift) {
+        if (shift >= Integer.SIZE) {
+            return new Collision(first.hash, new Leaf<?, ?>[] { first, second });
+        }
+        final int firstBit = bit(first.hash, shift);
+        final int secondBit = bit(second.hash, shift);
+        if (firstBit == secondBit) {
+            return new Branch(firstBit, new Object[] { pair(first, second, shift + BITS) });
+        }
+        // compare unsigned, since the bit for slot 31 is the sign bit
+        final Object[] children = Integer.compareUnsigned(firstBit, secondBit) < 0
+                ? new Object[] { first, second } : new Object[] { second, first };
+        return new Branch(firstBit | secondBit, children);
+    }
+
+    /**
+     * @param node a node at the given shift
+     * @param shift the number of hash bits used to reach node
+     * @param hash the hash of key
+     * @param key the key to remove
+     * @return node without key, which is null if that leaves it empty, or node itself if it did not have key
+     */
+    private static Object minus(Object node, int shift, int hash, Object key) {
+        if (node instanceof Branch) {
+            final Branch branch = (Branch) node;
+            final int bit = bit(hash, shift);
+            if ((branch.bitmap & bit) == 0) {
+                return branch;
+            }
+            final int index = index(branch.bitmap, bit);
+            final Object child = branch.children[index];
+            final Object newChild = minus(child, shift + BITS, hash, key);
+            if (newChild == child) {
+                return branch;
+            } else if (newChild != null) {
+                if (shift > 0 && branch.children.length == 1 && newChild instanceof Leaf) {
+                    // a lone leaf can live higher up the trie
+                    return newChild;
+                }
+                final Object[] children = branch.children.clone();
+                children[index] = newChild;
+                return new Branch(branch.bitmap, children);
+            } else if (branch.children.length == 1) {
+                return null;
+            }
+            final Object[] children = new Object[branch.children.length - 1];
+            System.arraycopy(branch.children, 0, children, 0, index);
+            System.arraycopy(branch.children, index + 1, children, index, children.length - index);
+            return new Branch(branch.bitmap & ~bit, children);
+        } else if (node instanceof Collision) {
+            final Collision collision = (Collision) node;
+            for (int i = 0; i < collision.leaves.length; i++) {
+                if (Objects.equals(collision.leaves[i].getKey(), key)) {
+                    if (collision.leaves.length == 2) {
+                        return collision.leaves[1 - i];
+                    }
+                    final Leaf<?, ?>[] leaves = new Leaf<?, ?>[collision.leaves.length - 1];
+                    System.arraycopy(collision.leaves, 0, leaves, 0, i);
+                    System.arraycopy(collision.leaves, i + 1, leaves, i, leaves.length - i);
+                    return new Collision(collision.hash, leaves);
+                }
+            }
+            return collision;
+        }
+        return Objects.equals(((Leaf<?, ?>) node).getKey(), key) ? null : node;
+    }
+
+    /**
+     * @return an unmodifiable view of the entries of this map, in no particular order
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Iterator over the leaves of this map, depth first.
+     */
+    private class Entries implements Iterator<Entry<K, V>> {
+        private final Deque<Object> toVisit = new ArrayDeque<>();
+        private Leaf<K, V> next = null;
+
+        private Entries() {
+            toVisit.push(root);
+            advance();
+        }
+
+        /**
+         * Moves next to the next leaf, or to null if there are none left.
+         */
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (next == null && !toVisit.isEmpty()) {
+                final Object node = toVisit.pop();
+                if (node instanceof Branch) {
+                    final Object[] children = ((Branch) node).children;
+                    for (int i = children.length - 1; i >= 0; i--) {
+                        toVisit.push(children[i]);
+                    }
+                } else if (node instanceof Collision) {
+                    for (Leaf<?, ?> leaf: ((Collision) node).leaves) {
+                        toVisit.push(leaf);
+                    }
+                } else {
+                    next = (Leaf<K, V>) node;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -1,11 +1,8 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Represents a new Pipe List expression (where the operator is the '|' symbol)
@@ -14,16 +11,18 @@ public class Pipe implements ListExpression {
     // AF(left, right) = A list expression of the form left | right, where left and right are the list expressions to the
     //     left and the right of the pipe operator.
     // RI:
-    //     true
+    //     hash == Objects.hash(left, right)
     //
     // Thread Safety Argument:
     //     All parts of the rep (left and right) are threadsafe and immutable.
     //     For remove edits, we require that the client input a threadsafe map, so we don't need to worry about multiple threads for
     //     the definitions map as a parameter.
-    //     Note that we spawn new threads in removeEdits, but this only happens when there is a synchronized map passed in (as we require in the spec).
+    //     Note that removeEdits evaluates the two sides on other threads of EvaluationPool, but this only happens when
+    //     there is a synchronized map passed in (as we require in the spec).
     
     private final ListExpression left;
     private final ListExpression right;
+    private final int hash;
     
     /**
      * Creates a new Pipe object instance
@@ -33,6 +32,7 @@ public class Pipe implements ListExpression {
     public Pipe(ListExpression left, ListExpression right) {
         this.left = left;
         this.right = right;
+        this.hash = Objects.hash(left, right);
         checkRep();
     }
     
@@ -47,49 +47,33 @@ public class Pipe implements ListExpression {
     @Override
     public ListExpression removeEdits(String outerDefinition, Map<String, ListExpression> definitions)
             throws InvalidExpressionException {
-        if (!noForbiddenPipes(definitions)) {
-            throw new InvalidExpressionException("Expression contains pipes which may not be evaluated in parallel");
-        }
-        
-        final ListExpression[] leftAndRight = new ListExpression[2];
-        boolean[] wasException = new boolean[1];
-        wasException[0] = false;
-        
-        Thread t1 = new Thread(() ->  {
-            try {
-                leftAndRight[0] = left.removeEdits(outerDefinition, definitions);
-            } catch (InvalidExpressionException e) {
-                wasException[0] = true;
-            }
-        });
-        Thread t2 = new Thread(() ->  {
-            try {
-                leftAndRight[1] = right.removeEdits(outerDefinition, definitions);
-            } catch (InvalidExpressionException e) {
-                wasException[0] = true;
-            }
-        });
-        t1.start();
-        t2.start();
-        
-        try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
-            throw new AssertionError("this should never happen");
-        }
-        if (wasException[0])
-            throw new InvalidExpressionException("Expression contains pipes which may not be evaluated in parallel");
+        // removeAllEdits() checked that the sides can't see each other's edits before any edits were removed,
+        // so they can be evaluated on the shared pool in parallel
+        final List<ListExpression> leftAndRight = EvaluationPool.inParallel(
+                () -> left.removeEdits(outerDefinition, definitions),
+                () -> right.removeEdits(outerDefinition, definitions));
         
         checkRep();
-        return new Pipe(leftAndRight[0], leftAndRight[1]);
+        return ExpressionFactory.pipe(leftAndRight.get(0), leftAndRight.get(1));
         
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
         checkRep();
-        return new HashSet<>();
+        return MemberSet.empty();
+    }
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return false;
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return MemberDelta.none();
     }
     
     @Override
@@ -100,10 +84,16 @@ public class Pipe implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         checkRep();
         if (that instanceof Pipe) {
             Pipe other = (Pipe) that;
-            return this.left.equals(other.left) && this.right.equals(other.right);
+            return this.hash == other.hash && this.left.equals(other.left) && this.right.equals(other.right);
         }
         return false;
     }
@@ -111,7 +101,7 @@ public class Pipe implements ListExpression {
     @Override
     public int hashCode() {
         checkRep();
-        return Objects.hash(left, right);
+        return hash;
     }
 
     @Override
@@ -119,48 +109,26 @@ public class Pipe implements ListExpression {
         checkRep();
         return "(" + left.htmlString() + " | " + right.htmlString() + ")";
     }
-
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
+    
+    /**
+     * @return the expression to the left of the | operator
+     */
+    public ListExpression getLeft() {
         checkRep();
-        return new ArrayList<>(); 
+        return left;
     }
     
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        referenced.addAll(left.getReferencedLists(definitions));
-        referenced.addAll(right.getReferencedLists(definitions));
+    /**
+     * @return the expression to the right of the | operator
+     */
+    public ListExpression getRight() {
         checkRep();
-        return referenced;
+        return right;
     }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        defined.addAll(left.getDefinedLists(definitions));
-        defined.addAll(right.getDefinedLists(definitions));
-        return defined;
-    }
-
+    
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
-        Set<String> leftReferenced = new HashSet<>(left.getReferencedLists(definitions));
-        Set<String> rightReferenced = new HashSet<>(right.getReferencedLists(definitions));
-        Set<String> leftDefined = new HashSet<>(left.getDefinedLists(definitions));
-        Set<String> rightDefined = new HashSet<>(right.getDefinedLists(definitions));
-        Set<String> leftOverlap = new HashSet<>(leftReferenced);
-        leftOverlap.retainAll(rightDefined);
-        Set<String> rightOverlap = new HashSet<>(rightReferenced);
-        rightOverlap.retainAll(leftDefined);
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return leftOverlap.isEmpty() 
-                && rightOverlap.isEmpty()
-                && left.noForbiddenPipes(definitions)
-                && right.noForbiddenPipes(definitions);
+        return visitor.onPipe(this);
     }
-    
-    
-
 }
@@ -0,0 +1,234 @@
+package norn;
+
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+
+/**
+ * Container holding a chunk of a MemberSet as runs of consecutive values.
+ * Since AddressDictionary gives out ids in order of first appearance, lists that were entered or loaded together
+ * tend to be long runs of consecutive ids.
+ */
+class RunContainer extends Container {
+    // AF(runs, cardinality) = the container holding every low value v where runs[2i] <= v <= runs[2i+1] for some i
+    // RI:
+    //     runs.length is even and > 0
+    //     runs[2i] <= runs[2i+1] for all i
+    //     runs[2i+1] + 1 < runs[2i+2] for all i, so runs are sorted, disjoint and not adjacent
+    //     cardinality == sum over i of (runs[2i+1] - runs[2i] + 1)
+    // SRE:
+    //     runs is private and final, never returned, and never modified after construction.
+    // Thread safety:
+    //     RunContainer is immutable.
+
+    private final char[] runs;
+    private final int cardinality;
+
+    /**
+     * Make a new RunContainer.
+     * @param runs pairs of inclusive [start, end] values, sorted, disjoint and not adjacent,
+     *        which must not be modified afterwards
+     */
+    RunContainer(char[] runs) {
+        this.runs = runs;
+        int count = 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            count += runs[i + 1] - runs[i] + 1;
+        }
+        this.cardinality = count;
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert runs.length > 0 && runs.length % 2 == 0;
+        for (int i = 0; i < runs.length; i += 2) {
+            assert runs[i] <= runs[i + 1];
+            assert i + 2 >= runs.length || runs[i + 1] + 1 < runs[i + 2];
+        }
+    }
+
+    /**
+     * @param words a bitmap of WORDS words, with at least one set bit
+     * @param count the number of runs of set bits in words
+     * @return the container holding the values whose bits are set in words
+     */
+    static RunContainer fromWords(long[] words, int count) {
+        final char[] runs = new char[2 * count];
+        int run = 0;
+        int start = nextBit(words, 0, true);
+        while (start >= 0) {
+            final int end = nextBit(words, start, false);
+            runs[run++] = (char) start;
+            runs[run++] = (char) ((end < 0 ? WORDS * 64 : end) - 1);
+            start = end < 0 ? -1 : nextBit(words, end, true);
+        }
+        return new RunContainer(runs);
+    }
+
+    /**
+     * @param words a bitmap of WORDS words
+     * @param from the first bit to look at
+     * @param set whether to look for a set bit or a clear bit
+     * @return the index of the first bit at or after from that is set (or clear), or -1 if there is none
+     */
+    private static int nextBit(long[] words, int from, boolean set) {
+        int index = from >>> 6;
+        if (index >= WORDS) {
+            return -1;
+        }
+        long word = (set ? words[index] : ~words[index]) & (-1L << from);
+        while (word == 0) {
+            index++;
+            if (index >= WORDS) {
+                return -1;
+            }
+            word = set ? words[index] : ~words[index];
+        }
+        return index * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    @Override
+    int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    boolean contains(char low) {
+        // binary search for the last run starting at or before low
+        int lo = 0;
+        int hi = runs.length / 2 - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (runs[2 * mid] <= low) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi >= 0 && low <= runs[2 * hi + 1];
+    }
+
+    @Override
+    Container or(Container that) {
+        if (that == this) {
+            return this;
+        }
+        final long[] words = toWords();
+        that.orInto(words);
+        return Container.fromWords(words);
+    }
+
+    @Override
+    Container and(Container that) {
+        if (that == this) {
+            return this;
+        }
+        if (that instanceof ArrayContainer) {
+            return that.and(this);
+        }
+        final long[] words = toWords();
+        final long[] other = that.toWords();
+        for (int i = 0; i < WORDS; i++) {
+            words[i] &= other[i];
+        }
+        return Container.fromWords(words);
+    }
+
+    @Override
+    Container andNot(Container that) {
+        if (that == this) {
+            return ArrayContainer.EMPTY;
+        }
+        final long[] words = toWords();
+        that.andNotFrom(words);
+        return Container.fromWords(words);
+    }
+
+    @Override
+    void orInto(long[] words) {
+        for (int i = 0; i < runs.length; i += 2) {
+            setRange(words, runs[i], runs[i + 1], true);
+        }
+    }
+
+    @Override
+    void andNotFrom(long[] words) {
+        for (int i = 0; i < runs.length; i += 2) {
+            setRange(words, runs[i], runs[i + 1], false);
+        }
+    }
+
+    /**
+     * Sets or clears every bit from start to end inclusive.
+     */
+    private static void setRange(long[] words, int start, int end, boolean set) {
+        final int first = start >>> 6;
+        final int last = end >>> 6;
+        for (int i = first; i <= last; i++) {
+            long mask = -1L;
+            if (i == first) {
+                mask &= -1L << start;
+            }
+            if (i == last) {
+                mask &= -1L >>> (63 - (end & 63));
+            }
+            if (set) {
+                words[i] |= mask;
+            } else {
+                words[i] &= ~mask;
+            }
+        }
+    }
+
+    @Override
+    void forEach(int high, IntConsumer action) {
+        for (int i = 0; i < runs.length; i += 2) {
+            for (int low = runs[i]; low <= runs[i + 1]; low++) {
+                action.accept(id(high, low));
+            }
+        }
+    }
+
+    @Override
+    PrimitiveIterator.OfInt iterator(int high) {
+        return new PrimitiveIterator.OfInt() {
+            private int run = 0;
+            private int next = runs[0];
+
+            @Override
+            public boolean hasNext() {
+                return run < runs.length;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int low = next;
+                if (low == runs[run + 1]) {
+                    run += 2;
+                    next = run < runs.length ? runs[run] : 0;
+                } else {
+                    next++;
+                }
+                return id(high, low);
+            }
+        };
+    }
+
+    @Override
+    int sizeInBytes() {
+        return 2 * runs.length;
+    }
+
+    @Override
+    void writeTo(ByteBuffer out) {
+        out.put(RUN).putInt(runs.length);
+        putChars(out, runs);
+    }
+}
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -14,6 +13,7 @@ public class Sequence implements ListExpression {
     // AF(elements) = A sequence of list expression consisting of these elements, ordered in that order.
     // RI:
     //     elements is of size >= 2
+    //     hash == elements.hashCode()
     // SRE:
     //     - elements is private and final, never returned and never modified in SetUnion class. 
     //       new List made from Constructor argument.
@@ -22,6 +22,7 @@ public class Sequence implements ListExpression {
     //     Elements is a synchronized list, and it is never modified (so we don't need to worry about any race conditions with reading and writing).
 
     private final List<ListExpression> elements;
+    private final int hash;
 
     /**
      * Creates a new instance of Sequence
@@ -29,6 +30,7 @@ public class Sequence implements ListExpression {
      */
     public Sequence(List<ListExpression> elements) {
         this.elements = new ArrayList<>(elements);
+        this.hash = this.elements.hashCode();
         checkRep();
     }
 
@@ -47,13 +49,25 @@ public class Sequence implements ListExpression {
             newList.add(e.removeEdits(outerDefinition, definitions));
         }
         checkRep();
-        return new Sequence(newList);
+        return ExpressionFactory.sequence(newList);
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
         checkRep();
-        return elements.get(elements.size() - 1).getMemberAddresses(previousDefinitions);
+        return elements.get(elements.size() - 1).getMembers(previousDefinitions);
+    }
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return elements.get(elements.size() - 1).hasMember(id, definitions);
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        checkRep();
+        return elements.get(elements.size() - 1).getMemberDelta(listDeltas, definitions);
     }
     
     @Override
@@ -64,9 +78,15 @@ public class Sequence implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         if (that instanceof Sequence) {
             Sequence other = (Sequence) that;
-            return this.elements.equals(other.elements);
+            return this.hash == other.hash && this.elements.equals(other.elements);
         }
         checkRep();
         return false;
@@ -76,7 +96,7 @@ public class Sequence implements ListExpression {
     @Override
     public int hashCode() {
         checkRep();
-        return elements.hashCode();
+        return hash;
     }
 
     @Override
@@ -85,38 +105,17 @@ public class Sequence implements ListExpression {
         return "(" + elements.stream().map(e -> e.htmlString()).collect(Collectors.joining("; ")) + ")";
     }
     
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
+    /**
+     * @return an unmodifiable view of the elements of this sequence, in order
+     */
+    public List<ListExpression> getElements() {
         checkRep();
-        return elements.get(elements.size() - 1).getDependentListNames(outerNames, definitions);
+        return Collections.unmodifiableList(elements);
     }
     
     @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        elements.stream().map(e -> e.getReferencedLists(definitions))
-            .forEach(l -> referenced.addAll(l));
-        checkRep();
-        return referenced;
-    }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        elements.stream().map(e -> e.getDefinedLists(definitions))
-            .forEach(l -> defined.addAll(l));
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return defined;
+        return visitor.onSequence(this);
     }
-
-    @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
-        checkRep();
-        return elements.stream()
-                .map(e -> e.noForbiddenPipes(definitions))
-                .reduce(true, Boolean::logicalAnd);
-    }
-
-
-}
\ No newline at end of file
+}
@@ -1,11 +1,7 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Represents a ListExpression with the set difference operator "!".
@@ -14,7 +10,7 @@ public class SetDifference implements ListExpression {
     // AF(left, right) = A set difference operation with all the email addresses in left.getMemberAddresses,
     //     that are not also in right.getMemberAddresses
     // RI:
-    //     true
+    //     hash == Objects.hash(left.hashCode(), right.hashCode())
     // SRE:
     //     all parts of the rep are private, final, and immutable.
     //
@@ -26,6 +22,7 @@ public class SetDifference implements ListExpression {
     
     private final ListExpression left;
     private final ListExpression right;
+    private final int hash;
     
     /**
      * Creates a new SetDifference instance.
@@ -35,6 +32,7 @@ public class SetDifference implements ListExpression {
     public SetDifference(ListExpression left, ListExpression right) {
         this.left = left;
         this.right = right;
+        this.hash = Objects.hash(left.hashCode(), right.hashCode());
         checkRep();
     }
     
@@ -52,18 +50,48 @@ public class SetDifference implements ListExpression {
         ListExpression newLeft = left.removeEdits(outerDefinition, definitions);
         ListExpression newRight = right.removeEdits(outerDefinition, definitions);
         checkRep();
-        return new SetDifference(newLeft, newRight);
+        return ExpressionFactory.difference(newLeft, newRight);
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
-        final Set<EmailAddress> output = new HashSet<>();
-        output.addAll(left.getMemberAddresses(previousDefinitions));
-        output.removeAll(right.getMemberAddresses(previousDefinitions));
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
+        final MemberSet known = DefinitionMap.knownMembers(this, previousDefinitions);
+        if (known != null) {
+            return known;
+        }
+        final MemberSet output = left.getMembers(previousDefinitions)
+                .difference(right.getMembers(previousDefinitions));
         checkRep();
         return output;
     }
     
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return left.hasMember(id, definitions) && !right.hasMember(id, definitions);
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        final MemberDelta leftDelta = left.getMemberDelta(listDeltas, definitions);
+        final MemberDelta rightDelta = right.getMemberDelta(listDeltas, definitions);
+        if (leftDelta.isEmpty() && rightDelta.isEmpty()) {
+            return MemberDelta.none();
+        }
+        // an id was added if it was added to the left and the right doesn't have it now,
+        // or removed from the right and the left has it now.
+        // an id was removed if it was removed from the left and the right didn't have it before,
+        // or added to the right and the left had it before.
+        final MemberSet added = leftDelta.getAdded().filter(id -> !right.hasMember(id, definitions))
+                .union(rightDelta.getRemoved().filter(id -> left.hasMember(id, definitions)));
+        final MemberSet removed = leftDelta.getRemoved()
+                .filter(id -> !rightDelta.wasMember(id, right.hasMember(id, definitions)))
+                .union(rightDelta.getAdded()
+                        .filter(id -> leftDelta.wasMember(id, left.hasMember(id, definitions))));
+        checkRep();
+        return new MemberDelta(added, removed);
+    }
+    
     @Override
     public String toString() {
         checkRep();
@@ -72,11 +100,17 @@ public class SetDifference implements ListExpression {
     
     @Override
     public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // Just needs to check that the right and left expressions are equal
         checkRep();
         if (that instanceof SetDifference) {
             SetDifference other = (SetDifference) that;
-            if (this.left.equals(other.left) && this.right.equals(other.right)){
+            if (this.hash == other.hash && this.left.equals(other.left) && this.right.equals(other.right)){
                 return true;
             }
         }
@@ -86,7 +120,7 @@ public class SetDifference implements ListExpression {
     @Override
     public int hashCode() {
         checkRep();
-        return Objects.hash(left.hashCode(), right.hashCode());
+        return hash;
     }
 
     @Override
@@ -94,39 +128,26 @@ public class SetDifference implements ListExpression {
         checkRep();
         return "(" + left.htmlString() + " &minus; " + right.htmlString() + ")";
     }
-
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        List<String> names = left.getDependentListNames(outerNames, definitions);
-        names.addAll(right.getDependentListNames(outerNames, definitions));
-        checkRep();
-        return names; 
-    }
-
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        referenced.addAll(left.getReferencedLists(definitions));
-        referenced.addAll(right.getReferencedLists(definitions));
+    
+    /**
+     * @return the expression to the left of the ! operator
+     */
+    public ListExpression getLeft() {
         checkRep();
-        return referenced;
+        return left;
     }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        defined.addAll(left.getDefinedLists(definitions));
-        defined.addAll(right.getDefinedLists(definitions));
+    
+    /**
+     * @return the expression to the right of the ! operator
+     */
+    public ListExpression getRight() {
         checkRep();
-        return defined;
+        return right;
     }
-
+    
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return left.noForbiddenPipes(definitions) 
-                && right.noForbiddenPipes(definitions);
+        return visitor.onSetDifference(this);
     }
-
 }
@@ -1,11 +1,7 @@
 package norn;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 
 /**
  * Represents a list expression with the setIntersection operator.
@@ -14,7 +10,7 @@ public class SetIntersection implements ListExpression {
     // AF(left, right) = a ListExpression that contains all of the email addresses in both left.getMemberAddresses()
     //     and right.getMemeberAddresses
     // RI:
-    //     true
+    //     hash == Objects.hash(left.hashCode(), right.hashCode())
     // SRE:
     //     - all fields are private, final, and immutable
     // 
@@ -25,6 +21,7 @@ public class SetIntersection implements ListExpression {
 
     private final ListExpression left;
     private final ListExpression right;
+    private final int hash;
     
     /**
      * Creates a new SetUnion instance with the given values
@@ -34,6 +31,7 @@ public class SetIntersection implements ListExpression {
     public SetIntersection(ListExpression left, ListExpression right) {
         this.left = left;
         this.right = right;
+        this.hash = Objects.hash(left.hashCode(), right.hashCode());
         checkRep();
     }
     
@@ -51,19 +49,47 @@ public class SetIntersection implements ListExpression {
         ListExpression newLeft = left.removeEdits(outerDefinition, definitions);
         ListExpression newRight = right.removeEdits(outerDefinition, definitions);
         checkRep();
-        return new SetIntersection(newLeft, newRight);
+        return ExpressionFactory.intersection(newLeft, newRight);
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
+        final MemberSet known = DefinitionMap.knownMembers(this, previousDefinitions);
+        if (known != null) {
+            return known;
+        }
         // just need to return the intersection of the addresses on the left and the right
-        final Set<EmailAddress> output = new HashSet<>();   
-        output.addAll(left.getMemberAddresses(previousDefinitions));
-        output.retainAll(right.getMemberAddresses(previousDefinitions));
+        final MemberSet output = left.getMembers(previousDefinitions)
+                .intersect(right.getMembers(previousDefinitions));
         checkRep();
         return output;
     }
     
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        return left.hasMember(id, definitions) && right.hasMember(id, definitions);
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        final MemberDelta leftDelta = left.getMemberDelta(listDeltas, definitions);
+        final MemberDelta rightDelta = right.getMemberDelta(listDeltas, definitions);
+        if (leftDelta.isEmpty() && rightDelta.isEmpty()) {
+            return MemberDelta.none();
+        }
+        // an id added to one side was added if the other side has it now,
+        // and an id removed from one side was removed if the other side had it before
+        final MemberSet added = leftDelta.getAdded().filter(id -> right.hasMember(id, definitions))
+                .union(rightDelta.getAdded().filter(id -> left.hasMember(id, definitions)));
+        final MemberSet removed = leftDelta.getRemoved()
+                .filter(id -> rightDelta.wasMember(id, right.hasMember(id, definitions)))
+                .union(rightDelta.getRemoved()
+                        .filter(id -> leftDelta.wasMember(id, left.hasMember(id, definitions))));
+        checkRep();
+        return new MemberDelta(added, removed);
+    }
+    
     @Override
     public String toString(){
         checkRep();
@@ -72,10 +98,16 @@ public class SetIntersection implements ListExpression {
 
     @Override
     public boolean equals(Object that){
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // Just needs to check that the right and left expressions are equal
         if (that instanceof SetIntersection) {
             SetIntersection other = (SetIntersection) that;
-            if (this.left.equals(other.left) && this.right.equals(other.right)){
+            if (this.hash == other.hash && this.left.equals(other.left) && this.right.equals(other.right)){
                 return true;
             } 
         }
@@ -85,7 +117,7 @@ public class SetIntersection implements ListExpression {
     @Override
     public int hashCode(){
         checkRep();
-        return Objects.hash(left.hashCode(), right.hashCode());
+        return hash;
     }
 
     @Override
@@ -93,39 +125,26 @@ public class SetIntersection implements ListExpression {
         checkRep();
         return "(" + left.htmlString() + " &cap; " + right.htmlString() + ")";
     }
-
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        List<String> names = left.getDependentListNames(outerNames, definitions);
-        names.addAll(right.getDependentListNames(outerNames, definitions));
-        return names; 
-    }
     
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        referenced.addAll(left.getReferencedLists(definitions));
-        referenced.addAll(right.getReferencedLists(definitions));
+    /**
+     * @return the expression to the left of the * operator
+     */
+    public ListExpression getLeft() {
         checkRep();
-        return referenced;
+        return left;
     }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        defined.addAll(left.getDefinedLists(definitions));
-        defined.addAll(right.getDefinedLists(definitions));
+    
+    /**
+     * @return the expression to the right of the * operator
+     */
+    public ListExpression getRight() {
         checkRep();
-        return defined;
+        return right;
     }
     
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return left.noForbiddenPipes(definitions) 
-                && right.noForbiddenPipes(definitions);
+        return visitor.onSetIntersection(this);
     }
-
-
 }
@@ -1,10 +1,9 @@
 package norn;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -15,6 +14,7 @@ public class SetUnion implements ListExpression {
     //      in the union of the addresses of each element in elements.
     // RI:
     //     elements is length >= 2
+    //     hash == elements.hashCode()
     // SRE:
     //     - elements is private and final and never modified in SetUnion class. 
     //       new List made from Constructor argument.
@@ -25,6 +25,7 @@ public class SetUnion implements ListExpression {
     //     All over variables are confined in their method call.
 
     private final List<ListExpression> elements;
+    private final int hash;
 
     /**
      * Creates a list expression consisting of the elements unioned together.
@@ -32,6 +33,7 @@ public class SetUnion implements ListExpression {
      */
     public SetUnion(List<ListExpression> elements) {
         this.elements = new ArrayList<>(elements);
+        this.hash = this.elements.hashCode();
         checkRep();
     }
     
@@ -50,18 +52,64 @@ public class SetUnion implements ListExpression {
             newList.add(e.removeEdits(outerDefinition, definitions));
         }
         checkRep();
-        return new SetUnion(newList);
+        return ExpressionFactory.union(newList);
     } 
     
     @Override
-    public Set<EmailAddress> getMemberAddresses(Map<String, ListExpression> previousDefinitions) {
-        // just need to return the union of the addresses on the left and the right
-        final Set<EmailAddress> output = new HashSet<>();
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
+        final MemberSet known = DefinitionMap.knownMembers(this, previousDefinitions);
+        if (known != null) {
+            return known;
+        }
+        // just need to return the union of the addresses of every element
+        final List<MemberSet> memberSets = new ArrayList<>();
         for (ListExpression e: elements) {
-            output.addAll(e.getMemberAddresses(previousDefinitions));
+            memberSets.add(e.getMembers(previousDefinitions));
         }
         checkRep();
-        return output;
+        return MemberSet.unionAll(memberSets);
+    }
+    
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        checkRep();
+        for (ListExpression e: elements) {
+            if (e.hasMember(id, definitions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        final List<MemberDelta> deltas = new ArrayList<>();
+        boolean changed = false;
+        for (ListExpression e: elements) {
+            final MemberDelta delta = e.getMemberDelta(listDeltas, definitions);
+            deltas.add(delta);
+            changed = changed || !delta.isEmpty();
+        }
+        if (!changed) {
+            return MemberDelta.none();
+        }
+        // an id was added if some element added it and no element had it before,
+        // and removed if some element removed it and no element has it now
+        final List<MemberSet> added = new ArrayList<>();
+        final List<MemberSet> removed = new ArrayList<>();
+        for (MemberDelta delta: deltas) {
+            added.add(delta.getAdded().filter(id -> {
+                for (int i = 0; i < elements.size(); i++) {
+                    if (deltas.get(i).wasMember(id, elements.get(i).hasMember(id, definitions))) {
+                        return false;
+                    }
+                }
+                return true;
+            }));
+            removed.add(delta.getRemoved().filter(id -> !hasMember(id, definitions)));
+        }
+        checkRep();
+        return new MemberDelta(MemberSet.unionAll(added), MemberSet.unionAll(removed));
     }
     
     @Override
@@ -72,10 +120,16 @@ public class SetUnion implements ListExpression {
 
     @Override
     public boolean equals(Object that){
+        if (this == that) {
+            return true;
+        }
+        if (that instanceof StoredDefinition) {
+            return equals(((StoredDefinition) that).resolve());
+        }
         // Just needs to check that the right and left expressions are equal
         if (that instanceof SetUnion) {
             SetUnion other = (SetUnion) that;
-            return this.elements.equals(other.elements);
+            return this.hash == other.hash && this.elements.equals(other.elements);
         }
         checkRep();
         return false;
@@ -84,7 +138,7 @@ public class SetUnion implements ListExpression {
     @Override
     public int hashCode() {
         checkRep();
-        return elements.hashCode();
+        return hash;
     }
 
     @Override
@@ -92,42 +146,18 @@ public class SetUnion implements ListExpression {
         checkRep();
         return "(" + elements.stream().map(e -> e.htmlString()).collect(Collectors.joining(", ")) + ")";
     }
-
-    @Override
-    public List<String> getDependentListNames(Set<String> outerNames, Map<String, ListExpression> definitions)
-            throws InvalidExpressionException {
-        List<String> names = new ArrayList<>();
-        for (ListExpression e: elements) {
-            names.addAll(e.getDependentListNames(outerNames, definitions));
-        }
-        checkRep();
-        return names; 
-    }
     
-    @Override
-    public List<String> getReferencedLists(Map<String, ListExpression> definitions) {
-        List<String> referenced = new ArrayList<>();
-        elements.stream().map(e -> e.getReferencedLists(definitions))
-            .forEach(l -> referenced.addAll(l));
-        checkRep();
-        return referenced;
-    }
-
-    @Override
-    public List<String> getDefinedLists(Map<String, ListExpression> definitions) {
-        List<String> defined = new ArrayList<>();
-        elements.stream().map(e -> e.getDefinedLists(definitions))
-            .forEach(l -> defined.addAll(l));
+    /**
+     * @return an unmodifiable view of the elements unioned together, in order
+     */
+    public List<ListExpression> getElements() {
         checkRep();
-        return defined;
+        return Collections.unmodifiableList(elements);
     }
     
     @Override
-    public boolean noForbiddenPipes(Map<String, ListExpression> definitions) {
+    public <R> R accept(Visitor<R> visitor) {
         checkRep();
-        return elements.stream()
-                .map(e -> e.noForbiddenPipes(definitions))
-                .reduce(true, Boolean::logicalAnd);
+        return visitor.onSetUnion(this);
     }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,111 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates list expressions into HyperLogLog sketches of their members, to estimate how many members they have.
+ *
+ * The sketches of lists are kept with their cached members, so a union of lists is estimated by merging sketches,
+ * without touching any members, and the addresses written out in a union are sketched together. Sketches can't be
+ * intersected or subtracted accurately, so intersections and differences are evaluated exactly and then sketched.
+ */
+public class SketchEvaluator implements ListExpression.Visitor<HyperLogLog> {
+    // AF(definitions) = an estimation against definitions
+    // RI:
+    //     true
+    // SRE:
+    //     definitions is private and final, and only read
+    // Thread safety:
+    //     the evaluator only reads definitions, which is required to be threadsafe, and sketches are immutable.
+
+    private final Map<String, ListExpression> definitions;
+
+    private SketchEvaluator(Map<String, ListExpression> definitions) {
+        this.definitions = definitions;
+    }
+
+    /**
+     * Sketches the members of an expression.
+     * Requires that definitions is a threadsafe data type, and that expression reaches no circular definitions.
+     * @param expression an expression, which must have had its edits removed
+     * @param definitions the definitions to evaluate expression with
+     * @return a sketch of the members of expression
+     */
+    public static HyperLogLog sketch(ListExpression expression, Map<String, ListExpression> definitions) {
+        return expression.accept(new SketchEvaluator(definitions));
+    }
+
+    @Override
+    public HyperLogLog onEmailAddress(EmailAddress address) {
+        return HyperLogLog.of(address.getMembers(definitions));
+    }
+
+    @Override
+    public HyperLogLog onEmptyExpression(EmptyExpression empty) {
+        return HyperLogLog.empty();
+    }
+
+    @Override
+    public HyperLogLog onListname(Listname listname) {
+        if (definitions instanceof DefinitionMap) {
+            return ((DefinitionMap) definitions).getSketch(listname.getListname());
+        }
+        final ListExpression definition = definitions.get(listname.getListname());
+        return definition == null ? HyperLogLog.empty() : definition.accept(this);
+    }
+
+    @Override
+    public HyperLogLog onListDefinition(ListDefinition definition) {
+        return definition.getValue().accept(this);
+    }
+
+    @Override
+    public HyperLogLog onPipe(Pipe pipe) {
+        return HyperLogLog.empty();
+    }
+
+    @Override
+    public HyperLogLog onSequence(Sequence sequence) {
+        final List<ListExpression> elements = sequence.getElements();
+        return elements.get(elements.size() - 1).accept(this);
+    }
+
+    @Override
+    public HyperLogLog onSetUnion(SetUnion union) {
+        final List<HyperLogLog> sketches = new ArrayList<>();
+        // a sketch is the same size however few members it has, so the addresses are sketched together
+        final int[] addresses = new int[union.getElements().size()];
+        int count = 0;
+        for (ListExpression e: union.getElements()) {
+            if (e instanceof EmailAddress) {
+                addresses[count++] = ((EmailAddress) e).getId();
+            } else {
+                sketches.add(e.accept(this));
+            }
+        }
+        if (count > 0) {
+            Arrays.sort(addresses, 0, count);
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (distinct == 0 || addresses[distinct - 1] != addresses[i]) {
+                    addresses[distinct++] = addresses[i];
+                }
+            }
+            sketches.add(HyperLogLog.of(MemberSet.fromSorted(addresses, distinct)));
+        }
+        return HyperLogLog.unionAll(sketches);
+    }
+
+    @Override
+    public HyperLogLog onSetIntersection(SetIntersection intersection) {
+        return HyperLogLog.of(ParallelEvaluator.getMembers(intersection, definitions));
+    }
+
+    @Override
+    public HyperLogLog onSetDifference(SetDifference difference) {
+        return HyperLogLog.of(ParallelEvaluator.getMembers(difference, definitions));
+    }
+}
@@ -0,0 +1,712 @@
+package norn;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of list definitions, which is read by memory-mapping the file and decoding each definition only
+ * when it is asked for, so opening a snapshot costs a checksum of its tables rather than a parse of every definition.
+ *
+ * A snapshot is a fixed header followed by four sections:
+ *   definitions: the abstract syntax tree of each definition, in prefix order, one after another;
+ *   names: the start of each list name's text, the offset, length and CRC32 of each definition and the offset of its
+ *          references, then the text of every list name, those that are defined first and then those that are only
+ *          read;
+ *   addresses: the start of each email address's text, then the text of every address;
+ *   references: for each definition, the number of list names it reads directly, then the index of each.
+ * Within a tree, each node is a tag byte followed by its operands: an address or list name is the index of its
+ * text in the addresses or names section, and the size of a union or sequence is the number of its elements.
+ * Counts and indexes in trees are unsigned LEB128 varints; every other number is a big-endian int or long.
+ * The header holds the offset, length and CRC32 of the names, addresses and references sections, and a CRC32 of
+ * itself. Since the references of every definition are in the index, a store can load a snapshot as
+ * StoredDefinitions, which only decode their trees when they are used.
+ */
+public class SnapshotFile {
+    // AF(buffer, names, definitionCount, definitionIndex, addresses) = the snapshot mapped in buffer, where list
+    //     name i is names[i], the definition of names[i] for i < definitionCount is described by the i-th entry of the
+    //     names section, definitionIndex maps each defined name to its index, and addresses[i] is the i-th address
+    //     if it has been decoded yet, or null
+    // RI:
+    //     0 <= definitionCount <= names.length
+    //     the header and the names and addresses sections of buffer match their checksums
+    // SRE:
+    //     all fields are private and final; buffer is only read through duplicates, and only immutable
+    //     expressions and an unmodifiable set of names are returned
+    // Thread safety:
+    //     buffer is never modified, and each read uses its own duplicate. addresses is only read and written while
+    //     holding the lock on this.
+
+    /**
+     * 0x89 then "NOR" in ASCII; like PNG's, the first byte can't start a text file, so a definitions file whose text
+     * starts with a list name such as NORNteam is never taken for a snapshot
+     */
+    private static final int MAGIC = 0x894E4F52;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 96;
+    /** the size of the entry for a definition in the names section: its offset, length, CRC32 and references */
+    private static final int ENTRY_SIZE = 16;
+
+    private static final byte EMPTY = 0;
+    private static final byte ADDRESS = 1;
+    private static final byte LISTNAME = 2;
+    private static final byte UNION = 3;
+    private static final byte INTERSECTION = 4;
+    private static final byte DIFFERENCE = 5;
+    private static final byte DEFINITION = 6;
+    private static final byte SEQUENCE = 7;
+    private static final byte PIPE = 8;
+
+    private final ByteBuffer buffer;
+    private final String[] names;
+    private final int definitionCount;
+    private final Map<String, Integer> definitionIndex = new HashMap<>();
+    /** the offset of the first definition entry in the names section */
+    private final int entriesOffset;
+    /** the offset of the references section */
+    private final int referencesOffset;
+    /** the offsets of the start table and the text of the addresses section */
+    private final int addressStarts;
+    private final int addressText;
+    private final EmailAddress[] addresses;
+
+    /**
+     * Checks the header and tables of a mapped snapshot, and decodes its list names.
+     * @param buffer the whole snapshot
+     * @throws IOException if buffer is not a snapshot of this version, or is corrupt
+     */
+    private SnapshotFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported snapshot version " + buffer.getInt(4));
+        }
+        if (buffer.getInt(HEADER_SIZE - 4) != crc(buffer, 0, HEADER_SIZE - 4)) {
+            throw new IOException("snapshot header is corrupt");
+        }
+        final int addressCount = buffer.getInt(8);
+        final int nameCount = buffer.getInt(12);
+        this.definitionCount = buffer.getInt(16);
+        final int namesOffset = section(buffer, 20, "names");
+        final int addressesOffset = section(buffer, 40, "addresses");
+        this.referencesOffset = section(buffer, 60, "references");
+        if (addressCount < 0 || nameCount < 0 || definitionCount < 0 || definitionCount > nameCount) {
+            throw new IOException("snapshot header is corrupt");
+        }
+
+        this.names = new String[nameCount];
+        this.entriesOffset = namesOffset + 4 * (nameCount + 1);
+        final int nameText = entriesOffset + ENTRY_SIZE * definitionCount;
+        for (int i = 0; i < nameCount; i++) {
+            names[i] = text(nameText, buffer.getInt(namesOffset + 4 * i), buffer.getInt(namesOffset + 4 * (i + 1)));
+        }
+        for (int i = 0; i < definitionCount; i++) {
+            definitionIndex.put(names[i], i);
+        }
+
+        this.addressStarts = addressesOffset;
+        this.addressText = addressesOffset + 4 * (addressCount + 1);
+        this.addresses = new EmailAddress[addressCount];
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert 0 <= definitionCount && definitionCount <= names.length;
+    }
+
+    /**
+     * Checks a section against the offset, length and CRC32 the header gives it.
+     * @param buffer the whole snapshot
+     * @param field the offset in the header of the section's offset, which is followed by its length and CRC32
+     * @param name the name of the section, for errors
+     * @return the offset of the section
+     * @throws IOException if the section is outside the snapshot, or doesn't match its CRC32
+     */
+    private static int section(ByteBuffer buffer, int field, String name) throws IOException {
+        final long offset = buffer.getLong(field);
+        final long length = buffer.getLong(field + 8);
+        if (offset < HEADER_SIZE || length < 0 || offset + length > buffer.capacity()) {
+            throw new IOException("snapshot " + name + " section is out of bounds");
+        }
+        if (buffer.getInt(field + 16) != crc(buffer, (int) offset, (int) length)) {
+            throw new IOException("snapshot " + name + " section is corrupt");
+        }
+        return (int) offset;
+    }
+
+    /**
+     * @return the CRC32 of length bytes of buffer starting at offset
+     */
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().position(offset).limit(offset + length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return the UTF-8 text between from and to, relative to base
+     */
+    private String text(int base, int from, int to) throws IOException {
+        if (from < 0 || to < from || base + to > buffer.capacity()) {
+            throw new IOException("snapshot text is out of bounds");
+        }
+        final byte[] bytes = new byte[to - from];
+        buffer.duplicate().position(base + from).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Maps a snapshot file into memory and checks its tables. Definitions are only decoded by definition().
+     * @param path a snapshot file, as written by write()
+     * @return the snapshot in path
+     * @throws IOException if path can't be read, or is not a snapshot, or is corrupt
+     */
+    public static SnapshotFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("snapshot is too large to map");
+            }
+            // the mapping stays valid after the channel is closed
+            return new SnapshotFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @param path a file
+     * @return true if path starts like a snapshot, rather than text
+     * @throws IOException if path can't be read
+     */
+    public static boolean isSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading until we have the magic number or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * @return the list names this snapshot defines
+     */
+    public Set<String> listnames() {
+        return Collections.unmodifiableSet(definitionIndex.keySet());
+    }
+
+    /**
+     * Decodes the definition of a list name, checking it against its CRC32.
+     * @param listname a list name
+     * @return the definition of listname in this snapshot, or null if it has none
+     * @throws IOException if the definition is corrupt
+     */
+    public ListExpression definition(String listname) throws IOException {
+        final Integer index = definitionIndex.get(listname);
+        if (index == null) {
+            return null;
+        }
+        final int entry = entriesOffset + ENTRY_SIZE * index;
+        final int offset = buffer.getInt(entry);
+        final int length = buffer.getInt(entry + 4);
+        if (offset < HEADER_SIZE || length < 0 || (long) offset + length > buffer.capacity()
+                || buffer.getInt(entry + 8) != crc(buffer, offset, length)) {
+            throw new IOException("snapshot definition of " + listname + " is corrupt");
+        }
+        final ByteBuffer tree = buffer.duplicate().position(offset).limit(offset + length);
+        try {
+            final ListExpression definition = decode(tree);
+            if (tree.hasRemaining()) {
+                throw new IOException("snapshot definition of " + listname + " is corrupt");
+            }
+            return definition;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("snapshot definition of " + listname + " is corrupt", e);
+        }
+    }
+
+    /**
+     * @param listname a list name this snapshot defines
+     * @return the list names the definition of listname reads directly
+     * @throws IOException if the references are corrupt
+     */
+    public Set<String> references(String listname) throws IOException {
+        final int entry = entriesOffset + ENTRY_SIZE * definitionIndex.get(listname);
+        final ByteBuffer references = buffer.duplicate().position(referencesOffset + buffer.getInt(entry + 12));
+        try {
+            final int count = readVarint(references);
+            final Set<String> names = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                names.add(this.names[readVarint(references)]);
+            }
+            return names;
+        } catch (IllegalArgumentException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("snapshot references of " + listname + " are corrupt", e);
+        }
+    }
+
+    /**
+     * @return the definitions in this snapshot as StoredDefinitions, which decode their trees only once they are
+     *         used, and keep this snapshot mapped until they are all unreachable
+     * @throws IOException if the references of a definition are corrupt
+     */
+    public Map<String, ListExpression> storedDefinitions() throws IOException {
+        final Map<String, ListExpression> definitions = new HashMap<>();
+        for (String listname: definitionIndex.keySet()) {
+            final int length = buffer.getInt(entriesOffset + ENTRY_SIZE * definitionIndex.get(listname) + 4);
+            definitions.put(listname, new StoredDefinition(this, listname, references(listname), length));
+        }
+        return definitions;
+    }
+
+    /**
+     * Decodes every definition, checking each against its CRC32.
+     * @return the definitions in this snapshot
+     * @throws IOException if a definition is corrupt
+     */
+    public Map<String, ListExpression> definitions() throws IOException {
+        final Map<String, ListExpression> definitions = new HashMap<>();
+        for (String listname: definitionIndex.keySet()) {
+            definitions.put(listname, definition(listname));
+        }
+        return definitions;
+    }
+
+    /**
+     * @param tree a buffer positioned at the start of an encoded tree, which is advanced past it
+     * @return the tree
+     * @throws IOException if the tree is not well formed
+     */
+    private ListExpression decode(ByteBuffer tree) throws IOException {
+        final byte tag = tree.get();
+        switch (tag) {
+        case EMPTY:
+            return ExpressionFactory.empty();
+        case ADDRESS:
+            return address(readVarint(tree));
+        case LISTNAME:
+            return ExpressionFactory.listname(names[readVarint(tree)]);
+        case UNION:
+        case SEQUENCE: {
+            final int size = readVarint(tree);
+            final List<ListExpression> elements = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                elements.add(decode(tree));
+            }
+            return tag == UNION ? ExpressionFactory.union(elements) : ExpressionFactory.sequence(elements);
+        }
+        case INTERSECTION:
+            return ExpressionFactory.intersection(decode(tree), decode(tree));
+        case DIFFERENCE:
+            return ExpressionFactory.difference(decode(tree), decode(tree));
+        case DEFINITION: {
+            final String listname = names[readVarint(tree)];
+            return ExpressionFactory.definition(listname, decode(tree));
+        }
+        case PIPE:
+            return ExpressionFactory.pipe(decode(tree), decode(tree));
+        default:
+            throw new IOException("unknown tag " + tag + " in snapshot");
+        }
+    }
+
+    /**
+     * @param index the index of an address in this snapshot
+     * @return the address, which is only interned in AddressDictionary the first time it is asked for
+     */
+    private synchronized EmailAddress address(int index) throws IOException {
+        if (addresses[index] == null) {
+            final int from = buffer.getInt(addressStarts + 4 * index);
+            final int to = buffer.getInt(addressStarts + 4 * (index + 1));
+            addresses[index] = ExpressionFactory.emailAddress(text(addressText, from, to));
+        }
+        return addresses[index];
+    }
+
+    /**
+     * @param buffer a buffer positioned at an unsigned LEB128 varint, which is advanced past it
+     * @return the value of the varint
+     * @throws IOException if the varint is longer than an int
+     */
+    private static int readVarint(ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint in snapshot");
+    }
+
+    /**
+     * @param out where to write
+     * @param value a non-negative int, written as an unsigned LEB128 varint
+     */
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        assert value >= 0;
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes definitions to a snapshot file, replacing it atomically: the snapshot is written to a temporary file
+     * next to it, forced to disk, and then renamed over it.
+     * @param path the file to write
+     * @param definitions definitions without any edits
+     * @throws IOException if the file can't be written
+     */
+    public static void write(Path path, Map<String, ListExpression> definitions) throws IOException {
+        write(path, definitions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes definitions to a snapshot file, replacing it atomically, at no more than a given rate, so that a
+     * background writer leaves the disk to the threads serving requests.
+     * @param path the file to write
+     * @param definitions definitions without any edits
+     * @param bytesPerSecond the most bytes to write in a second, on average
+     * @throws IOException if the file can't be written, or the writing thread is interrupted
+     */
+    public static void write(Path path, Map<String, ListExpression> definitions, long bytesPerSecond)
+            throws IOException {
+        final Encoder encoder = new Encoder();
+        // defined names get the first indexes, so each one's index is also that of its definition entry
+        final List<String> defined = new ArrayList<>(definitions.keySet());
+        for (String listname: defined) {
+            encoder.nameIndex(listname);
+        }
+        final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            final OutputStream out = new BufferedOutputStream(
+                    new ThrottledOutputStream(Channels.newOutputStream(channel), bytesPerSecond), 1 << 16);
+            final ByteBuffer entries = ByteBuffer.allocate(ENTRY_SIZE * defined.size());
+            final ByteArrayOutputStream references = new ByteArrayOutputStream();
+            long position = HEADER_SIZE;
+            for (String listname: defined) {
+                final ListExpression definition = definitions.get(listname);
+                final byte[] tree;
+                final Set<String> reads;
+                if (definition instanceof StoredDefinition) {
+                    // copying a definition that was never used shouldn't make it displace the ones that are
+                    final StoredDefinition stored = (StoredDefinition) definition;
+                    tree = encoder.encode(stored.load());
+                    reads = stored.getReferences();
+                } else {
+                    tree = encoder.encode(definition);
+                    reads = DefinitionMap.directReferences(definition);
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(tree);
+                entries.putInt(checkedOffset(position)).putInt(tree.length).putInt((int) crc.getValue())
+                        .putInt(references.size());
+                writeVarint(references, reads.size());
+                for (String name: reads) {
+                    writeVarint(references, encoder.nameIndex(name));
+                }
+                out.write(tree);
+                position += tree.length;
+            }
+
+            final byte[] names = table(encoder.names, entries.array());
+            final long namesOffset = position;
+            out.write(names);
+            position += names.length;
+
+            final byte[] addresses = table(encoder.addresses, new byte[0]);
+            final long addressesOffset = position;
+            out.write(addresses);
+            position += addresses.length;
+
+            final long referencesOffset = position;
+            out.write(references.toByteArray());
+            position += references.size();
+            checkedOffset(position);
+            out.flush();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(encoder.addresses.size()).putInt(encoder.names.size()).putInt(defined.size())
+                    .putLong(namesOffset).putLong(names.length).putInt(crc(names))
+                    .putLong(addressesOffset).putLong(addresses.length).putInt(crc(addresses))
+                    .putLong(referencesOffset).putLong(references.size()).putInt(crc(references.toByteArray()));
+            header.putInt(HEADER_SIZE - 4, crc(header.array(), HEADER_SIZE - 4));
+            header.rewind();
+            while (header.hasRemaining()) {
+                // the header goes at the start of the file, so its offset in the file is its position in the buffer
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that files created or renamed in it survive a crash.
+     * @param directory a directory
+     * @throws IOException if the directory can't be forced
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @param position an offset into a snapshot being written
+     * @return position, as an int
+     * @throws IOException if position is past the largest snapshot that can be mapped
+     */
+    private static int checkedOffset(long position) throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("snapshot is too large to map");
+        }
+        return (int) position;
+    }
+
+    /**
+     * @param text strings
+     * @param entries bytes to put between the start table and the text
+     * @return the start of each string's UTF-8 text relative to the first, and the end of the last, then entries,
+     *         then the text of every string
+     */
+    private static byte[] table(Map<String, Integer> text, byte[] entries) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<byte[]> encoded = new ArrayList<>();
+        for (String s: text.keySet()) {
+            encoded.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        final ByteBuffer starts = ByteBuffer.allocate(4 * (encoded.size() + 1));
+        int start = 0;
+        for (byte[] e: encoded) {
+            starts.putInt(start);
+            start += e.length;
+        }
+        starts.putInt(start);
+        bytes.writeBytes(starts.array());
+        bytes.writeBytes(entries);
+        for (byte[] e: encoded) {
+            bytes.writeBytes(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int crc(byte[] bytes) {
+        return crc(bytes, bytes.length);
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Source of the time that ThrottledOutputStream paces itself by.
+     */
+    interface Clock {
+        /** the system's monotonic clock, which sleeps the calling thread */
+        Clock SYSTEM = new Clock() {
+            @Override public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override public void sleep(long nanos) throws InterruptedException {
+                Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+            }
+        };
+
+        /**
+         * @return the current time, in nanoseconds from an arbitrary origin
+         */
+        long nanoTime();
+
+        /**
+         * Waits until some time has passed.
+         * @param nanos the time to wait, in nanoseconds
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    /**
+     * Stream that passes bytes through to another, sleeping whenever it gets ahead of a rate.
+     */
+    static class ThrottledOutputStream extends FilterOutputStream {
+        private final long bytesPerSecond;
+        private final Clock clock;
+        private final long start;
+        private long written = 0;
+
+        /**
+         * @param out the stream to write to
+         * @param bytesPerSecond the most bytes to write in a second, on average
+         */
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond) {
+            this(out, bytesPerSecond, Clock.SYSTEM);
+        }
+
+        /**
+         * @param out the stream to write to
+         * @param bytesPerSecond the most bytes to write in a second, on average
+         * @param clock the clock to pace the writes by
+         */
+        ThrottledOutputStream(OutputStream out, long bytesPerSecond, Clock clock) {
+            super(out);
+            this.bytesPerSecond = bytesPerSecond;
+            this.clock = clock;
+            this.start = clock.nanoTime();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+            if (bytesPerSecond == Long.MAX_VALUE) {
+                return;
+            }
+            // the time by which the bytes written so far are due, at the rate
+            final long due = (long) (written * 1e9 / bytesPerSecond);
+            final long ahead = due - (clock.nanoTime() - start);
+            if (ahead > 0) {
+                try {
+                    clock.sleep(ahead);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while writing a snapshot");
+                }
+            }
+        }
+    }
+
+    /**
+     * Mutable visitor that encodes trees, numbering the addresses and list names they contain in the order they
+     * are first seen.
+     */
+    private static class Encoder implements ListExpression.Visitor<Void> {
+        private final Map<String, Integer> addresses = new LinkedHashMap<>();
+        private final Map<String, Integer> names = new LinkedHashMap<>();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        /**
+         * @return the encoding of expression
+         */
+        private byte[] encode(ListExpression expression) {
+            out.reset();
+            expression.accept(this);
+            return out.toByteArray();
+        }
+
+        private int nameIndex(String listname) {
+            return names.computeIfAbsent(listname, name -> names.size());
+        }
+
+        private void writeVarint(int value) {
+            SnapshotFile.writeVarint(out, value);
+        }
+
+        @Override
+        public Void onEmailAddress(EmailAddress address) {
+            out.write(ADDRESS);
+            writeVarint(addresses.computeIfAbsent(address.getAddress(), a -> addresses.size()));
+            return null;
+        }
+
+        @Override
+        public Void onEmptyExpression(EmptyExpression empty) {
+            out.write(EMPTY);
+            return null;
+        }
+
+        @Override
+        public Void onListname(Listname listname) {
+            out.write(LISTNAME);
+            writeVarint(nameIndex(listname.getListname()));
+            return null;
+        }
+
+        @Override
+        public Void onListDefinition(ListDefinition definition) {
+            out.write(DEFINITION);
+            writeVarint(nameIndex(definition.getListname()));
+            return definition.getValue().accept(this);
+        }
+
+        @Override
+        public Void onPipe(Pipe pipe) {
+            out.write(PIPE);
+            pipe.getLeft().accept(this);
+            return pipe.getRight().accept(this);
+        }
+
+        @Override
+        public Void onSequence(Sequence sequence) {
+            out.write(SEQUENCE);
+            writeVarint(sequence.getElements().size());
+            for (ListExpression e: sequence.getElements()) {
+                e.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void onSetUnion(SetUnion union) {
+            out.write(UNION);
+            writeVarint(union.getElements().size());
+            for (ListExpression e: union.getElements()) {
+                e.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void onSetIntersection(SetIntersection intersection) {
+            out.write(INTERSECTION);
+            intersection.getLeft().accept(this);
+            return intersection.getRight().accept(this);
+        }
+
+        @Override
+        public Void onSetDifference(SetDifference difference) {
+            out.write(DIFFERENCE);
+            difference.getLeft().accept(this);
+            return difference.getRight().accept(this);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package norn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file of list expressions one top-level statement at a time, where statements are separated by the ';'s
+ * that are not inside parentheses, so a file of any size can be loaded without holding all of it in memory.
+ *
+ * Line breaks are dropped rather than read as whitespace, the same as reading the file line by line and joining the
+ * lines, so a statement saved across lines reads the same as it always has.
+ * The file is decoded in the platform's default charset, which is the one saved files are written in.
+ */
+public class StatementReader implements Closeable {
+    // AF(channel, bytes, chars, depth, pipe, done) = a reader of the file open in channel, positioned after the
+    //     statements read so far and the text in chars before chars.position(); depth is how many parentheses are
+    //     open at that point, and pipe is whether a '|' outside any parentheses has been read
+    // RI:
+    //     !done or !chars.hasRemaining()
+    // SRE:
+    //     all fields are private, and only Strings are returned
+    // Thread safety:
+    //     not threadsafe, a reader must be confined to one thread
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private int depth = 0;
+    private boolean pipe = false;
+    /** true once the end of the file has been decoded */
+    private boolean endOfInput = false;
+    /** true once the last statement has been returned */
+    private boolean done = false;
+
+    /**
+     * Opens a file to read statements from.
+     * @param path the file
+     * @throws IOException if the file can't be opened
+     */
+    public StatementReader(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        chars.flip();
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert !done || !chars.hasRemaining();
+    }
+
+    /**
+     * Reads the next statement.
+     * @return the text of the next statement, without its ';' or line breaks, or null if every statement has been
+     *         read. A file of n top-level ';'s has n + 1 statements, some of which may be blank.
+     * @throws IOException if the file can't be read
+     */
+    public String next() throws IOException {
+        final StringBuilder statement = new StringBuilder();
+        return next(statement) ? statement.toString() : null;
+    }
+
+    /**
+     * Reads the next statement.
+     * @param statement where to append the statement, or null to skip over it
+     * @return false if every statement had already been read
+     * @throws IOException if the file can't be read
+     */
+    private boolean next(StringBuilder statement) throws IOException {
+        if (done) {
+            return false;
+        }
+        while (chars.hasRemaining() || fill()) {
+            final char c = chars.get();
+            switch (c) {
+            case '\n':
+            case '\r':
+                continue;
+            case '(':
+                depth++;
+                break;
+            case ')':
+                depth--;
+                break;
+            case ';':
+                if (depth == 0) {
+                    return true;
+                }
+                break;
+            case '|':
+                if (depth == 0) {
+                    pipe = true;
+                }
+                break;
+            default:
+                break;
+            }
+            if (statement != null) {
+                statement.append(c);
+            }
+        }
+        done = true;
+        checkRep();
+        return true;
+    }
+
+    /**
+     * Decodes more of the file into chars.
+     * @return false if the whole file has been decoded
+     * @throws IOException if the file can't be read
+     */
+    private boolean fill() throws IOException {
+        chars.clear();
+        while (!endOfInput && chars.position() == 0) {
+            final int read = channel.read(bytes);
+            bytes.flip();
+            endOfInput = read < 0;
+            decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput) {
+                decoder.flush(chars);
+            }
+            bytes.compact();
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    /**
+     * @return true if a '|' outside of any parentheses has been read, in which case the statements read are not
+     *         independent: a pipe applies to the whole sequence of statements before it
+     */
+    public boolean sawPipe() {
+        return pipe;
+    }
+
+    /**
+     * @return the number of bytes of the file read so far
+     * @throws IOException if the file can't be read
+     */
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * @return the size of the file in bytes
+     * @throws IOException if the file can't be read
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Checks whether a file has a '|' outside of any parentheses, without keeping any of its text.
+     * @param path a file
+     * @return true if the statements of path can't be applied one at a time
+     * @throws IOException if the file can't be read
+     */
+    public static boolean hasPipe(Path path) throws IOException {
+        try (StatementReader reader = new StatementReader(path)) {
+            while (!reader.sawPipe() && reader.next(null)) {
+                // keep scanning
+            }
+            return reader.sawPipe();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,261 @@
+package norn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Definition of a list that stays in a snapshot file until it is used, standing in for the tree it decodes to.
+ * Every operation decodes the tree if it is not in the cache of decoded definitions, and then delegates to it, so a
+ * store that loaded a snapshot only holds the trees of the lists it has used recently.
+ *
+ * The cache is global, bounded by the total weight of its trees, which is their encoded size plus a fixed overhead,
+ * and evicts the least recently used trees first. The bound is the system property norn.definitionCacheWeight, in
+ * bytes, or DEFAULT_WEIGHT if it is not set.
+ *
+ * A stored definition is equal to any expression equal to the tree it decodes to, stored or not, so comparing or
+ * hashing one decodes it, unless it is compared with a stored definition of the same list in the same snapshot.
+ */
+public class StoredDefinition implements ListExpression {
+    // AF(file, listname, references, length) = the definition of listname in file, which reads the lists in
+    //     references directly, and is length bytes long when encoded
+    // RI:
+    //     length >= 0
+    // SRE:
+    //     all fields are private and final; references is unmodifiable, and the trees returned are immutable
+    // Thread safety:
+    //     StoredDefinition is immutable, and SnapshotFile is threadsafe.
+    //     The cache (AF: each key's decoded tree, used less recently than every key after it; RI: weight is the sum
+    //     of the weights of its entries, and weight <= MAX_WEIGHT) and weight are only used while holding the lock
+    //     on the cache, and decoding happens outside the lock. The counters are LongAdders, which are threadsafe.
+
+    /** the default bound on the total weight of the cache, in bytes */
+    public static final long DEFAULT_WEIGHT = 1 << 24;
+
+    private static final long MAX_WEIGHT = Long.getLong("norn.definitionCacheWeight", DEFAULT_WEIGHT);
+
+    /** the weight of an entry apart from its encoded tree, roughly the size of its map entry */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** keyed by the Key of each StoredDefinition, which is cheaper to hash than the definition it stands for */
+    private static final LinkedHashMap<Key, ListExpression> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long weight = 0;
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private final SnapshotFile file;
+    private final String listname;
+    private final Set<String> references;
+    private final int length;
+    private final Key key;
+
+    /**
+     * Identity of a stored definition in the cache, with the weight of its entry.
+     */
+    private static class Key {
+        private final long weight;
+
+        private Key(long weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Make a new stored definition.
+     * @param file the snapshot that defines listname
+     * @param listname a list name
+     * @param references the list names its definition reads directly
+     * @param length the size of its encoded definition, in bytes
+     */
+    public StoredDefinition(SnapshotFile file, String listname, Set<String> references, int length) {
+        this.file = file;
+        this.listname = listname;
+        this.references = Set.copyOf(references);
+        this.length = length;
+        this.key = new Key(length + ENTRY_OVERHEAD);
+        checkRep();
+    }
+
+    /**
+     * Fails an assertion if some part of our rep invariant has been broken.
+     */
+    private void checkRep() {
+        assert length >= 0;
+    }
+
+    /**
+     * Fails an assertion if some part of the cache's rep invariant has been broken.
+     * Requires holding the lock on the cache.
+     */
+    private static void checkCache() {
+        assert 0 <= weight && weight <= MAX_WEIGHT;
+    }
+
+    /**
+     * @return the tree this definition decodes to, from the cache, or decoded and cached if it is not there
+     * @throws UncheckedIOException if the definition is corrupt
+     */
+    public ListExpression resolve() {
+        synchronized (cache) {
+            final ListExpression cached = cache.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        final ListExpression tree = load();
+        // a tree this heavy would evict a large part of the cache
+        if (key.weight > MAX_WEIGHT / 8) {
+            return tree;
+        }
+        synchronized (cache) {
+            if (cache.put(key, tree) == null) {
+                weight += key.weight;
+            }
+            final Iterator<Key> eldest = cache.keySet().iterator();
+            while (weight > MAX_WEIGHT) {
+                weight -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+            checkCache();
+        }
+        return tree;
+    }
+
+    /**
+     * @return true if the tree this definition decodes to is in the cache, without using the entry
+     */
+    public boolean isCached() {
+        synchronized (cache) {
+            return cache.containsKey(key);
+        }
+    }
+
+    /**
+     * Decodes this definition, without looking in or adding to the cache.
+     * @return the tree this definition decodes to
+     * @throws UncheckedIOException if the definition is corrupt
+     */
+    public ListExpression load() {
+        try {
+            return file.definition(listname);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the list names this definition reads directly, known without decoding it
+     */
+    public Set<String> getReferences() {
+        return references;
+    }
+
+    @Override
+    public ListExpression removeEdits(String outerDefinition, Map<String, ListExpression> definitions)
+            throws InvalidExpressionException {
+        return resolve().removeEdits(outerDefinition, definitions);
+    }
+
+    @Override
+    public MemberSet getMembers(Map<String, ListExpression> previousDefinitions) {
+        return resolve().getMembers(previousDefinitions);
+    }
+
+    @Override
+    public boolean hasMember(int id, Map<String, ListExpression> definitions) {
+        return resolve().hasMember(id, definitions);
+    }
+
+    @Override
+    public MemberDelta getMemberDelta(Map<String, MemberDelta> listDeltas, Map<String, ListExpression> definitions) {
+        return resolve().getMemberDelta(listDeltas, definitions);
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return resolve().accept(visitor);
+    }
+
+    @Override
+    public String htmlString() {
+        return resolve().htmlString();
+    }
+
+    @Override
+    public String toString() {
+        return resolve().toString();
+    }
+
+    /**
+     * @param definition a list definition
+     * @return the tree definition decodes to if it is a stored definition, otherwise definition itself
+     */
+    public static ListExpression resolve(ListExpression definition) {
+        return definition instanceof StoredDefinition ? ((StoredDefinition) definition).resolve() : definition;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (that instanceof StoredDefinition) {
+            final StoredDefinition other = (StoredDefinition) that;
+            if (file == other.file && listname.equals(other.listname)) {
+                return true;
+            }
+            return resolve().equals(other.resolve());
+        }
+        return that instanceof ListExpression && resolve().equals(that);
+    }
+
+    @Override
+    public int hashCode() {
+        return resolve().hashCode();
+    }
+
+    /**
+     * @return the number of times a stored definition was found in the cache
+     */
+    public static long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of times a stored definition had to be decoded
+     */
+    public static long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of decoded definitions dropped from the cache to stay within its bound
+     */
+    public static long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of decoded definitions in the cache
+     */
+    public static int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * @return the total weight of the decoded definitions in the cache
+     */
+    public static long weight() {
+        synchronized (cache) {
+            return weight;
+        }
+    }
+}
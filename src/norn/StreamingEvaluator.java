@@ -0,0 +1,118 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates list expressions into streams of their members, so that the members can be consumed one at a time
+ * without building the set of members of any operator.
+ *
+ * Lists whose members are cached are read from the cache. For a DefinitionMap, the lists named by the expression itself
+ * are evaluated through the map, so they are cached for the next evaluation. A list that is not cached and is only
+ * reached through other definitions is streamed from its definition the first time it is reached, and evaluated into
+ * a set (and cached, for a DefinitionMap) if it is reached again, so lists shared by many parts of an expression are
+ * only evaluated once.
+ */
+public class StreamingEvaluator implements ListExpression.Visitor<MemberStream> {
+    // AF(definitions, streamed, depth) = an evaluation against definitions, where streamed are the list names whose
+    //     definitions have already been turned into streams, and depth is the number of those definitions that the
+    //     part of the expression being visited is inside
+    // RI:
+    //     depth >= 0
+    // SRE:
+    //     all fields are private and final, and definitions is only read
+    // Thread safety:
+    //     not threadsafe, an evaluator is confined to the thread that called stream()
+
+    private final Map<String, ListExpression> definitions;
+    private final Set<String> streamed = new HashSet<>();
+    private int depth = 0;
+
+    private StreamingEvaluator(Map<String, ListExpression> definitions) {
+        this.definitions = definitions;
+    }
+
+    /**
+     * Evaluates an expression into a stream of its members.
+     * Requires that definitions is a threadsafe data type, that it is not changed while the stream is being read,
+     * and that expression reaches no circular definitions.
+     * @param expression an expression, which must have had its edits removed
+     * @param definitions the definitions to evaluate expression with
+     * @return a stream of the members of expression, in increasing order of id
+     */
+    public static MemberStream stream(ListExpression expression, Map<String, ListExpression> definitions) {
+        return expression.accept(new StreamingEvaluator(definitions));
+    }
+
+    @Override
+    public MemberStream onEmailAddress(EmailAddress address) {
+        return MemberStream.of(address.getMembers(definitions));
+    }
+
+    @Override
+    public MemberStream onEmptyExpression(EmptyExpression empty) {
+        return MemberStream.empty();
+    }
+
+    @Override
+    public MemberStream onListname(Listname listname) {
+        final String name = listname.getListname();
+        final ListExpression definition = definitions.get(name);
+        if (definition == null) {
+            return MemberStream.empty();
+        }
+        if (definitions instanceof DefinitionMap) {
+            final DefinitionMap map = (DefinitionMap) definitions;
+            if (depth == 0 || map.isCached(name) || streamed.contains(name)) {
+                return MemberStream.of(map.getMembers(name));
+            }
+        } else if (streamed.contains(name)) {
+            return MemberStream.of(definition.getMembers(definitions));
+        }
+        streamed.add(name);
+        depth++;
+        try {
+            return definition.accept(this);
+        } finally {
+            depth--;
+        }
+    }
+
+    @Override
+    public MemberStream onListDefinition(ListDefinition definition) {
+        return definition.getValue().accept(this);
+    }
+
+    @Override
+    public MemberStream onPipe(Pipe pipe) {
+        return MemberStream.empty();
+    }
+
+    @Override
+    public MemberStream onSequence(Sequence sequence) {
+        final List<ListExpression> elements = sequence.getElements();
+        return elements.get(elements.size() - 1).accept(this);
+    }
+
+    @Override
+    public MemberStream onSetUnion(SetUnion union) {
+        final List<MemberStream> streams = new ArrayList<>();
+        for (ListExpression e: union.getElements()) {
+            streams.add(e.accept(this));
+        }
+        return MemberStream.union(streams);
+    }
+
+    @Override
+    public MemberStream onSetIntersection(SetIntersection intersection) {
+        return MemberStream.intersection(intersection.getLeft().accept(this), intersection.getRight().accept(this));
+    }
+
+    @Override
+    public MemberStream onSetDifference(SetDifference difference) {
+        return MemberStream.difference(difference.getLeft().accept(this), difference.getRight().accept(this));
+    }
+}
@@ -0,0 +1,59 @@
+package norn;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+/**
+ * A weak reference to a list expression, for use as a key in concurrent maps, that is equal to references to
+ * structurally-equal expressions. A key whose expression has been collected is only equal to itself.
+ */
+class WeakExpressionKey extends WeakReference<ListExpression> {
+    // AF(hash) = a reference to get(), or to an expression already collected if get() is null
+    // RI:
+    //     hash is the hashCode of the referenced expression
+    // SRE:
+    //     hash is private and final
+    // Thread safety:
+    //     hash is final, and the referenced expression is immutable
+
+    private final int hash;
+
+    /**
+     * @param expression the expression to refer to
+     * @param queue where to put this key once expression is collected, or null if it is only used for lookups
+     */
+    WeakExpressionKey(ListExpression expression, ReferenceQueue<ListExpression> queue) {
+        super(expression, queue);
+        this.hash = expression.hashCode();
+    }
+
+    /**
+     * Removes the keys whose expressions have been collected from a map.
+     * @param map a map whose keys were made with queue
+     * @param queue the queue the keys of map were made with
+     */
+    static void expunge(Map<WeakExpressionKey, ?> map, ReferenceQueue<ListExpression> queue) {
+        for (Reference<? extends ListExpression> stale = queue.poll(); stale != null; stale = queue.poll()) {
+            map.remove(stale);
+        }
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof WeakExpressionKey)) {
+            return false;
+        }
+        final ListExpression expression = get();
+        return expression != null && expression.equals(((WeakExpressionKey) that).get());
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -11,7 +11,6 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.Executors;
 
 import com.sun.net.httpserver.Filter;
@@ -36,6 +35,8 @@ public class WebServer {
     //      only handling done is for evaluating an expression. 
     //      Multiple threads using the web server can parse independently because their requests are independent.
     //      When the result is added to NornSystem via parseAndStore, it is safe because NornSystem.java is threadsafe. 
+    //      Requests that don't define any lists don't wait on each other, since NornSystem evaluates them on a
+    //      snapshot.
     
     private static final int SUCCESS_CODE = 200;
     
@@ -60,6 +61,48 @@ public class WebServer {
             }
         });
         eval.getFilters().addAll(logging);
+        
+        HttpContext contains = server.createContext("/contains/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleContains(exchange);
+            }
+        });
+        contains.getFilters().addAll(logging);
+        
+        HttpContext count = server.createContext("/count/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCount(exchange, false);
+            }
+        });
+        count.getFilters().addAll(logging);
+        
+        HttpContext estimate = server.createContext("/estimate/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleCount(exchange, true);
+            }
+        });
+        estimate.getFilters().addAll(logging);
+        
+        HttpContext parseCache = server.createContext("/parsecache", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleParseCache(exchange);
+            }
+        });
+        parseCache.getFilters().addAll(logging);
+        
+        HttpContext definitionCache = server.createContext("/definitioncache", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleDefinitionCache(exchange);
+            }
+        });
+        definitionCache.getFilters().addAll(logging);
+        
+        HttpContext memberCache = server.createContext("/membercache", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleMemberCache(exchange);
+            }
+        });
+        memberCache.getFilters().addAll(logging);
     }
     
     /**
@@ -100,21 +143,16 @@ public class WebServer {
         String input = path.substring(base.length());
         try {
             ListEval eval = NornSystem.parseEvalAndStore(input);
-            String emailString = "";
-            Set<EmailAddress> emails = eval.getEmailAddresses();
-            for (EmailAddress email: emails) {
-                if (emailString.length() != 0) {
-                    emailString += ", ";
-                }
-                emailString = emailString + email.getAddress(); 
-            }
             
             String visualization = eval.getVisualization();
             
             OutputStream body = exchange.getResponseBody();
             PrintWriter out = new PrintWriter(new OutputStreamWriter(body, UTF_8), true);
             out.println("<p><strong>" + "Addresses in List: " + " </strong></p>");
-            out.println("<p> {" + emailString + " } </p> <hr>");
+            // addresses are written as they are evaluated, rather than built into one string first
+            out.print("<p> {");
+            NornSystem.writeAddresses(eval.streamMembers(), out);
+            out.println(" } </p> <hr>");
             out.println("<p><strong>" + "Visualization: " + "</strong></p>");
             out.println("<p>" + visualization + "</p>");
         } catch (InvalidExpressionException e) {
@@ -126,4 +164,99 @@ public class WebServer {
         exchange.close();
     }
     
+    /**
+     * Answers with the number of members of the expression in the path, as plain text, without visualizing it.
+     * @param approximate whether to estimate the number from sketches rather than count exactly
+     */
+    private void handleCount(HttpExchange exchange, boolean approximate) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        
+        final String path = exchange.getRequestURI().getPath();
+        final String base = exchange.getHttpContext().getPath();
+        assert path.startsWith(base);
+        
+        exchange.sendResponseHeaders(SUCCESS_CODE, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), true);
+        String input = path.substring(base.length());
+        try {
+            out.println(approximate ? NornSystem.estimate(input) : NornSystem.count(input));
+        } catch (InvalidExpressionException e) {
+            out.println("Error: Invalid expression: " + e.getMessage());
+        }
+        exchange.close();
+    }
+    
+    /**
+     * Answers whether an address is on a list, for paths of the form /contains/listname/address,
+     * with "true" or "false" as plain text.
+     */
+    private void handleContains(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        
+        final String path = exchange.getRequestURI().getPath();
+        final String base = exchange.getHttpContext().getPath();
+        assert path.startsWith(base);
+        
+        exchange.sendResponseHeaders(SUCCESS_CODE, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), true);
+        String[] listAndAddress = path.substring(base.length()).split("/");
+        if (listAndAddress.length != 2) {
+            out.println("Error: expected /contains/listname/address");
+        } else {
+            out.println(NornSystem.isMember(listAndAddress[0], listAndAddress[1]));
+        }
+        exchange.close();
+    }
+    
+    /**
+     * Answers with the counters of ParseCache as plain text, one "name value" pair per line, for monitoring.
+     */
+    private void handleParseCache(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        
+        exchange.sendResponseHeaders(SUCCESS_CODE, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), true);
+        out.println("hits " + ParseCache.hits());
+        out.println("misses " + ParseCache.misses());
+        out.println("evictions " + ParseCache.evictions());
+        out.println("entries " + ParseCache.size());
+        out.println("weight " + ParseCache.weight());
+        exchange.close();
+    }
+    
+    /**
+     * Answers with the counters of the cache of decoded StoredDefinitions as plain text, like handleParseCache().
+     */
+    private void handleDefinitionCache(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        
+        exchange.sendResponseHeaders(SUCCESS_CODE, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), true);
+        out.println("hits " + StoredDefinition.hits());
+        out.println("misses " + StoredDefinition.misses());
+        out.println("evictions " + StoredDefinition.evictions());
+        out.println("entries " + StoredDefinition.size());
+        out.println("weight " + StoredDefinition.weight());
+        exchange.close();
+    }
+    
+    /**
+     * Answers with how many bytes each tier of MemberCache uses, and how often sets have moved between them, as plain
+     * text like handleParseCache().
+     */
+    private void handleMemberCache(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        
+        exchange.sendResponseHeaders(SUCCESS_CODE, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF_8), true);
+        out.println("entries " + MemberCache.size());
+        out.println("heap " + MemberCache.heapBytes());
+        out.println("offheap " + MemberCache.offHeapBytes());
+        out.println("disk " + MemberCache.diskBytes());
+        out.println("promotions " + MemberCache.promotions());
+        out.println("demotions " + MemberCache.demotions());
+        out.println("drops " + MemberCache.drops());
+        exchange.close();
+    }
+    
 }
@@ -0,0 +1,197 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class DefinitionStoreTest {
+    // Partitions:
+    //     expression defines lists, or only reads them
+    //     concurrent writers define disjoint lists, or edit the same list
+    //     a writer reads a list another writer defines, or not
+    //     probed address is on the list, is not, or was never seen
+    //     counted expression defines lists, has pipes, or only reads lists
+    //     definitions are stored with or without evaluating them, one expression at a time or all at once
+    //     cached members are on the heap, off the heap, on disk, or dropped
+    //     cached members were computed for a published version, or for a writer's unpublished one
+
+    private static ListEval evaluate(DefinitionStore store, String input) throws InvalidExpressionException {
+        return store.evaluate(ListExpression.parse(input));
+    }
+
+    /**
+     * Runs body on several threads at once, and fails if any of them throws.
+     * @param threads the number of threads
+     * @param body the work of thread i, given i
+     */
+    private static void runConcurrently(int threads, ThreadBody body) throws InterruptedException {
+        final List<Thread> running = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    body.run(index);
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            running.add(thread);
+            thread.start();
+        }
+        for (Thread thread: running) {
+            thread.join();
+        }
+        assertEquals(List.of(), failures, "no thread should fail");
+    }
+
+    private interface ThreadBody {
+        void run(int index) throws Exception;
+    }
+
+    @Test
+    public void testReadsDoNotStore() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        evaluate(store, "a = benton@mit.edu");
+        DefinitionMap.Snapshot before = store.snapshot();
+        assertEquals(Set.of(new EmailAddress("benton@mit.edu")), evaluate(store, "a, b").getEmailAddresses());
+        assertEquals(before, store.snapshot(), "reading should not publish new definitions");
+    }
+
+    @Test
+    public void testDisjointWriters() throws InterruptedException, InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        runConcurrently(8, i -> {
+            for (int j = 0; j < 25; j++) {
+                evaluate(store, "team" + i + " = team" + i + ", u" + j + "@team" + i + ".com");
+            }
+        });
+        for (int i = 0; i < 8; i++) {
+            assertEquals(25, evaluate(store, "team" + i).getMembers().size(), "lost a write to team" + i);
+        }
+    }
+
+    @Test
+    public void testOverlappingWriters() throws InterruptedException, InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        evaluate(store, "shared = ; all = shared, extra");
+        runConcurrently(6, i -> {
+            for (int j = 0; j < 20; j++) {
+                evaluate(store, "shared = shared, u" + j + "@writer" + i + ".com; mine" + i + " = all");
+            }
+        });
+        assertEquals(120, evaluate(store, "all").getMembers().size(), "lost a write to shared");
+        Map<String, ListExpression> definitions = store.snapshot().getDefinitions();
+        for (int i = 0; i < 6; i++) {
+            assertEquals(ListExpression.parse("all"), definitions.get("mine" + i));
+        }
+    }
+
+    @Test
+    public void testContains() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        evaluate(store, "staff = benton@mit.edu, simon@mit.edu; Allowed = staff ! simon@mit.edu");
+        assertTrue(store.contains("allowed", "Benton@MIT.edu"), "benton is allowed");
+        assertFalse(store.contains("allowed", "simon@mit.edu"), "simon is not allowed");
+        int known = AddressDictionary.size();
+        assertFalse(store.contains("allowed", "never-seen-before@nowhere.com"), "unknown senders are not allowed");
+        assertEquals(known, AddressDictionary.size(), "probing should not give new addresses ids");
+        assertFalse(store.contains("nobody", "benton@mit.edu"), "undefined lists are empty");
+    }
+
+    @Test
+    public void testCountAndEstimate() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        evaluate(store, "a = benton@mit.edu, simon@mit.edu; b = a, yilinn@mit.edu");
+        assertEquals(3, store.count(ListExpression.parse("a, b")));
+        assertEquals(3, store.estimate(ListExpression.parse("a, b")));
+        assertEquals(0, store.count(ListExpression.parse("a | yilinn@mit.edu")), "pipes have no members");
+        assertThrows(InvalidExpressionException.class, () -> store.estimate(ListExpression.parse("a | b")),
+                "pipes should still be checked");
+        assertEquals(1, store.count(ListExpression.parse("c = lucy@mit.edu")));
+        assertEquals(1, store.estimate(ListExpression.parse("c")), "counting should store definitions like evaluating");
+    }
+
+    @Test
+    public void testDefine() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        store.define(ListExpression.parse("a = benton@mit.edu; b = a, simon@mit.edu; a = a, yilinn@mit.edu"));
+        assertEquals(3, store.count(ListExpression.parse("b")), "defining should apply edits like evaluating");
+        assertThrows(InvalidExpressionException.class, () -> store.define(ListExpression.parse("a = b")));
+        assertEquals(2, store.count(ListExpression.parse("a")), "an invalid definition should not be stored");
+    }
+
+    @Test
+    public void testDefineAll() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        store.define(ListExpression.parse("a = benton@mit.edu; c = a, b"));
+        assertEquals(1, store.count(ListExpression.parse("c")));
+        store.defineAll(Map.of("a", ListExpression.parse("simon@mit.edu, yilinn@mit.edu"),
+                "b", ListExpression.parse("rob@mit.edu")));
+        assertEquals(3, store.count(ListExpression.parse("c")), "lists that read the defined lists should change");
+        assertThrows(InvalidExpressionException.class,
+                () -> store.defineAll(Map.of("a", ListExpression.parse("b"), "b", ListExpression.parse("c"))));
+        assertEquals(3, store.count(ListExpression.parse("c")), "circular definitions should not be stored");
+    }
+
+    @Test
+    public void testUnpublishedVersionsDoNotBlockCaching() throws InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        evaluate(store, "unpub = benton@mit.edu; unpubreader = unpub, simon@mit.edu");
+        // a writer that never publishes caches its own, newer version of the reader
+        DefinitionMap unpublished = new DefinitionMap(store.snapshot());
+        unpublished.put("unpub", ListExpression.parse("yilinn@mit.edu"));
+        unpublished.propagateChanges();
+        assertEquals(2, unpublished.getMembers("unpubreader").size());
+        assertEquals(2, store.count(ListExpression.parse("unpubreader")));
+        assertTrue(new DefinitionMap(store.snapshot()).isCached("unpubreader"),
+                "the published version should be cached, even though an unpublished version is newer");
+    }
+
+    @Test
+    public void testTieredMemberCache() throws InvalidExpressionException {
+        MemberCache.clear();
+        DefinitionStore store = new DefinitionStore();
+        final int lists = 200;
+        for (int i = 0; i < lists; i++) {
+            evaluate(store, "tier" + i + " = tier" + i + "@mit.edu, tier" + (i + 1) + "@mit.edu");
+            store.count(ListExpression.parse("tier" + i));
+        }
+        long drops = MemberCache.drops();
+        try {
+            MemberCache.setBudgets(0, 1000, 1 << 20);
+            assertEquals(0, MemberCache.heapBytes(), "every set should move off the heap");
+            assertTrue(MemberCache.offHeapBytes() <= 1000, "warm tier should fit its budget");
+            assertTrue(MemberCache.offHeapBytes() > 0 && MemberCache.diskBytes() > 0, "sets should move down in turn");
+            assertEquals(drops, MemberCache.drops(), "sets that fit on disk should be kept");
+            assertEquals(lists, MemberCache.size());
+
+            MemberCache.setBudgets(2000, 1000, 1 << 20);
+            long promotions = MemberCache.promotions();
+            assertEquals(5, store.count(ListExpression.parse("tier0, tier1, tier" + (lists - 1))));
+            assertEquals(promotions + 3, MemberCache.promotions(), "sets in use should move back onto the heap");
+
+            MemberCache.setBudgets(2000, 1000, 500);
+            assertTrue(MemberCache.heapBytes() <= 2000, "hot tier should fit its budget");
+            assertTrue(MemberCache.diskBytes() <= 500, "cold tier should fit its budget");
+            assertTrue(MemberCache.drops() > drops, "sets that don't fit on disk should be dropped");
+            for (int i = 0; i < lists; i++) {
+                assertEquals(2, store.count(ListExpression.parse("tier" + i)), "tier" + i + " lost members");
+                assertTrue(store.contains("tier" + i, "tier" + (i + 1) + "@mit.edu"), "tier" + i + " lost a member");
+            }
+        } finally {
+            MemberCache.setBudgets(MemberCache.DEFAULT_HEAP_BYTES, MemberCache.DEFAULT_OFF_HEAP_BYTES,
+                    MemberCache.DEFAULT_DISK_BYTES);
+        }
+    }
+}
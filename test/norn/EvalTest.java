@@ -4,11 +4,15 @@
 package norn;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.jupiter.api.Test;
@@ -203,6 +207,142 @@ public class EvalTest {
         assertTrue(failed, "should have failed");
     }
     
+    // Tests that addresses are given the same id regardless of case, and that ids map back to the same address
+    @Test
+    public void testAddressIds() throws InvalidExpressionException {
+        EmailAddress upper = new EmailAddress("Benton@MIT.edu");
+        assertEquals(B.getId(), upper.getId(), "same address should get same id");
+        assertEquals(B, AddressDictionary.lookup(B.getId()), "id should map back to the address");
+        
+        ListExpression e1 = ListExpression.parse("(benton@mit.edu, yilinn@mit.edu) ! benton@mit.edu");
+        MemberSet members = ListExpression.evalAndVisualize(e1, new HashMap<>()).getMembers();
+        assertEquals(1, members.size(), "got wrong number of members");
+        assertTrue(members.contains(Y.getId()), "should contain yilinn's id");
+    }
+    
+    // Tests that cached members of a list are not used once the list, or a list it depends on, has been redefined
+    @Test
+    public void testRedefinitionAcrossEvaluations() throws InvalidExpressionException {
+        ListEval eval = ListExpression.evalAndVisualize(
+                ListExpression.parse("c = benton@mit.edu; b = c; a = b, yilinn@mit.edu; a"), new HashMap<>());
+        assertEquals(Set.of(B, Y), eval.getEmailAddresses(), "got wrong set of email addresses");
+        
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("a"), eval.getDefinitions());
+        assertEquals(Set.of(B, Y), eval.getEmailAddresses(), "got wrong set of email addresses");
+        
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("c = simon@mit.edu"), eval.getDefinitions());
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("a"), eval.getDefinitions());
+        assertEquals(Set.of(S, Y), eval.getEmailAddresses(), "dependents of c should see its new definition");
+        
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("b = b, lucy@mit.edu; a"), eval.getDefinitions());
+        assertEquals(Set.of(S, L, Y), eval.getEmailAddresses(), "dependents of b should see its edit");
+    }
+    
+    // Tests that lists depending on an edited list through each operator are updated, once they have been evaluated
+    // before
+    @Test
+    public void testEditsPropagateThroughOperators() throws InvalidExpressionException {
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse(
+                "a = benton@mit.edu, yilinn@mit.edu; b = simon@mit.edu, yilinn@mit.edu;"
+                + "u = a, b; i = a * b; d = a ! b; x = d, i; u; i; d; x"), new HashMap<>());
+        assertEquals(Set.of(B, Y), eval.getEmailAddresses(), "got wrong set of email addresses");
+        
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("a = (a, simon@mit.edu) ! benton@mit.edu"),
+                eval.getDefinitions());
+        eval = ListExpression.evalAndVisualize(ListExpression.parse("b = b ! yilinn@mit.edu"), eval.getDefinitions());
+        
+        Map<String, Set<EmailAddress>> expected = Map.of(
+                "a", Set.of(Y, S), "b", Set.of(S), "u", Set.of(Y, S), "i", Set.of(S), "d", Set.of(Y),
+                "x", Set.of(Y, S));
+        for (String name: expected.keySet()) {
+            ListEval result = ListExpression.evalAndVisualize(ListExpression.parse(name), eval.getDefinitions());
+            assertEquals(expected.get(name), result.getEmailAddresses(),
+                    "got wrong set of email addresses for " + name);
+        }
+    }
+    
+    // Tests that a cycle in a definition that doesn't contribute to the result is still reported, rather than crashing
+    @Test
+    public void testLoopOutsideResult() throws InvalidExpressionException {
+        ListExpression e = ListExpression.parse("a = b; b = a; c");
+        assertThrows(InvalidExpressionException.class, () -> ListExpression.evalAndVisualize(e, new HashMap<>()));
+    }
+    
+    // Tests that a list reached along several paths is listed once, in order of first inclusion
+    @Test
+    public void testAnalysisOfSharedLists() throws InvalidExpressionException {
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse(
+                "x = benton@mit.edu; a = x, y; b = a * (a, x); b ! a"), new HashMap<>());
+        ExpressionAnalysis analysis = ExpressionAnalysis.analyze(ListExpression.parse("b ! a"), eval.getDefinitions());
+        assertEquals(List.of("b", "a", "x", "y"), analysis.getDependentListNames(), "wrong dependent lists");
+        assertEquals(Set.of("a", "b", "x", "y"), analysis.getReferencedLists(), "wrong referenced lists");
+        assertTrue(analysis.noForbiddenPipes(), "there are no pipes");
+    }
+    
+    // Tests that evaluating against a snapshot leaves the snapshot as it was, and finding which expressions define
+    // lists
+    @Test
+    public void testSnapshots() throws InvalidExpressionException {
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse("a = benton@mit.edu"), new HashMap<>());
+        DefinitionMap.Snapshot snapshot = ((DefinitionMap) eval.getDefinitions()).snapshot();
+        ListExpression edit = ListExpression.parse("b = a, yilinn@mit.edu; a = a, simon@mit.edu");
+        assertTrue(ExpressionAnalysis.hasDefinitions(edit), "expected a definition");
+        assertFalse(ExpressionAnalysis.hasDefinitions(ListExpression.parse("(a, b) * c | d ! e")),
+                "expected no definitions");
+        
+        ListEval edited = ListExpression.evalAndVisualize(edit, new DefinitionMap(snapshot));
+        assertEquals(Set.of(B, S), edited.getEmailAddresses(), "got wrong set of email addresses");
+        assertEquals(Map.of("a", new EmailAddress("benton@mit.edu")), snapshot.getDefinitions(), "snapshot changed");
+        ListEval read = ListExpression.evalAndVisualize(ListExpression.parse("a, b"), new DefinitionMap(snapshot));
+        assertEquals(Set.of(B), read.getEmailAddresses(), "got wrong set of email addresses");
+    }
+    
+    // Tests a long chain of pipes, and that an invalid pipe deep inside one side fails the whole expression
+    @Test
+    public void testLongPipeChain() throws InvalidExpressionException {
+        StringBuilder chain = new StringBuilder("l0 = u0@mit.edu");
+        for (int i = 1; i < 200; i++) {
+            chain.append(" | l").append(i).append(" = u").append(i).append("@mit.edu");
+        }
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse("(" + chain + "); l0, l199"),
+                new HashMap<>());
+        assertEquals(Set.of(new EmailAddress("u0@mit.edu"), new EmailAddress("u199@mit.edu")),
+                eval.getEmailAddresses());
+        
+        ListExpression invalid = ListExpression.parse(chain + " | (x = benton@mit.edu | y = x)");
+        assertThrows(InvalidExpressionException.class, () -> ListExpression.evalAndVisualize(invalid, new HashMap<>()));
+    }
+    
+    // Tests that pipes are checked against the lists defined before them, including edits of those lists
+    @Test
+    public void testPipeAfterDefinitions() throws InvalidExpressionException {
+        ListExpression reaches = ListExpression.parse("a = b; ((b = benton@mit.edu) | a)");
+        assertThrows(InvalidExpressionException.class, () -> ListExpression.evalAndVisualize(reaches, new HashMap<>()),
+                "a reaches b, which the other side defines");
+        ListExpression edited = ListExpression.parse("a = b; a = a, c; ((c = benton@mit.edu) | a)");
+        assertThrows(InvalidExpressionException.class, () -> ListExpression.evalAndVisualize(edited, new HashMap<>()),
+                "a still reaches c after being edited");
+        ListExpression replaced = ListExpression.parse("a = b; a = simon@mit.edu; ((b = benton@mit.edu) | a)");
+        assertEquals(Set.of(), ListExpression.evalAndVisualize(replaced, new HashMap<>()).getEmailAddresses(),
+                "a no longer reaches b");
+        ListExpression reached = ListExpression.parse("(b = benton@mit.edu) | a");
+        assertThrows(InvalidExpressionException.class,
+                () -> ListExpression.evalAndVisualize(reached, new HashMap<>(Map.of("a", ListExpression.parse("b")))),
+                "a reaches b through an earlier definition");
+        
+        Map<String, ListExpression> definitions = new HashMap<>();
+        definitions.put("a", ListExpression.parse("x@mit.edu"));
+        definitions.put("c", ListExpression.parse("(e = y@mit.edu), (d | x@mit.edu)"));
+        definitions.put("d", ListExpression.parse("z@mit.edu; e"));
+        definitions.put("e", ListExpression.parse("b ! x@mit.edu"));
+        ListExpression inside = ListExpression.parse("z@mit.edu * (((e = y@mit.edu); (b * d)) | (w@mit.edu, b))");
+        assertThrows(InvalidExpressionException.class, () -> ListExpression.evalAndVisualize(inside, definitions),
+                "d reaches b through e until the left side's own definition of e is made");
+        ListExpression before = ListExpression.parse("e = y@mit.edu; ((b * d) | (w@mit.edu, b))");
+        assertEquals(Set.of(), ListExpression.evalAndVisualize(before, definitions).getEmailAddresses(),
+                "d no longer reaches b once e is redefined before the pipe");
+    }
+    
     /**
      * Used for testing. Creates a sequence out of two listExpressions
      * @param e1 the first expression
@@ -213,4 +353,181 @@ public class EvalTest {
         return new Sequence(List.of(e1, e2));
     }
     
-}
\ No newline at end of file
+    
+    // Tests that evaluating wide and deep expressions in parallel gives the same members as evaluating them in order
+    @Test
+    public void testParallelEvaluation() throws InvalidExpressionException {
+        StringBuilder program = new StringBuilder();
+        StringBuilder all = new StringBuilder("all = ");
+        for (int i = 0; i < 300; i++) {
+            program.append("team").append(i).append(" = u").append(i).append("@mit.edu, u").append(i + 1)
+                    .append("@mit.edu, shared@mit.edu; ");
+            all.append(i == 0 ? "" : ", ").append("team").append(i);
+        }
+        program.append(all).append("; (all * (team7, team8, team9, team10)) ! (team8, team0)");
+        ListExpression expression = ListExpression.parse(program.toString());
+        ListEval eval = ListExpression.evalAndVisualize(expression, new HashMap<>());
+        assertEquals(Set.of(new EmailAddress("u7@mit.edu"), new EmailAddress("u10@mit.edu"),
+                new EmailAddress("u11@mit.edu")), eval.getEmailAddresses(), "got wrong set of email addresses");
+        
+        // nothing is cached for a plain map, so every list is evaluated again
+        Map<String, ListExpression> definitions = new HashMap<>(eval.getDefinitions());
+        ListExpression everyone = ListExpression.parse("all");
+        assertEquals(everyone.getMembers(definitions), ParallelEvaluator.getMembers(everyone, definitions));
+        assertEquals(302, ParallelEvaluator.getMembers(everyone, definitions).size(), "wrong number of members");
+    }
+    
+    // Tests that streaming the members of an expression gives them in order, and reads lists shared by several parts
+    // once
+    @Test
+    public void testStreamedMembers() throws InvalidExpressionException {
+        ListExpression program = ListExpression.parse("a = benton@mit.edu, simon@mit.edu; b = a * simon@mit.edu; "
+                + "c = (a, yilinn@mit.edu) ! b; (a, b, c) * (c, b)");
+        ListEval eval = ListExpression.evalAndVisualize(program, new HashMap<>());
+        MemberStream stream = eval.streamMembers();
+        List<Integer> streamed = new ArrayList<>();
+        stream.forEachRemaining((int id) -> streamed.add(id));
+        List<Integer> expected = new ArrayList<>();
+        eval.getMembers().forEach(expected::add);
+        assertEquals(expected, streamed, "streamed members should be the members in increasing order");
+        assertEquals(Set.of(B, S, Y), eval.getEmailAddresses(), "got wrong set of email addresses");
+        
+        Map<String, ListExpression> definitions = new HashMap<>(eval.getDefinitions());
+        ListExpression shared = ListExpression.parse("(c ! nobody) * (c, a)");
+        stream = StreamingEvaluator.stream(shared, definitions);
+        List<Integer> streamedAgain = new ArrayList<>();
+        stream.forEachRemaining((int id) -> streamedAgain.add(id));
+        List<Integer> evaluated = new ArrayList<>();
+        shared.getMembers(definitions).forEach(evaluated::add);
+        assertEquals(evaluated, streamedAgain, "streaming without a DefinitionMap should give the same members");
+    }
+    
+    // Tests that streaming the members of a list caches them, so evaluating the list again is a cache hit
+    @Test
+    public void testStreamedListIsCached() throws InvalidExpressionException {
+        StringBuilder program = new StringBuilder();
+        for (int i = 199; i >= 0; i--) {
+            program.append("l").append(i).append(" = u").append(i).append("@mit.edu")
+                    .append(i == 199 ? "" : ", l" + (i + 1)).append("; ");
+        }
+        program.append("l0");
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse(program.toString()), new HashMap<>());
+        DefinitionMap definitions = (DefinitionMap) eval.getDefinitions();
+        ListExpression l0 = ListExpression.parse("l0");
+        for (int i = 0; i < 3; i++) {
+            ListEval streamed = ListExpression.evalAndVisualize(l0, definitions);
+            int[] count = {0};
+            streamed.streamMembers().forEachRemaining((int id) -> count[0]++);
+            assertEquals(200, count[0], "wrong number of members");
+            assertTrue(definitions.isCached("l0"), "streaming l0 should cache its members");
+        }
+    }
+    
+    // Tests that defining a list no one has read yet updates the cached members of the lists that read it
+    @Test
+    public void testDefiningUnreadList() throws InvalidExpressionException {
+        Map<String, ListExpression> definitions = ListExpression.evalAndVisualize(
+                ListExpression.parse("f = benton@mit.edu, d"), new HashMap<>()).getDefinitions();
+        ListEval read = ListExpression.evalAndVisualize(ListExpression.parse("f"), definitions);
+        assertEquals(Set.of(B), read.getEmailAddresses(), "got wrong set of email addresses");
+        definitions = ListExpression.evalAndVisualize(ListExpression.parse("d = simon@mit.edu"), definitions)
+                .getDefinitions();
+        assertEquals(Set.of(B, S), ListExpression.evalAndVisualize(ListExpression.parse("f"), definitions)
+                .getEmailAddresses(), "f should include the new members of d");
+    }
+    
+    // Tests membership probes through each operator, including a list too big to want to evaluate
+    @Test
+    public void testContains() throws InvalidExpressionException {
+        ListEval eval = ListExpression.evalAndVisualize(ListExpression.parse(
+                "a = benton@mit.edu, simon@mit.edu; b = a * (simon@mit.edu, lucy@mit.edu); "
+                + "c = (a, yilinn@mit.edu) ! b"),
+                new HashMap<>());
+        Map<String, ListExpression> definitions = eval.getDefinitions();
+        assertTrue(ListExpression.parse("a").contains(B, definitions), "a has benton");
+        assertTrue(ListExpression.parse("b").contains(S, definitions), "b has simon");
+        assertFalse(ListExpression.parse("b").contains(L, definitions), "b doesn't have lucy");
+        assertTrue(ListExpression.parse("c").contains(Y, definitions), "c has yilinn");
+        assertFalse(ListExpression.parse("c").contains(S, definitions), "c doesn't have simon");
+        assertFalse(ListExpression.parse("undefined, (a | b)").contains(B, definitions), "pipes have no members");
+        assertEquals(ListExpression.parse("c").getMemberAddresses(definitions).contains(A),
+                ListExpression.parse("c").contains(A, definitions));
+    }
+    
+    // Tests exact counts, and that estimates from sketches are close for big lists and unions of them
+    @Test
+    public void testCountAndEstimate() throws InvalidExpressionException {
+        Map<String, ListExpression> definitions = new HashMap<>();
+        for (String name: List.of("x", "y")) {
+            List<ListExpression> addresses = new ArrayList<>();
+            for (int i = 0; i < 20000; i++) {
+                // x and y share half of their members
+                addresses.add(new EmailAddress("u" + (name.equals("x") ? i : i + 10000) + "@count.com"));
+            }
+            definitions.put(name, new SetUnion(addresses));
+        }
+        definitions = ListExpression.evalAndVisualize(new EmptyExpression(), definitions).getDefinitions();
+        
+        assertEquals(20000, ListExpression.count(ListExpression.parse("x"), definitions));
+        assertEquals(30000, ListExpression.count(ListExpression.parse("x, y, u1@count.com"), definitions));
+        assertEquals(10000, ListExpression.count(ListExpression.parse("x * y"), definitions));
+        assertEquals(1, ListExpression.count(ListExpression.parse("z = benton@mit.edu; z"), definitions));
+        assertFalse(definitions.containsKey("z"), "counting should not keep definitions");
+        
+        assertEquals(20000, ListExpression.estimate(ListExpression.parse("x"), definitions), 20000 * 0.05);
+        assertEquals(30000, ListExpression.estimate(ListExpression.parse("x, y"), definitions), 30000 * 0.05);
+        assertEquals(10000, ListExpression.estimate(ListExpression.parse("x * y"), definitions), 10000 * 0.05);
+        assertEquals(3, ListExpression.estimate(ListExpression.parse("benton@mit.edu, simon@mit.edu, yilinn@mit.edu"),
+                definitions), "small sets should be estimated exactly");
+        assertEquals(20001, ListExpression.estimate(ListExpression.parse("benton@mit.edu, x, benton@mit.edu"),
+                definitions), 20001 * 0.05, "repeated addresses in a union should be counted once");
+        assertEquals(0, ListExpression.estimate(ListExpression.parse("nobody"), definitions));
+    }
+    
+    // Tests each rewrite of the optimizer, and that the rewritten expressions have the same members
+    @Test
+    public void testOptimizer() throws InvalidExpressionException {
+        ListEval lists = ListExpression.evalAndVisualize(ListExpression.parse(
+                "big = benton@mit.edu, simon@mit.edu, yilinn@mit.edu, lucy@mit.edu; small = simon@mit.edu; "
+                + "mid = benton@mit.edu, simon@mit.edu; big, small, mid"), new HashMap<>());
+        // the sizes of the lists are only known once their members are cached
+        lists.getMembers();
+        Map<String, ListExpression> definitions = lists.getDefinitions();
+        Map<String, String> rewrites = Map.of(
+                "big * big", "big",
+                "big ! big", "",
+                "big, (small, big), , nobody", "big, small",
+                "(big * mid) * small", "small * mid * big",
+                "nobody * big", "",
+                "(big ! small) ! mid", "big ! (small, mid)",
+                "(big * small) ! mid", "(small ! mid) * big",
+                "a = big; b = a | c = mid", "");
+        for (Map.Entry<String, String> rewrite: rewrites.entrySet()) {
+            ListExpression original = ListExpression.parse(rewrite.getKey());
+            ListExpression optimized = ExpressionOptimizer.optimize(
+                    original.removeEdits("", new DefinitionMap(definitions)), definitions);
+            assertEquals(ListExpression.parse(rewrite.getValue()), optimized, "wrong rewrite of " + rewrite.getKey());
+            assertEquals(ListExpression.evalAndVisualize(original, definitions).getMembers(),
+                    optimized.getMembers(definitions), "rewrite of " + rewrite.getKey() + " changed its members");
+        }
+    }
+
+    // covers programs run against a plain map and a DefinitionMap, with unions of addresses and lists,
+    //        intersections, differences, empty and undefined operands, and nested lists
+    @Test
+    public void testMemberProgram() throws InvalidExpressionException {
+        Map<String, ListExpression> definitions = ListExpression.evalAndVisualize(ListExpression.parse(
+                "a = benton@mit.edu, simon@mit.edu, yilinn@mit.edu; b = simon@mit.edu, lucy@mit.edu; "
+                + "c = (a ! b), lucy@mit.edu; d = c * a, , max@mit.edu"), new HashMap<>()).getDefinitions();
+        List<String> expressions = List.of("a", "a, b, max@mit.edu, lucy@mit.edu", "a * b", "a ! b", "(a, b) ! (c * d)",
+                "", "nobody, , simon@mit.edu", "d ! nobody", "c * d * a", "(a ! b) * (b ! a)");
+        for (String expression: expressions) {
+            ListExpression parsed = ListExpression.parse(expression);
+            MemberProgram program = MemberProgram.of(parsed);
+            assertSame(program, MemberProgram.of(parsed), "expected the program to be cached");
+            assertEquals(parsed.getMembers(definitions), program.run(definitions), "wrong members of " + expression);
+            assertEquals(parsed.getMembers(definitions), program.run(new DefinitionMap(definitions)),
+                    "wrong members of " + expression);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package norn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import edu.mit.eecs.parserlib.ParseTree;
+import edu.mit.eecs.parserlib.Parser;
+import edu.mit.eecs.parserlib.UnableToParseException;
+
+/**
+ * Reference parser for ListExpressions, which compiles ListExpressionGrammar.g with parserlib and converts the parse
+ * tree it produces, to check that ExpressionParser parses the same language into the same expressions.
+ */
+public class GrammarParser {
+    
+    // the nonterminals of the grammar
+    private static enum ListExpressionGrammar {
+        EXPRESSION, SEQUENCE, SETUNION, SETDIFFERENCE, SETINTERSECTION, PRIMITIVE,
+        EMAILADDRESS, EMPTYEXPRESSION, USERNAME, DOMAIN, WHITESPACE, LISTNAME, LISTDEFINITION,
+        PIPE
+    }
+
+    private static Parser<ListExpressionGrammar> parser = makeParser();
+    
+    /**
+     * Compile the grammar into a parser.
+     * 
+     * @return parser for the grammar
+     * @throws RuntimeException if grammar file can't be read or has syntax errors
+     */
+    private static Parser<ListExpressionGrammar> makeParser() {
+        try {
+            // read the grammar as a file, relative to the project root.
+            final File grammarFile = new File("src/norn/ListExpressionGrammar.g");
+            return Parser.compile(grammarFile, ListExpressionGrammar.EXPRESSION);
+            
+        // Parser.compile() throws two checked exceptions.
+        // Translate these checked exceptions into unchecked RuntimeExceptions,
+        // because these failures indicate internal bugs rather than client errors
+        } catch (IOException e) {
+            throw new RuntimeException("can't read the grammar file", e);
+        } catch (UnableToParseException e) {
+            throw new RuntimeException("the grammar has a syntax error", e);
+        }
+    }
+    
+    /**
+     * @param string the string to parse
+     * @return ListExpression parsed from the string by the grammar
+     * @throws UnableToParseException if the string does not match the ListExpressionGrammar
+     */
+    public static ListExpression parse(final String string) throws UnableToParseException {
+        return makeAbstractSyntaxTree(parser.parse(string));
+    }
+    
+    /**
+     * Convert a parse tree into an abstract syntax tree.
+     * 
+     * @param parseTree constructed according to the grammar in ListExressionGrammar.g
+     * @return abstract syntax tree corresponding to parseTree
+     */
+    private static ListExpression makeAbstractSyntaxTree(final ParseTree<ListExpressionGrammar> parseTree) {
+        switch(parseTree.name()) {
+        case EXPRESSION: // expression ::= sequence;
+            {
+                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
+                return makeAbstractSyntaxTree(child);
+            }
+        case SEQUENCE:
+            {
+                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
+                ListExpression expression;
+                if (children.size() == 1) {
+                    expression = makeAbstractSyntaxTree(children.get(0));
+                } else {
+                    expression = ExpressionFactory.sequence(children.stream()
+                            .map(c -> makeAbstractSyntaxTree(c))
+                            .collect(Collectors.toList()));
+                }
+                return expression;
+            }
+        case SETUNION:
+            {
+                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
+                ListExpression expression;
+                if (children.size() == 1) {
+                    expression = makeAbstractSyntaxTree(children.get(0));
+                } else {
+                    expression = ExpressionFactory.union(children.stream()
+                            .map(c -> makeAbstractSyntaxTree(c))
+                            .collect(Collectors.toList()));
+                }
+                return expression;
+            }
+        case SETDIFFERENCE:
+            {
+                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
+                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
+                for (int i = 1; i < children.size(); i++) {
+                    expression = ExpressionFactory.difference(expression, makeAbstractSyntaxTree(children.get(i)));
+                }
+                return expression;
+            }
+        case SETINTERSECTION:
+            {
+                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
+                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
+                for (int i = 1; i < children.size(); i++) {
+                    expression = ExpressionFactory.intersection(expression, makeAbstractSyntaxTree(children.get(i)));
+                }
+                return expression;
+            }
+        case PRIMITIVE:
+            {
+                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
+                switch(child.name()) {
+                case EMAILADDRESS:
+                    {
+                        return ExpressionFactory.emailAddress(child.text());
+                    }
+                case EMPTYEXPRESSION:
+                    {
+                        return ExpressionFactory.empty();
+                    }
+                case EXPRESSION:
+                    {
+                        return makeAbstractSyntaxTree(child);
+                    }
+                case LISTNAME:
+                    {
+                        if (parseTree.children().size() == 1) {
+                            return makeAbstractSyntaxTree(child);
+                        } else { // case where we have listname '=' listDefinition
+                            String listname = child.text().toLowerCase();
+                            ListExpression value = makeAbstractSyntaxTree(parseTree.children().get(1));
+                            return ExpressionFactory.definition(listname, value);
+                        }
+                    }
+                default:
+                    throw new RuntimeException("should never get here");
+                }
+            }
+        case LISTDEFINITION:
+            {
+                final ParseTree<ListExpressionGrammar> child = parseTree.children().get(0);
+                if (parseTree.children().size() == 1) {
+                    return makeAbstractSyntaxTree(child);
+                } else if (parseTree.children().size() == 2) {
+                    String listname = child.text().toLowerCase();
+                    ListExpression value = makeAbstractSyntaxTree(parseTree.children().get(1));
+                    return ExpressionFactory.definition(listname, value);
+                } else {
+                    throw new RuntimeException("should never have more than one child here");
+                }
+            }
+        case LISTNAME:
+            {
+                return ExpressionFactory.listname(parseTree.text());
+            }
+        case PIPE:
+            {
+                final List<ParseTree<ListExpressionGrammar>> children = parseTree.children();
+                ListExpression expression = makeAbstractSyntaxTree(children.get(0));
+                for (int i = 1; i < children.size(); i++) {
+                    expression = ExpressionFactory.pipe(expression, makeAbstractSyntaxTree(children.get(i)));
+                }
+                return expression;
+            }
+        default:
+            throw new RuntimeException("should never get here");
+        }
+    }
+    
+}
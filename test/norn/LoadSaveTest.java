@@ -1,5 +1,26 @@
 package norn;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class LoadSaveTest {
     // We manually tested the following partitions in the console:
@@ -12,5 +33,337 @@ public class LoadSaveTest {
         //      something that does, doesn't exist
         //      something that is, is not previously defined
         //      an empty definition, contains 1 definition, contains >1 definition
+        //      a statement that is invalid, after valid ones
+    // StatementReader is tested automatically, partitioned on:
+        //      ';' inside parentheses or not, lines broken inside a statement or not
+        //      pipe outside parentheses, inside them, or none
+        //      file is empty, fits in one buffer, or spans many
+    // SnapshotFile is tested automatically, partitioned on:
+        //      definitions use every kind of expression, or none are defined
+        //      file is intact, has a corrupt definition, header or table, or is text
+    // Journal is tested automatically, partitioned on:
+        //      sync policy is commit, interval or none
+        //      directory is new, has segments only, or a snapshot and later segments
+        //      newest segment ends cleanly or with a torn record
+        //      changes are made by evaluating, defining, or defining all at once
+        //      compaction is asked for, or due to the checkpoint interval with or without changes
+        //      snapshot written at full speed, or throttled
+    // StoredDefinition is tested automatically, partitioned on:
+        //      definition used or not since loading, decoded tree in the cache or not
+        //      stored definition redefined by an edit, or written to another snapshot
+    
+    @TempDir
+    Path directory;
+    
+    private List<String> readStatements(String text) throws IOException {
+        Path file = Files.writeString(directory.resolve("statements.txt"), text);
+        List<String> statements = new ArrayList<>();
+        try (StatementReader reader = new StatementReader(file)) {
+            for (String statement = reader.next(); statement != null; statement = reader.next()) {
+                statements.add(statement);
+            }
+        }
+        return statements;
+    }
+    
+    @Test
+    public void testStatements() throws IOException {
+        assertEquals(List.of(""), readStatements(""));
+        assertEquals(List.of("(a=(b, yilinn@mit.edu))", "(b=benton@mit.edu)", "(c=simon@mit.edu)"),
+                readStatements("(a=(b, yilinn@mit.edu));(b=benton@mit.edu);(c=simon@mit.edu)"));
+        assertEquals(List.of("a = (x; y)", " b = c@mit.edu", "", ""),
+                readStatements("a = (x; y);\n b = c@mit\r\n.edu;;"),
+                "line breaks should be dropped and ';' in parentheses kept");
+    }
+    
+    @Test
+    public void testPipes() throws IOException {
+        assertFalse(StatementReader.hasPipe(Files.writeString(directory.resolve("nested.txt"), "a = (b | c); d")));
+        assertTrue(StatementReader.hasPipe(Files.writeString(directory.resolve("top.txt"), "a = b; c | d = e")));
+    }
+    
+    @Test
+    public void testLargeFile() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            text.append("(list").append(i).append(" = user").append(i).append("@mit.edu, list").append(i + 1)
+                    .append(");\n");
+        }
+        List<String> statements = readStatements(text.toString());
+        assertEquals(20_001, statements.size());
+        assertEquals("(list12345 = user12345@mit.edu, list12346)", statements.get(12345));
+    }
+    
+    @Test
+    public void testSnapshotRoundTrip() throws IOException, InvalidExpressionException {
+        Map<String, ListExpression> definitions = new HashMap<>();
+        definitions.put("a", ListExpression.parse("(b, yilinn@mit.edu) * (c ! benton@mit.edu), ()"));
+        definitions.put("b", ListExpression.parse("x = simon@mit.edu; (y | z), x"));
+        definitions.put("c", ListExpression.parse("(b)"));
+        Path file = directory.resolve("lists.snapshot");
+        SnapshotFile.write(file, definitions);
+        assertTrue(SnapshotFile.isSnapshot(file));
+
+        SnapshotFile snapshot = SnapshotFile.open(file);
+        assertEquals(definitions.keySet(), snapshot.listnames());
+        for (String listname: definitions.keySet()) {
+            assertEquals(definitions.get(listname), snapshot.definition(listname), listname);
+        }
+        assertNull(snapshot.definition("x"), "a list only read by definitions is not defined");
+        DefinitionStore store = new DefinitionStore();
+        assertEquals(3, store.loadSnapshot(file), "a snapshot with nested definitions should load");
+        DefinitionStore parsed = new DefinitionStore();
+        parsed.defineAll(definitions);
+        for (String listname: definitions.keySet()) {
+            assertEquals(parsed.count(ListExpression.parse(listname)), store.count(ListExpression.parse(listname)));
+        }
 
+        SnapshotFile.write(file, Map.of());
+        assertEquals(Set.of(), SnapshotFile.open(file).listnames(), "an existing snapshot should be replaced");
+    }
+    
+    @Test
+    public void testNestedDefinitionsRoundTrip() throws IOException, InvalidExpressionException {
+        DefinitionStore store = new DefinitionStore();
+        store.evaluate(ListExpression.parse("a = (e = benton@mit.edu), simon@mit.edu; e = a"));
+        store.evaluate(ListExpression.parse("f = (f = yilinn@mit.edu)"));
+        store.evaluate(ListExpression.parse("g = (h = e), f"));
+        Path file = directory.resolve("nested.snapshot");
+        SnapshotFile.write(file, store.snapshot().getDefinitions());
+        assertEquals(Set.of(), SnapshotFile.open(file).references("f"), "a list a definition only defines is not read");
+        assertEquals(Set.of("e", "f"), SnapshotFile.open(file).references("g"));
+        
+        DefinitionStore loaded = new DefinitionStore();
+        assertEquals(store.snapshot().getDefinitions().size(), loaded.loadSnapshot(file));
+        for (String listname: List.of("a", "e", "f", "g")) {
+            assertEquals(store.count(ListExpression.parse(listname)), loaded.count(ListExpression.parse(listname)),
+                    listname);
+        }
+    }
+    
+    @Test
+    public void testSnapshotCorruption() throws IOException, InvalidExpressionException {
+        Path file = directory.resolve("lists.snapshot");
+        SnapshotFile.write(file, Map.of("a", ListExpression.parse("b, benton@mit.edu"),
+                "b", ListExpression.parse("simon@mit.edu")));
+        byte[] intact = Files.readAllBytes(file);
+        
+        for (int i = 0; i < intact.length; i++) {
+            byte[] corrupt = intact.clone();
+            corrupt[i] ^= 0x10;
+            Files.write(file, corrupt);
+            final int position = i;
+            assertThrows(IOException.class, () -> {
+                SnapshotFile snapshot = SnapshotFile.open(file);
+                snapshot.definition("a");
+                snapshot.definition("b");
+            }, "a flipped bit at " + position + " should be detected");
+        }
+        
+        Path text = Files.writeString(directory.resolve("lists.txt"), "(a=benton@mit.edu)");
+        assertFalse(SnapshotFile.isSnapshot(text));
+        assertThrows(IOException.class, () -> SnapshotFile.open(text));
+        Path named = Files.writeString(directory.resolve("norn.txt"), "NORNteam = benton@mit.edu");
+        assertFalse(SnapshotFile.isSnapshot(named), "text that starts like the magic number is still text");
+        Path upper = Files.writeString(directory.resolve("upper.txt"), "NORN = benton@mit.edu");
+        assertFalse(SnapshotFile.isSnapshot(upper));
+    }
+    
+    /**
+     * Recovers a journal that is only compacted when a test asks it to.
+     */
+    private static Journal recover(Path data, DefinitionStore store, Journal.Sync sync) throws IOException {
+        return Journal.recover(data, store, sync, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+    
+    @Test
+    public void testJournalRecovery() throws IOException, InvalidExpressionException {
+        for (Journal.Sync sync: Journal.Sync.values()) {
+            Path data = directory.resolve("data-" + sync);
+            DefinitionStore store = new DefinitionStore();
+            Journal journal = recover(data, store, sync);
+            store.evaluate(ListExpression.parse("a = benton@mit.edu, simon@mit.edu"));
+            store.define(ListExpression.parse("b = a ! simon@mit.edu; a = a, yilinn@mit.edu"));
+            store.defineAll(Map.of("c", ListExpression.parse("a * b")));
+            store.evaluate(ListExpression.parse("a, b"));
+            journal.close();
+            
+            DefinitionStore recovered = new DefinitionStore();
+            recover(data, recovered, sync).close();
+            assertEquals(store.snapshot().getDefinitions(), recovered.snapshot().getDefinitions(), sync.toString());
+            assertEquals(3, recovered.count(ListExpression.parse("a")), "edits should replay in order");
+        }
+    }
+    
+    @Test
+    public void testJournalTornRecord() throws IOException, InvalidExpressionException {
+        Path data = directory.resolve("data");
+        DefinitionStore store = new DefinitionStore();
+        Journal journal = recover(data, store, Journal.Sync.COMMIT);
+        store.evaluate(ListExpression.parse("a = benton@mit.edu"));
+        store.evaluate(ListExpression.parse("b = simon@mit.edu"));
+        journal.close();
+        Path segment = data.resolve("journal-0.log");
+        byte[] intact = Files.readAllBytes(segment);
+        Files.write(segment, Arrays.copyOf(intact, intact.length - 3));
+        
+        DefinitionStore recovered = new DefinitionStore();
+        journal = recover(data, recovered, Journal.Sync.COMMIT);
+        assertEquals(Set.of("a"), recovered.snapshot().getDefinitions().keySet(), "a torn record should be dropped");
+        recovered.evaluate(ListExpression.parse("c = a"));
+        journal.close();
+        
+        DefinitionStore again = new DefinitionStore();
+        recover(data, again, Journal.Sync.COMMIT).close();
+        assertEquals(Set.of("a", "c"), again.snapshot().getDefinitions().keySet(),
+                "records after a dropped one should be kept");
+    }
+    
+    @Test
+    public void testJournalCompaction() throws IOException, InvalidExpressionException {
+        Path data = directory.resolve("data");
+        DefinitionStore store = new DefinitionStore();
+        Journal journal = recover(data, store, Journal.Sync.COMMIT);
+        for (int i = 0; i < 100; i++) {
+            store.evaluate(ListExpression.parse("list" + i + " = user" + i + "@mit.edu, list" + (i + 1)));
+        }
+        store.evaluate(ListExpression.parse("nested = (nested = benton@mit.edu)"));
+        journal.compact();
+        store.evaluate(ListExpression.parse("list0 = list0 ! user1@mit.edu"));
+        journal.close();
+        assertFalse(Files.exists(data.resolve("journal-0.log")), "compacted segments should be deleted");
+        assertTrue(Files.exists(data.resolve("snapshot-1.snap")));
+        
+        DefinitionStore recovered = new DefinitionStore();
+        recover(data, recovered, Journal.Sync.COMMIT).close();
+        assertEquals(store.snapshot().getDefinitions(), recovered.snapshot().getDefinitions());
+        assertEquals(99, recovered.count(ListExpression.parse("list0")));
+    }
+    
+    @Test
+    public void testJournaledSnapshotLoad() throws IOException, InvalidExpressionException {
+        Path file = directory.resolve("lists.snapshot");
+        SnapshotFile.write(file, Map.of("a", ListExpression.parse("b, benton@mit.edu"),
+                "b", ListExpression.parse("simon@mit.edu")));
+        Path data = directory.resolve("data");
+        DefinitionStore store = new DefinitionStore();
+        Journal journal = Journal.recover(data, store, Journal.Sync.COMMIT, Long.MAX_VALUE, Long.MAX_VALUE,
+                Long.MAX_VALUE);
+        store.evaluate(ListExpression.parse("c = yilinn@mit.edu"));
+        assertEquals(2, store.loadSnapshot(file));
+        assertFalse(((StoredDefinition) store.snapshot().getDefinitions().get("a")).isCached(),
+                "journaling a load should not decode its definitions");
+        store.evaluate(ListExpression.parse("b = b, c"));
+        journal.close();
+        assertTrue(Files.exists(data.resolve("loaded-0.snap")), "the journal should keep a copy of the snapshot");
+        
+        DefinitionStore recovered = new DefinitionStore();
+        journal = Journal.recover(data, recovered, Journal.Sync.COMMIT, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(store.snapshot().getDefinitions(), recovered.snapshot().getDefinitions());
+        assertEquals(3, recovered.count(ListExpression.parse("a")));
+        journal.compact();
+        assertFalse(Files.exists(data.resolve("loaded-0.snap")), "a compacted copy should be deleted");
+        journal.close();
+        
+        DefinitionStore again = new DefinitionStore();
+        recover(data, again, Journal.Sync.COMMIT).close();
+        assertEquals(store.snapshot().getDefinitions(), again.snapshot().getDefinitions());
+    }
+    
+    @Test
+    public void testCheckpoint() throws IOException, InvalidExpressionException {
+        Path data = directory.resolve("data");
+        DefinitionStore store = new DefinitionStore();
+        // the compactor never wakes on its own, so the test decides when to checkpoint
+        Journal journal = Journal.recover(data, store, Journal.Sync.COMMIT, Long.MAX_VALUE, Long.MAX_VALUE,
+                Long.MAX_VALUE);
+        assertFalse(journal.checkpointDue(), "nothing should be checkpointed without changes");
+        store.evaluate(ListExpression.parse("a = benton@mit.edu"));
+        assertTrue(journal.checkpointDue(), "a change should be checkpointed once the interval passes");
+        journal.compact();
+        Path checkpoint = data.resolve("snapshot-1.snap");
+        assertTrue(Files.exists(checkpoint));
+        assertEquals(Set.of("a"), SnapshotFile.open(checkpoint).listnames());
+        assertFalse(journal.checkpointDue(), "nothing should be checkpointed again without changes");
+        store.evaluate(ListExpression.parse("b = a"));
+        assertTrue(journal.checkpointDue());
+        journal.close();
+    }
+    
+    @Test
+    public void testThrottledSnapshot() throws IOException, InvalidExpressionException {
+        // a clock that only moves when the stream sleeps, so the sleeps are exactly what the rate requires
+        long[] now = {0};
+        SnapshotFile.Clock clock = new SnapshotFile.Clock() {
+            @Override public long nanoTime() {
+                return now[0];
+            }
+            
+            @Override public void sleep(long nanos) {
+                now[0] += nanos;
+            }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = new SnapshotFile.ThrottledOutputStream(bytes, 1_000_000, clock);
+        out.write(new byte[250_000]);
+        assertEquals(250_000_000, now[0], "writing at 1MB/s should take 250ms");
+        now[0] += 500_000_000;
+        out.write(new byte[250_000]);
+        assertEquals(750_000_000, now[0], "time spent elsewhere should count towards the rate");
+        out.write(new byte[500_000]);
+        assertEquals(1_000_000_000, now[0], "writing 1MB at 1MB/s should take a second");
+        assertEquals(1_000_000, bytes.size());
+        
+        Map<String, ListExpression> definitions = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            definitions.put("list" + i, ListExpression.parse("user" + i + "@mit.edu, list" + (i + 1)));
+        }
+        Path file = directory.resolve("throttled.snapshot");
+        SnapshotFile.write(file, definitions, 1L << 30);
+        assertEquals(definitions, SnapshotFile.open(file).definitions());
+    }
+    
+    @Test
+    public void testStoredDefinitions() throws IOException, InvalidExpressionException {
+        Path file = directory.resolve("lists.snapshot");
+        SnapshotFile.write(file, Map.of("a", ListExpression.parse("b, benton@mit.edu"),
+                "b", ListExpression.parse("simon@mit.edu"), "c", ListExpression.parse("a * b"),
+                "d", ListExpression.parse("yilinn@mit.edu")));
+        SnapshotFile snapshot = SnapshotFile.open(file);
+        assertEquals(Set.of("b"), snapshot.references("a"));
+        assertEquals(Set.of("a", "b"), snapshot.references("c"));
+        
+        DefinitionStore store = new DefinitionStore();
+        store.defineAll(snapshot.storedDefinitions());
+        Map<String, ListExpression> loaded = store.snapshot().getDefinitions();
+        for (String listname: List.of("a", "b", "c", "d")) {
+            assertTrue(loaded.get(listname) instanceof StoredDefinition);
+            assertFalse(((StoredDefinition) loaded.get(listname)).isCached(), "loading should not decode " + listname);
+        }
+        
+        assertEquals(1, store.count(ListExpression.parse("c")));
+        for (String listname: List.of("a", "b", "c")) {
+            assertTrue(((StoredDefinition) loaded.get(listname)).isCached(), listname + " should be decoded");
+        }
+        assertFalse(((StoredDefinition) loaded.get("d")).isCached(), "only the lists used should be decoded");
+        StoredDefinition a = (StoredDefinition) loaded.get("a");
+        assertEquals(ListExpression.parse("b, benton@mit.edu"), a.resolve());
+        assertSame(a.resolve(), a.resolve(), "a decoded definition should be cached");
+        assertEquals(a, ListExpression.parse("b, benton@mit.edu"), "a stored definition should equal its tree");
+        assertEquals(ListExpression.parse("b, benton@mit.edu"), a, "a tree should equal its stored definition");
+        assertEquals(ListExpression.parse("b, benton@mit.edu").hashCode(), a.hashCode());
+        Path same = directory.resolve("same.snapshot");
+        SnapshotFile.write(same, Map.of("e", ListExpression.parse("b, benton@mit.edu")));
+        assertEquals(a, SnapshotFile.open(same).storedDefinitions().get("e"),
+                "stored definitions of equal trees in different files should be equal");
+        assertFalse(a.equals(loaded.get("d")));
+        
+        store.evaluate(ListExpression.parse("b = b, yilinn@mit.edu"));
+        assertEquals(2, store.count(ListExpression.parse("c")), "an edit should read the stored definition");
+        
+        Path copy = directory.resolve("copy.snapshot");
+        SnapshotFile.write(copy, store.snapshot().getDefinitions());
+        assertEquals(store.snapshot().getDefinitions(), SnapshotFile.open(copy).definitions());
+        assertEquals(Set.of("b"), SnapshotFile.open(copy).references("a"));
+    }
 }
@@ -0,0 +1,187 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+public class MemberSetTest {
+    // Partitions:
+    //     set is empty, has one id, is sparse (array containers), is dense (bitmap containers),
+    //         is consecutive ids (run containers)
+    //     ids all in one chunk (same high 16 bits), ids across several chunks
+    //     operands overlap fully, partly, not at all
+    //     operands have similar sizes, or one is far smaller than the other
+    //     operation is union, intersection, difference
+    //     operation is on sets, or a merge-join on streams
+    //     set is encoded alone, or after another set in the same buffer
+
+    private static MemberSet build(Set<Integer> ids) {
+        List<MemberSet> singletons = new ArrayList<>();
+        for (int id: ids) {
+            singletons.add(MemberSet.of(id));
+        }
+        return MemberSet.unionAll(singletons);
+    }
+
+    private static Set<Integer> ids(MemberSet set) {
+        Set<Integer> ids = new TreeSet<>();
+        set.forEach(ids::add);
+        return ids;
+    }
+
+    private static Set<Integer> sparse() {
+        Set<Integer> ids = new TreeSet<>();
+        for (int i = 0; i < 3000; i++) {
+            ids.add(i * 37);
+        }
+        return ids;
+    }
+
+    private static Set<Integer> dense() {
+        Set<Integer> ids = new TreeSet<>();
+        for (int i = 0; i < 70000; i += 3) {
+            ids.add(i);
+            ids.add(i + 1);
+        }
+        return ids;
+    }
+
+    private static Set<Integer> consecutive() {
+        Set<Integer> ids = new TreeSet<>();
+        for (int i = 50000; i < 140000; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    private static void assertOperations(Set<Integer> left, Set<Integer> right) {
+        MemberSet l = build(left);
+        MemberSet r = build(right);
+        assertEquals(left, ids(l), "set should hold exactly the ids it was built from");
+
+        Set<Integer> union = new TreeSet<>(left);
+        union.addAll(right);
+        assertEquals(union, ids(l.union(r)), "wrong union");
+
+        Set<Integer> intersection = new TreeSet<>(left);
+        intersection.retainAll(right);
+        assertEquals(intersection, ids(l.intersect(r)), "wrong intersection");
+
+        Set<Integer> difference = new TreeSet<>(left);
+        difference.removeAll(right);
+        assertEquals(difference, ids(l.difference(r)), "wrong difference");
+        assertEquals(difference.size(), l.difference(r).size(), "wrong size");
+
+        assertEquals(l.union(r), drain(MemberStream.union(List.of(MemberStream.of(l), MemberStream.of(r)))),
+                "wrong streamed union");
+        assertEquals(l.intersect(r), drain(MemberStream.intersection(MemberStream.of(l), MemberStream.of(r))),
+                "wrong streamed intersection");
+        assertEquals(l.difference(r), drain(MemberStream.difference(MemberStream.of(l), MemberStream.of(r))),
+                "wrong streamed difference");
+    }
+
+    private static MemberSet drain(MemberStream stream) {
+        int[] ids = new int[16];
+        int length = 0;
+        while (stream.hasNext()) {
+            if (length == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * length);
+            }
+            ids[length++] = stream.nextInt();
+        }
+        return MemberSet.fromSorted(ids, length);
+    }
+
+    @Test
+    public void testEmptyAndSingleton() {
+        assertTrue(MemberSet.empty().isEmpty());
+        MemberSet one = MemberSet.of(70000);
+        assertTrue(one.contains(70000));
+        assertFalse(one.contains(70001));
+        assertEquals(MemberSet.empty(), one.difference(one));
+        assertEquals(one, one.union(MemberSet.empty()));
+        assertEquals(MemberSet.empty(), one.intersect(MemberSet.empty()));
+    }
+
+    @Test
+    public void testSparseAndDense() {
+        assertOperations(sparse(), dense());
+        assertOperations(dense(), sparse());
+    }
+
+    @Test
+    public void testConsecutive() {
+        assertOperations(consecutive(), dense());
+        assertOperations(sparse(), consecutive());
+        assertOperations(consecutive(), consecutive());
+    }
+
+    @Test
+    public void testIteratorIsSorted() {
+        MemberSet set = build(dense()).union(build(sparse()));
+        List<Integer> iterated = new ArrayList<>();
+        set.iterator().forEachRemaining((int id) -> iterated.add(id));
+        assertEquals(new ArrayList<>(ids(set)), iterated, "iterator should give ids in increasing order");
+    }
+
+    @Test
+    public void testStreamUnionOfMany() {
+        List<MemberStream> streams = new ArrayList<>();
+        List<MemberSet> sets = new ArrayList<>();
+        for (Set<Integer> ids: List.of(sparse(), dense(), consecutive(), Set.<Integer>of())) {
+            sets.add(build(ids));
+            streams.add(MemberStream.of(sets.get(sets.size() - 1)));
+        }
+        assertEquals(MemberSet.unionAll(sets), drain(MemberStream.union(streams)), "wrong k-way union");
+        assertFalse(MemberStream.union(List.of()).hasNext(), "union of nothing should be empty");
+    }
+
+    @Test
+    public void testSkewedOperands() {
+        Set<Integer> few = new TreeSet<>();
+        for (int i = 0; i < 20; i++) {
+            few.add(i * 9973);
+        }
+        few.add(5_000_000);
+        Set<Integer> many = new TreeSet<>(sparse());
+        for (int high = 0; high < 40; high++) {
+            many.add((high << 16) | 9);
+        }
+        assertOperations(few, many);
+        assertOperations(many, few);
+        assertOperations(few, dense());
+        assertOperations(consecutive(), few);
+    }
+
+    @Test
+    public void testEncoding() {
+        List<MemberSet> sets = new ArrayList<>();
+        for (Set<Integer> ids: List.of(Set.<Integer>of(), Set.of(70000), sparse(), dense(), consecutive())) {
+            sets.add(build(ids));
+        }
+        sets.add(MemberSet.unionAll(sets));
+        int size = 0;
+        for (MemberSet set: sets) {
+            size += set.encodedSize();
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (MemberSet set: sets) {
+            set.writeTo(buffer);
+        }
+        assertEquals(size, buffer.position(), "encodedSize should be what writeTo writes");
+        buffer.flip();
+        for (MemberSet set: sets) {
+            assertEquals(set, MemberSet.readFrom(buffer), "set should decode to itself");
+        }
+        assertFalse(buffer.hasRemaining(), "decoding should read every set to its end");
+    }
+}
@@ -1,11 +1,15 @@
 package norn;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.jupiter.api.Test;
@@ -380,4 +384,130 @@ public class ParserTest {
         ListExpression e2 = ExpressionParser.parse("x=a@mit.edu,b@mit.edu");
         assertEquals(e1, e2);
     }
+    
+    @Test
+    public void sharedSubexpressions() throws UnableToParseException {
+        ListExpression e1 = ExpressionParser.parse("x = (a@mit.edu, b) * c");
+        ListExpression e2 = ExpressionParser.parse("y = (A@mit.edu,b)*c ! d");
+        assertSame(e1, ExpressionParser.parse("x=(a@mit.edu,b)*c"), "identical expressions should be the same object");
+        ListExpression shared = ((ListDefinition) e1).getValue();
+        SetDifference difference = (SetDifference) ((ListDefinition) e2).getValue();
+        assertSame(shared, difference.getLeft(), "identical subexpressions should be the same object");
+        assertEquals(shared.hashCode(), difference.getLeft().hashCode());
+    }
+    
+    @Test
+    public void sharedSubexpressionsConcurrently() throws InterruptedException {
+        final int threadCount = 8;
+        final int shapes = 50;
+        ListExpression[][] made = new ListExpression[threadCount][shapes];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final ListExpression[] mine = made[t];
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    mine[i % shapes] = ExpressionFactory.pipe(ExpressionFactory.listname("interned" + (i % shapes)),
+                            ExpressionFactory.union(List.of(ExpressionFactory.listname("x"),
+                                    ExpressionFactory.emailAddress("y" + (i % shapes) + "@mit.edu"))));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < shapes; i++) {
+            for (int t = 1; t < threadCount; t++) {
+                assertSame(made[0][i], made[t][i], "every thread should get the same object for expression " + i);
+            }
+        }
+    }
+    
+    @Test
+    public void parityWithGrammar() throws UnableToParseException {
+        List<String> inputs = new ArrayList<>(List.of("", "()", "a@mit.edu", "A@mit.edu", "a+b@mit.edu", "+@x", "a@",
+                "@mit.edu", "a+b", "a @mit.edu", "undefinedlist", "course.6", "a, b, c", "(a, b, c) ! (a, c)",
+                "(a, b) * (a, c)", "list=a@mit.edu; list2=list", "list=a@mit.edu | list2=b@mit.edu", "a, c * b, c",
+                "l=a, c; l",
+                "a, c ! a", "a ! a * b", "list = a * c; list", "list = a; b | c", "a; b | c", "a=b=x@mit.edu; a",
+                "a=s;a,b=x, y", "a=s;a!b=x, y", "a=s;a*b=x ! y", "x = (a@mit.edu, b) * c", ", , a", "a *", "*", "!;|",
+                "a = ", "a = = b", "a b", "(a", "a)", "x@y = z", "a\t=\r\nb", "a\fb", "\u00e9"));
+        Random random = new Random(6031);
+        String[] tokens = {"a", "B", "x@mit.edu", "b+c@d", ",", "!", "*", "=", ";", "|", "(", ")", " ", "@", "+",
+                "a.b-c_1"};
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder input = new StringBuilder();
+            for (int length = 1 + random.nextInt(10); length > 0; length--) {
+                input.append(tokens[random.nextInt(tokens.length)]);
+            }
+            inputs.add(input.toString());
+        }
+        for (String input: inputs) {
+            ListExpression expected;
+            try {
+                expected = GrammarParser.parse(input);
+            } catch (UnableToParseException e) {
+                assertThrows(UnableToParseException.class, () -> ExpressionParser.parse(input),
+                        "expected the grammar to reject [" + input + "]");
+                continue;
+            }
+            assertSame(expected, ExpressionParser.parse(input), "different parse of [" + input + "]");
+        }
+    }
+    
+    @Test
+    public void longExpression() throws UnableToParseException {
+        StringBuilder input = new StringBuilder("big = ");
+        for (int i = 0; i < 100_000; i++) {
+            input.append(i == 0 ? "" : ", ").append("user").append(i).append("@mit.edu");
+        }
+        ListExpression parsed = ExpressionParser.parse(input.append("; big").toString());
+        ListDefinition big = (ListDefinition) ((Sequence) parsed).getElements().get(0);
+        assertEquals(100_000, ((SetUnion) big.getValue()).getElements().size());
+    }
+    
+    @Test
+    public void parseCache() throws UnableToParseException {
+        String input = "cached = (a@mit.edu, b) * c ! d; cached";
+        long hits = ParseCache.hits();
+        long misses = ParseCache.misses();
+        ListExpression parsed = ParseCache.parse(input);
+        assertSame(parsed, ParseCache.parse(input), "expected the cached expression");
+        assertEquals(ExpressionParser.parse(input), parsed);
+        assertTrue(ParseCache.hits() >= hits + 1, "expected a hit");
+        assertTrue(ParseCache.misses() >= misses + 1, "expected a miss");
+        assertTrue(ParseCache.weight() <= ParseCache.DEFAULT_WEIGHT);
+        
+        assertThrows(UnableToParseException.class, () -> ParseCache.parse("a b"));
+        assertThrows(UnableToParseException.class, () -> ParseCache.parse("a b"), "invalid input should not be cached");
+    }
+    
+    @Test
+    public void parseCacheConcurrently() throws InterruptedException, UnableToParseException {
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        String input = "shared" + (i % 50) + " = x@mit.edu, y" + (i % 50);
+                        assertSame(ParseCache.parse(input), ParseCache.parse(input), "expected the cached expression");
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(List.of(), failures, "no thread should fail");
+        assertEquals(ExpressionParser.parse("shared7 = x@mit.edu, y7"), ParseCache.parse("shared7 = x@mit.edu, y7"));
+        assertTrue(ParseCache.weight() <= ParseCache.DEFAULT_WEIGHT);
+    }
 }
@@ -0,0 +1,64 @@
+package norn;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class PersistentHashMapTest {
+    // Partitions:
+    //     map is empty, has one entry, has many entries (several levels of the trie)
+    //     keys have distinct hashes, keys have equal hashes
+    //     operation is plus of a new key, plus of an existing key, minus of a present key, minus of an absent key
+    //     old versions are checked after newer versions are made, or not
+
+    @Test
+    public void testEmptyAndSingleton() {
+        PersistentHashMap<String, Integer> empty = PersistentHashMap.empty();
+        assertTrue(empty.isEmpty());
+        PersistentHashMap<String, Integer> one = empty.plus("a", 1);
+        assertEquals(Map.of("a", 1), one);
+        assertSame(one, one.plus("a", 1), "adding an existing entry should change nothing");
+        assertSame(one, one.minus("b"), "removing an absent key should change nothing");
+        assertTrue(one.minus("a").isEmpty());
+        assertTrue(empty.isEmpty(), "old versions should be unchanged");
+    }
+
+    @Test
+    public void testManyEntriesAndOldVersions() {
+        PersistentHashMap<String, Integer> map = PersistentHashMap.empty();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            map = map.plus("k" + i, i);
+            expected.put("k" + i, i);
+        }
+        PersistentHashMap<String, Integer> old = map;
+        Map<String, Integer> expectedOld = new HashMap<>(expected);
+        for (int i = 0; i < 5000; i += 3) {
+            map = map.minus("k" + i);
+            expected.remove("k" + i);
+            map = map.plus("k" + (i + 1), -i);
+            expected.put("k" + (i + 1), -i);
+        }
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        assertEquals(expectedOld, old, "old versions should be unchanged");
+        assertFalse(map.containsKey("k0"));
+    }
+
+    @Test
+    public void testEqualHashes() {
+        // "Aa" and "BB" have the same hash code, so all four keys do
+        PersistentHashMap<String, Integer> map = PersistentHashMap.<String, Integer>empty()
+                .plus("AaAa", 1).plus("AaBB", 2).plus("BBAa", 3).plus("BBBB", 4);
+        assertEquals(Map.of("AaAa", 1, "AaBB", 2, "BBAa", 3, "BBBB", 4), map);
+        map = map.minus("AaBB").plus("BBBB", 5).minus("AaAa");
+        assertEquals(Map.of("BBAa", 3, "BBBB", 5), map);
+        assertEquals(Map.of("BBBB", 5), map.minus("BBAa"));
+    }
+}